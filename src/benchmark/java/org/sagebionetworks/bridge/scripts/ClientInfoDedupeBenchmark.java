@@ -0,0 +1,53 @@
+package org.sagebionetworks.bridge.scripts;
+
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Strings;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks UpdateClientInfo.isDuplicateClientInfo() for user agents of different lengths, both duplicated ("X,X")
+ * and not.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class ClientInfoDedupeBenchmark {
+    @Param({ "64", "256", "2048" })
+    public int userAgentLength;
+
+    private String duplicateUserAgent;
+    private String uniqueUserAgent;
+
+    @Setup
+    public void setup() {
+        String userAgent = Strings.padEnd("App/1 (iPhone; iOS 15.0) BridgeSDK/4", userAgentLength, 'x');
+        duplicateUserAgent = userAgent + "," + userAgent;
+
+        // Same length, with the comma in the middle, so the benchmark still compares both halves.
+        uniqueUserAgent = userAgent + "," + userAgent.substring(0, userAgent.length() - 1) + "y";
+    }
+
+    @Benchmark
+    public boolean duplicate() {
+        return UpdateClientInfo.isDuplicateClientInfo(duplicateUserAgent);
+    }
+
+    @Benchmark
+    public boolean unique() {
+        return UpdateClientInfo.isDuplicateClientInfo(uniqueUserAgent);
+    }
+}
@@ -0,0 +1,77 @@
+package org.sagebionetworks.bridge.scripts;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.SecureRandom;
+import java.security.cert.X509Certificate;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.io.ByteStreams;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.cert.X509v3CertificateBuilder;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.operator.ContentSigner;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import org.sagebionetworks.bridge.crypto.BcCmsEncryptor;
+
+/**
+ * Benchmarks BcCmsEncryptor stream decryption, as used by DecryptScript and FixInvArcScript. The key pair and
+ * self-signed certificate are generated at setup, so no key files are needed.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class CmsDecryptBenchmark {
+    @Param({ "1024", "65536", "1048576" })
+    public int payloadBytes;
+
+    private BcCmsEncryptor encryptor;
+    private byte[] encryptedPayload;
+
+    @Setup
+    public void setup() throws Exception {
+        KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("RSA");
+        keyPairGenerator.initialize(2048);
+        KeyPair keyPair = keyPairGenerator.generateKeyPair();
+
+        long nowMillis = System.currentTimeMillis();
+        X500Name name = new X500Name("CN=CmsDecryptBenchmark");
+        X509v3CertificateBuilder certBuilder = new JcaX509v3CertificateBuilder(name, BigInteger.ONE,
+                new Date(nowMillis - TimeUnit.DAYS.toMillis(1)), new Date(nowMillis + TimeUnit.DAYS.toMillis(1)),
+                name, keyPair.getPublic());
+        ContentSigner signer = new JcaContentSignerBuilder("SHA256WithRSA").build(keyPair.getPrivate());
+        X509Certificate cert = new JcaX509CertificateConverter().getCertificate(certBuilder.build(signer));
+        encryptor = new BcCmsEncryptor(cert, keyPair.getPrivate());
+
+        byte[] payload = new byte[payloadBytes];
+        new SecureRandom().nextBytes(payload);
+        encryptedPayload = encryptor.encrypt(payload);
+    }
+
+    @Benchmark
+    public long decryptStream() throws Exception {
+        try (InputStream decryptedStream = encryptor.decrypt(new ByteArrayInputStream(encryptedPayload))) {
+            return ByteStreams.exhaust(decryptedStream);
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package org.sagebionetworks.bridge.scripts;
+
+import java.security.SecureRandom;
+import java.security.spec.InvalidKeySpecException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.codec.binary.Base64;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/** Benchmarks the PBKDF2 double-hash in StormpathRehashPasswords, for batches of Stormpath hashes. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+public class PasswordRehashBenchmark {
+    @Param({ "1", "10" })
+    public int numHashes;
+
+    private String[] stormpathHashes;
+
+    @Setup
+    public void setup() {
+        SecureRandom random = new SecureRandom();
+        stormpathHashes = new String[numHashes];
+        for (int i = 0; i < numHashes; i++) {
+            byte[] salt = new byte[16];
+            byte[] hashedPassword = new byte[32];
+            random.nextBytes(salt);
+            random.nextBytes(hashedPassword);
+            stormpathHashes[i] = "$stormpath1$" + Base64.encodeBase64String(salt) + "$" +
+                    Base64.encodeBase64String(hashedPassword);
+        }
+    }
+
+    @Benchmark
+    public void doubleHash(Blackhole blackhole) throws InvalidKeySpecException {
+        for (String stormpathHash : stormpathHashes) {
+            blackhole.consume(StormpathRehashPasswords.doubleHash(stormpathHash));
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package org.sagebionetworks.bridge.scripts;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/** Benchmarks SmsLogHealthDataBackfill.parseTimeZone() over a spread of UTC offsets. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class TimeZoneParseBenchmark {
+    @Param({ "100", "10000" })
+    public int numValues;
+
+    private String[] values;
+
+    @Setup
+    public void setup() {
+        // Offsets from -12:00 to +14:00 in 15 minute steps, like participant time zones.
+        values = new String[numValues];
+        for (int i = 0; i < numValues; i++) {
+            int offsetMinutes = -12 * 60 + (i % 105) * 15;
+            int absMinutes = Math.abs(offsetMinutes);
+            values[i] = String.format("%s%02d:%02d", offsetMinutes < 0 ? "-" : "+", absMinutes / 60,
+                    absMinutes % 60);
+        }
+    }
+
+    @Benchmark
+    public void parseTimeZone(Blackhole blackhole) {
+        for (String value : values) {
+            blackhole.consume(SmsLogHealthDataBackfill.parseTimeZone(value));
+        }
+    }
+}
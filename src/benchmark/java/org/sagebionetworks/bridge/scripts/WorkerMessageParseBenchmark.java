@@ -0,0 +1,62 @@
+package org.sagebionetworks.bridge.scripts;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/** Benchmarks SortWorkerMessages line parsing, over a mix of the message types it sorts. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class WorkerMessageParseBenchmark {
+    @Param({ "100", "10000" })
+    public int numLines;
+
+    private String[] lines;
+
+    @Setup
+    public void setup() {
+        lines = new String[numLines];
+        for (int i = 0; i < numLines; i++) {
+            switch (i % 3) {
+                case 0:
+                    lines[i] = "{\"service\":\"Exporter3Worker\",\"body\":{\"appId\":\"app-" + (i % 10) +
+                            "\",\"recordId\":\"record-" + i + "\"}}";
+                    break;
+                case 1:
+                    lines[i] = "{\"service\":\"Ex3ParticipantVersionWorker\",\"body\":{\"appId\":\"app-" + (i % 10) +
+                            "\",\"healthCode\":\"healthcode-" + i + "\",\"participantVersion\":" + i + "}}";
+                    break;
+                default:
+                    lines[i] = "{\"service\":\"UploadCompleteWorker\",\"body\":{\"uploadId\":\"upload-" + i +
+                            "\",\"tags\":[\"a\",\"b\",\"c\"],\"nested\":{\"x\":1,\"y\":2.5,\"z\":null}}}";
+                    break;
+            }
+        }
+    }
+
+    @Benchmark
+    public void parseLines(Blackhole blackhole) throws IOException {
+        for (String line : lines) {
+            JsonNode messageNode = SortWorkerMessages.parseLine(line);
+            blackhole.consume(messageNode.get("service").textValue());
+            blackhole.consume(messageNode.get("body"));
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package org.sagebionetworks.bridge.helper;
+
+/**
+ * Picks a batch size that keeps batch latency near a target, using additive increase and multiplicative decrease. Each
+ * batch that finishes under the target grows the batch size by a fixed step. Each batch over the target halves it. The
+ * batch size always stays between the min and max. This is thread-safe, so concurrent writers can share one sizer.
+ */
+public class AdaptiveBatchSizer {
+    private final int minBatchSize;
+    private final int maxBatchSize;
+    private final int increaseStep;
+    private final long targetLatencyMillis;
+    private int batchSize;
+
+    /**
+     * Creates a batch sizer.
+     *
+     * @param initialBatchSize
+     *         batch size to start with
+     * @param minBatchSize
+     *         batch size never goes below this
+     * @param maxBatchSize
+     *         batch size never goes above this
+     * @param increaseStep
+     *         how much to grow the batch size after a fast batch
+     * @param targetLatencyMillis
+     *         batches slower than this shrink the batch size
+     */
+    public AdaptiveBatchSizer(int initialBatchSize, int minBatchSize, int maxBatchSize, int increaseStep,
+            long targetLatencyMillis) {
+        this.minBatchSize = minBatchSize;
+        this.maxBatchSize = maxBatchSize;
+        this.increaseStep = increaseStep;
+        this.targetLatencyMillis = targetLatencyMillis;
+        this.batchSize = Math.max(minBatchSize, Math.min(maxBatchSize, initialBatchSize));
+    }
+
+    /** Current batch size. */
+    public synchronized int getBatchSize() {
+        return batchSize;
+    }
+
+    /** Records how long a batch took and adjusts the batch size. */
+    public synchronized void recordLatency(long latencyMillis) {
+        if (latencyMillis > targetLatencyMillis) {
+            batchSize = Math.max(minBatchSize, batchSize / 2);
+        } else {
+            batchSize = Math.min(maxBatchSize, batchSize + increaseStep);
+        }
+    }
+}
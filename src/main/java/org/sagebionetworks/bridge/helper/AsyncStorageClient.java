@@ -0,0 +1,40 @@
+package org.sagebionetworks.bridge.helper;
+
+import java.util.concurrent.CompletableFuture;
+
+import software.amazon.awssdk.services.dynamodb.model.BatchGetItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.BatchGetItemResponse;
+import software.amazon.awssdk.services.dynamodb.model.BatchWriteItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.BatchWriteItemResponse;
+import software.amazon.awssdk.services.dynamodb.model.QueryRequest;
+import software.amazon.awssdk.services.dynamodb.model.QueryResponse;
+import software.amazon.awssdk.services.dynamodb.model.ScanRequest;
+import software.amazon.awssdk.services.dynamodb.model.ScanResponse;
+import software.amazon.awssdk.services.s3.model.DeleteObjectsRequest;
+import software.amazon.awssdk.services.s3.model.DeleteObjectsResponse;
+
+/**
+ * Non-blocking data access for the DynamoDB and S3 calls the purge scripts make. Every call returns immediately with a
+ * CompletableFuture, so a handful of threads can keep hundreds of requests in flight. Requests and responses are the
+ * AWS SDK v2 model classes, so callers build requests exactly as they would for the SDK.
+ */
+public interface AsyncStorageClient extends AutoCloseable {
+    /** Scans one page of a DDB table, or of one segment of the table if the request specifies a segment. */
+    CompletableFuture<ScanResponse> scan(ScanRequest request);
+
+    /** Queries one page of a DDB table or index. */
+    CompletableFuture<QueryResponse> query(QueryRequest request);
+
+    /** Gets up to 100 DDB items. Any keys that weren't processed are returned in the response. */
+    CompletableFuture<BatchGetItemResponse> batchGetItem(BatchGetItemRequest request);
+
+    /** Puts or deletes up to 25 DDB items. Any items that weren't processed are returned in the response. */
+    CompletableFuture<BatchWriteItemResponse> batchWriteItem(BatchWriteItemRequest request);
+
+    /** Deletes up to 1000 objects from an S3 bucket. */
+    CompletableFuture<DeleteObjectsResponse> deleteObjects(DeleteObjectsRequest request);
+
+    /** Closes the underlying clients. */
+    @Override
+    void close();
+}
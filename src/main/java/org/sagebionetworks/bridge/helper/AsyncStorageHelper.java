@@ -0,0 +1,260 @@
+package org.sagebionetworks.bridge.helper;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Iterables;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.BatchGetItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.BatchWriteItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.DeleteRequest;
+import software.amazon.awssdk.services.dynamodb.model.KeysAndAttributes;
+import software.amazon.awssdk.services.dynamodb.model.QueryRequest;
+import software.amazon.awssdk.services.dynamodb.model.ScanRequest;
+import software.amazon.awssdk.services.dynamodb.model.WriteRequest;
+import software.amazon.awssdk.services.s3.model.Delete;
+import software.amazon.awssdk.services.s3.model.DeleteObjectsRequest;
+import software.amazon.awssdk.services.s3.model.ObjectIdentifier;
+
+/**
+ * Higher-level operations on top of AsyncStorageClient: paginated and segmented scans, paginated queries, and batch
+ * gets and deletes of any size, with retries of unprocessed keys. Everything is asynchronous. Nothing here blocks a
+ * thread while waiting on AWS.
+ */
+public class AsyncStorageHelper implements AutoCloseable {
+    // Request size limits. See the DDB and S3 API docs.
+    public static final int MAX_BATCH_GET_SIZE = 100;
+    public static final int MAX_BATCH_WRITE_SIZE = 25;
+    public static final int MAX_S3_DELETE_SIZE = 1000;
+
+    private static final int MAX_UNPROCESSED_RETRIES = 10;
+    private static final long UNPROCESSED_BACKOFF_MILLIS = 100;
+
+    private final AsyncStorageClient client;
+
+    // Schedules delayed requests, for backoff and for throttled scans.
+    private final ScheduledExecutorService scheduler;
+
+    public AsyncStorageHelper(AsyncStorageClient client) {
+        this.client = client;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "AsyncStorageHelper-scheduler");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Scans the whole table in totalSegments parallel segments. Each page of items is passed to the page consumer,
+     * which may be called concurrently from different segments. Completes with the number of items scanned once all
+     * segments are done.
+     */
+    public CompletableFuture<Long> scanAllSegments(ScanRequest template, int totalSegments,
+            Consumer<List<Map<String, AttributeValue>>> pageConsumer) {
+        return scanAllSegments(template, totalSegments, 0.0, pageConsumer);
+    }
+
+    /**
+     * Same as the other scanAllSegments(), but requests at most pagesPerSecond pages per second, across all segments.
+     * Page requests are paced by scheduling them after a delay, not by blocking a thread. Zero means no limit.
+     */
+    public CompletableFuture<Long> scanAllSegments(ScanRequest template, int totalSegments, double pagesPerSecond,
+            Consumer<List<Map<String, AttributeValue>>> pageConsumer) {
+        PageThrottle throttle = pagesPerSecond > 0.0 ? new PageThrottle(pagesPerSecond) : null;
+        AtomicLong numItems = new AtomicLong();
+        CompletableFuture<?>[] segmentFutures = new CompletableFuture<?>[totalSegments];
+        for (int i = 0; i < totalSegments; i++) {
+            ScanRequest segmentRequest = template.toBuilder().segment(i).totalSegments(totalSegments).build();
+            segmentFutures[i] = scanFrom(segmentRequest, pageConsumer, numItems, throttle);
+        }
+        return CompletableFuture.allOf(segmentFutures).thenApply(v -> numItems.get());
+    }
+
+    // Helper method to scan one page and chain the next page when it completes.
+    private CompletableFuture<Void> scanFrom(ScanRequest request,
+            Consumer<List<Map<String, AttributeValue>>> pageConsumer, AtomicLong numItems, PageThrottle throttle) {
+        return afterThrottle(throttle).thenCompose(v -> client.scan(request)).thenCompose(response -> {
+            pageConsumer.accept(response.items());
+            numItems.addAndGet(response.items().size());
+
+            Map<String, AttributeValue> lastEvaluatedKey = response.lastEvaluatedKey();
+            if (lastEvaluatedKey == null || lastEvaluatedKey.isEmpty()) {
+                return CompletableFuture.completedFuture(null);
+            }
+            return scanFrom(request.toBuilder().exclusiveStartKey(lastEvaluatedKey).build(), pageConsumer,
+                    numItems, throttle);
+        });
+    }
+
+    /** Runs the query to completion, passing each page to the page consumer. Completes with the number of items. */
+    public CompletableFuture<Long> queryAll(QueryRequest request,
+            Consumer<List<Map<String, AttributeValue>>> pageConsumer) {
+        AtomicLong numItems = new AtomicLong();
+        return queryFrom(request, pageConsumer, numItems).thenApply(v -> numItems.get());
+    }
+
+    // Helper method to query one page and chain the next page when it completes.
+    private CompletableFuture<Void> queryFrom(QueryRequest request,
+            Consumer<List<Map<String, AttributeValue>>> pageConsumer, AtomicLong numItems) {
+        return client.query(request).thenCompose(response -> {
+            pageConsumer.accept(response.items());
+            numItems.addAndGet(response.items().size());
+
+            Map<String, AttributeValue> lastEvaluatedKey = response.lastEvaluatedKey();
+            if (lastEvaluatedKey == null || lastEvaluatedKey.isEmpty()) {
+                return CompletableFuture.completedFuture(null);
+            }
+            return queryFrom(request.toBuilder().exclusiveStartKey(lastEvaluatedKey).build(), pageConsumer,
+                    numItems);
+        });
+    }
+
+    /**
+     * Gets items from a table with a hash-only string key. All batches are sent concurrently. Completes with a map
+     * from key value to item. Keys that don't exist are not in the map.
+     */
+    public CompletableFuture<Map<String, Map<String, AttributeValue>>> batchGetAll(String tableName,
+            String hashKeyName, Collection<String> hashKeys) {
+        Map<String, Map<String, AttributeValue>> itemsByKey = new ConcurrentHashMap<>();
+        List<CompletableFuture<Void>> futureList = new ArrayList<>();
+        for (List<String> keyBatch : Iterables.partition(hashKeys, MAX_BATCH_GET_SIZE)) {
+            List<Map<String, AttributeValue>> keyList = new ArrayList<>(keyBatch.size());
+            for (String oneKey : keyBatch) {
+                keyList.add(ImmutableMap.of(hashKeyName, AttributeValue.builder().s(oneKey).build()));
+            }
+            Map<String, KeysAndAttributes> requestItems = ImmutableMap.of(tableName, KeysAndAttributes.builder()
+                    .keys(keyList).build());
+            futureList.add(batchGetWithRetry(requestItems, tableName, hashKeyName, itemsByKey, 0));
+        }
+        return CompletableFuture.allOf(futureList.toArray(new CompletableFuture<?>[0])).thenApply(v -> itemsByKey);
+    }
+
+    // Helper method to send a batch get and retry unprocessed keys with backoff.
+    private CompletableFuture<Void> batchGetWithRetry(Map<String, KeysAndAttributes> requestItems, String tableName,
+            String hashKeyName, Map<String, Map<String, AttributeValue>> itemsByKey, int numRetries) {
+        BatchGetItemRequest request = BatchGetItemRequest.builder().requestItems(requestItems).build();
+        return client.batchGetItem(request).thenCompose(response -> {
+            List<Map<String, AttributeValue>> itemList = response.responses().get(tableName);
+            if (itemList != null) {
+                for (Map<String, AttributeValue> oneItem : itemList) {
+                    itemsByKey.put(oneItem.get(hashKeyName).s(), oneItem);
+                }
+            }
+
+            Map<String, KeysAndAttributes> unprocessedKeys = response.unprocessedKeys();
+            if (unprocessedKeys == null || unprocessedKeys.isEmpty()) {
+                return CompletableFuture.completedFuture(null);
+            }
+            return afterBackoff(numRetries + 1, "batchGetItem", tableName).thenCompose(v -> batchGetWithRetry(
+                    unprocessedKeys, tableName, hashKeyName, itemsByKey, numRetries + 1));
+        });
+    }
+
+    /** Deletes items from a table with a hash-only string key. All batches are sent concurrently. */
+    public CompletableFuture<Void> batchDeleteAll(String tableName, String hashKeyName, Collection<String> hashKeys) {
+        List<CompletableFuture<Void>> futureList = new ArrayList<>();
+        for (List<String> keyBatch : Iterables.partition(hashKeys, MAX_BATCH_WRITE_SIZE)) {
+            List<WriteRequest> writeRequestList = new ArrayList<>(keyBatch.size());
+            for (String oneKey : keyBatch) {
+                writeRequestList.add(WriteRequest.builder().deleteRequest(DeleteRequest.builder().key(
+                        ImmutableMap.of(hashKeyName, AttributeValue.builder().s(oneKey).build())).build()).build());
+            }
+            futureList.add(batchWriteWithRetry(ImmutableMap.of(tableName, writeRequestList), tableName, 0));
+        }
+        return CompletableFuture.allOf(futureList.toArray(new CompletableFuture<?>[0]));
+    }
+
+    // Helper method to send a batch write and retry unprocessed items with backoff.
+    private CompletableFuture<Void> batchWriteWithRetry(Map<String, List<WriteRequest>> requestItems,
+            String tableName, int numRetries) {
+        BatchWriteItemRequest request = BatchWriteItemRequest.builder().requestItems(requestItems).build();
+        return client.batchWriteItem(request).thenCompose(response -> {
+            Map<String, List<WriteRequest>> unprocessedItems = response.unprocessedItems();
+            if (unprocessedItems == null || unprocessedItems.isEmpty()) {
+                return CompletableFuture.completedFuture(null);
+            }
+            return afterBackoff(numRetries + 1, "batchWriteItem", tableName).thenCompose(v -> batchWriteWithRetry(
+                    unprocessedItems, tableName, numRetries + 1));
+        });
+    }
+
+    /** Deletes objects from an S3 bucket. All batches are sent concurrently. Fails if any object can't be deleted. */
+    public CompletableFuture<Void> deleteS3Objects(String bucket, Collection<String> keys) {
+        List<CompletableFuture<Void>> futureList = new ArrayList<>();
+        for (List<String> keyBatch : Iterables.partition(keys, MAX_S3_DELETE_SIZE)) {
+            List<ObjectIdentifier> objectList = new ArrayList<>(keyBatch.size());
+            for (String oneKey : keyBatch) {
+                objectList.add(ObjectIdentifier.builder().key(oneKey).build());
+            }
+            DeleteObjectsRequest request = DeleteObjectsRequest.builder().bucket(bucket).delete(Delete.builder()
+                    .objects(objectList).quiet(true).build()).build();
+            futureList.add(client.deleteObjects(request).thenAccept(response -> {
+                if (response.errors() != null && !response.errors().isEmpty()) {
+                    throw new IllegalStateException("Failed to delete " + response.errors().size() +
+                            " objects from bucket " + bucket + ", first error: " + response.errors().get(0)
+                            .message());
+                }
+            }));
+        }
+        return CompletableFuture.allOf(futureList.toArray(new CompletableFuture<?>[0]));
+    }
+
+    // Helper method that completes when the throttle allows the next page request. Completes right away if there's no
+    // throttle or the request isn't over the limit.
+    private CompletableFuture<Void> afterThrottle(PageThrottle throttle) {
+        long delayNanos = throttle != null ? throttle.reserveNextPage() : 0;
+        if (delayNanos <= 0) {
+            return CompletableFuture.completedFuture(null);
+        }
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        scheduler.schedule(() -> future.complete(null), delayNanos, TimeUnit.NANOSECONDS);
+        return future;
+    }
+
+    // Helper method that completes after an exponential backoff delay, or fails if we've retried too many times.
+    private CompletableFuture<Void> afterBackoff(int numRetries, String operation, String tableName) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        if (numRetries > MAX_UNPROCESSED_RETRIES) {
+            future.completeExceptionally(new IllegalStateException("Too many retries of " + operation +
+                    " on table " + tableName));
+        } else {
+            scheduler.schedule(() -> future.complete(null),
+                    UNPROCESSED_BACKOFF_MILLIS << Math.min(numRetries, 6), TimeUnit.MILLISECONDS);
+        }
+        return future;
+    }
+
+    /** Shuts down the scheduler. Doesn't close the underlying client. */
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+    }
+
+    // Spaces page requests evenly, at most pagesPerSecond. Each request reserves the next free slot and waits for it,
+    // like RateLimiter.acquire(), except the caller schedules the wait instead of sleeping.
+    private static class PageThrottle {
+        private final long intervalNanos;
+        private final AtomicLong nextFreeNanos = new AtomicLong(System.nanoTime());
+
+        PageThrottle(double pagesPerSecond) {
+            this.intervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / pagesPerSecond);
+        }
+
+        // Reserves the next slot. Returns how long to wait for it, in nanoseconds.
+        long reserveNextPage() {
+            long now = System.nanoTime();
+            long slot = nextFreeNanos.getAndUpdate(prev -> Math.max(prev, now) + intervalNanos);
+            return Math.max(slot - now, 0);
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package org.sagebionetworks.bridge.helper;
+
+import java.util.concurrent.CompletableFuture;
+
+import software.amazon.awssdk.http.nio.netty.NettyNioAsyncHttpClient;
+import software.amazon.awssdk.services.dynamodb.DynamoDbAsyncClient;
+import software.amazon.awssdk.services.dynamodb.model.BatchGetItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.BatchGetItemResponse;
+import software.amazon.awssdk.services.dynamodb.model.BatchWriteItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.BatchWriteItemResponse;
+import software.amazon.awssdk.services.dynamodb.model.QueryRequest;
+import software.amazon.awssdk.services.dynamodb.model.QueryResponse;
+import software.amazon.awssdk.services.dynamodb.model.ScanRequest;
+import software.amazon.awssdk.services.dynamodb.model.ScanResponse;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.model.DeleteObjectsRequest;
+import software.amazon.awssdk.services.s3.model.DeleteObjectsResponse;
+
+/**
+ * AsyncStorageClient backed by the AWS SDK v2 async clients. These use non-blocking Netty I/O, so an in-flight
+ * request doesn't hold a thread. (The SDK v1 "async" clients just run the blocking client on a thread pool.)
+ * Credentials and region come from the default provider chains, same as the SDK v1 clients in the rest of the
+ * scripts.
+ */
+public class AwsAsyncStorageClient implements AsyncStorageClient {
+    private static final int DEFAULT_MAX_CONCURRENCY = 200;
+
+    private final DynamoDbAsyncClient ddbClient;
+    private final S3AsyncClient s3Client;
+
+    /** Creates clients that allow up to 200 concurrent requests each. */
+    public AwsAsyncStorageClient() {
+        this(DEFAULT_MAX_CONCURRENCY);
+    }
+
+    /** Creates clients that allow up to maxConcurrency concurrent requests each. */
+    public AwsAsyncStorageClient(int maxConcurrency) {
+        this.ddbClient = DynamoDbAsyncClient.builder().httpClientBuilder(NettyNioAsyncHttpClient.builder()
+                .maxConcurrency(maxConcurrency)).build();
+        this.s3Client = S3AsyncClient.builder().httpClientBuilder(NettyNioAsyncHttpClient.builder()
+                .maxConcurrency(maxConcurrency)).build();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public CompletableFuture<ScanResponse> scan(ScanRequest request) {
+        return ddbClient.scan(request);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public CompletableFuture<QueryResponse> query(QueryRequest request) {
+        return ddbClient.query(request);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public CompletableFuture<BatchGetItemResponse> batchGetItem(BatchGetItemRequest request) {
+        return ddbClient.batchGetItem(request);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public CompletableFuture<BatchWriteItemResponse> batchWriteItem(BatchWriteItemRequest request) {
+        return ddbClient.batchWriteItem(request);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public CompletableFuture<DeleteObjectsResponse> deleteObjects(DeleteObjectsRequest request) {
+        return s3Client.deleteObjects(request);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void close() {
+        ddbClient.close();
+        s3Client.close();
+    }
+}
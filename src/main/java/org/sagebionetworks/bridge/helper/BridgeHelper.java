@@ -3,9 +3,6 @@ package org.sagebionetworks.bridge.helper;
 import java.io.IOException;
 import java.util.Iterator;
 import java.util.List;
-import java.util.concurrent.TimeUnit;
-
-import com.jcabi.aspects.Cacheable;
 
 import org.sagebionetworks.bridge.rest.ClientManager;
 import org.sagebionetworks.bridge.rest.api.ForResearchersApi;
@@ -21,9 +18,11 @@ import org.sagebionetworks.bridge.rest.model.StudyParticipant;
 /** Abstracts away calls to Bridge and wraps the iterator classes. */
 public class BridgeHelper {
     private final ClientManager clientManager;
+    private final ParticipantCache participantCache;
 
     public BridgeHelper(ClientManager clientManager) {
         this.clientManager = clientManager;
+        this.participantCache = new ParticipantCache(this::loadParticipant);
     }
 
     public void createSmsRegistration(String userId) throws IOException {
@@ -38,9 +37,18 @@ public class BridgeHelper {
         return new AccountSummaryIterator(clientManager, appId);
     }
 
-    /** Gets a participant for the given user in the given study. */
-    @Cacheable(lifetime = 5, unit = TimeUnit.MINUTES)
+    /** Gets a participant for the given user in the given study. Participants are cached, see getParticipantCache(). */
     public StudyParticipant getParticipant(String userId) throws IOException {
+        return participantCache.get(userId);
+    }
+
+    /** Participant cache backing getParticipant(), for stats and invalidation. */
+    public ParticipantCache getParticipantCache() {
+        return participantCache;
+    }
+
+    // Loads a participant from Bridge, for the participant cache.
+    private StudyParticipant loadParticipant(String userId) throws IOException {
         return clientManager.getClient(ForResearchersApi.class).getParticipantById(userId, true).execute()
                 .body();
     }
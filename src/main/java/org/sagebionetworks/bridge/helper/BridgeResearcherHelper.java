@@ -12,17 +12,29 @@ import org.sagebionetworks.bridge.rest.model.StudyParticipant;
 /** Abstracts away calls to Bridge and wraps the iterator classes. */
 public class BridgeResearcherHelper {
     private final ClientManager clientManager;
+    private final ParticipantCache participantCache;
 
     public BridgeResearcherHelper(ClientManager clientManager) {
         this.clientManager = clientManager;
+        this.participantCache = new ParticipantCache(this::loadParticipant);
     }
 
     public void createSmsRegistration(String userId) throws IOException {
         clientManager.getClient(InternalApi.class).createSmsRegistration(userId).execute();
     }
 
-    /** Gets a participant for the given user in the given study. */
+    /** Gets a participant for the given user in the given study. Participants are cached, see getParticipantCache(). */
     public StudyParticipant getParticipant(String userId) throws IOException {
+        return participantCache.get(userId);
+    }
+
+    /** Participant cache backing getParticipant(), for stats and invalidation. */
+    public ParticipantCache getParticipantCache() {
+        return participantCache;
+    }
+
+    // Loads a participant from Bridge, for the participant cache.
+    private StudyParticipant loadParticipant(String userId) throws IOException {
         return clientManager.getClient(ForResearchersApi.class).getParticipantById(userId, true).execute()
                 .body();
     }
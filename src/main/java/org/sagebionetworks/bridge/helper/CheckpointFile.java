@@ -0,0 +1,60 @@
+package org.sagebionetworks.bridge.helper;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import com.google.common.io.Files;
+
+/**
+ * Append-only checkpoint file, one completed key per line. Scripts use this to skip work that was already completed
+ * by a previous run. Each key is flushed to disk as soon as it is marked completed, so a crash loses at most the work
+ * in flight.
+ */
+public class CheckpointFile implements AutoCloseable {
+    private final Set<String> completedKeySet = new LinkedHashSet<>();
+    private final PrintWriter writer;
+    private String lastCompletedKey;
+
+    /** Opens the checkpoint file, loading any keys from a previous run. Creates the file if it doesn't exist. */
+    public CheckpointFile(File file) throws IOException {
+        if (file.exists()) {
+            List<String> lineList = Files.readLines(file, StandardCharsets.UTF_8);
+            for (String line : lineList) {
+                if (!line.isEmpty()) {
+                    completedKeySet.add(line);
+                    lastCompletedKey = line;
+                }
+            }
+        }
+        writer = new PrintWriter(new FileWriter(file, true), true);
+    }
+
+    /** True if the key was marked completed in this run or a previous run. */
+    public synchronized boolean isCompleted(String key) {
+        return completedKeySet.contains(key);
+    }
+
+    /** The most recently completed key, or null if nothing has been completed. */
+    public synchronized String getLastCompletedKey() {
+        return lastCompletedKey;
+    }
+
+    /** Marks the key as completed and flushes it to disk. */
+    public synchronized void markCompleted(String key) {
+        if (completedKeySet.add(key)) {
+            writer.println(key);
+        }
+        lastCompletedKey = key;
+    }
+
+    @Override
+    public synchronized void close() {
+        writer.close();
+    }
+}
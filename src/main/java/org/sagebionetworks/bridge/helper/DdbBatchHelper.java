@@ -0,0 +1,98 @@
+package org.sagebionetworks.bridge.helper;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.amazonaws.services.dynamodbv2.document.BatchGetItemOutcome;
+import com.amazonaws.services.dynamodbv2.document.BatchWriteItemOutcome;
+import com.amazonaws.services.dynamodbv2.document.DynamoDB;
+import com.amazonaws.services.dynamodbv2.document.Item;
+import com.amazonaws.services.dynamodbv2.document.TableKeysAndAttributes;
+import com.amazonaws.services.dynamodbv2.document.TableWriteItems;
+import com.amazonaws.services.dynamodbv2.model.KeysAndAttributes;
+import com.amazonaws.services.dynamodbv2.model.WriteRequest;
+import com.google.common.collect.Iterables;
+
+/**
+ * Wraps DDB batch get and batch write, which have per-request size limits and can return unprocessed keys when
+ * throttled. This splits the keys into batches and retries unprocessed keys with backoff.
+ */
+public class DdbBatchHelper {
+    // DDB limits. See https://docs.aws.amazon.com/amazondynamodb/latest/APIReference/API_BatchGetItem.html
+    public static final int MAX_BATCH_GET_SIZE = 100;
+    public static final int MAX_BATCH_WRITE_SIZE = 25;
+
+    private static final int MAX_UNPROCESSED_RETRIES = 10;
+    private static final long UNPROCESSED_BACKOFF_MILLIS = 100;
+
+    private final DynamoDB ddbClient;
+
+    public DdbBatchHelper(DynamoDB ddbClient) {
+        this.ddbClient = ddbClient;
+    }
+
+    /**
+     * Gets items from a table with a hash-only key. Returns a map from key value to item. Keys that don't exist are
+     * not in the map.
+     */
+    public Map<String, Item> batchGetItems(String tableName, String hashKeyName, Collection<String> hashKeys) {
+        Map<String, Item> itemsByKey = new HashMap<>();
+        for (List<String> keyBatch : Iterables.partition(hashKeys, MAX_BATCH_GET_SIZE)) {
+            TableKeysAndAttributes keysAndAttributes = new TableKeysAndAttributes(tableName);
+            keysAndAttributes.addHashOnlyPrimaryKeys(hashKeyName, keyBatch.toArray());
+            BatchGetItemOutcome outcome = ddbClient.batchGetItem(keysAndAttributes);
+
+            int numRetries = 0;
+            while (true) {
+                List<Item> itemList = outcome.getTableItems().get(tableName);
+                if (itemList != null) {
+                    for (Item oneItem : itemList) {
+                        itemsByKey.put(oneItem.getString(hashKeyName), oneItem);
+                    }
+                }
+
+                Map<String, KeysAndAttributes> unprocessedKeys = outcome.getUnprocessedKeys();
+                if (unprocessedKeys == null || unprocessedKeys.isEmpty()) {
+                    break;
+                }
+                backoff(++numRetries, "batchGetItem", tableName);
+                outcome = ddbClient.batchGetItemUnprocessed(unprocessedKeys);
+            }
+        }
+        return itemsByKey;
+    }
+
+    /** Deletes items from a table with a hash-only key. */
+    public void batchDeleteItems(String tableName, String hashKeyName, Collection<String> hashKeys) {
+        for (List<String> keyBatch : Iterables.partition(hashKeys, MAX_BATCH_WRITE_SIZE)) {
+            TableWriteItems writeItems = new TableWriteItems(tableName).withHashOnlyKeysToDelete(hashKeyName,
+                    keyBatch.toArray());
+            BatchWriteItemOutcome outcome = ddbClient.batchWriteItem(writeItems);
+
+            int numRetries = 0;
+            while (true) {
+                Map<String, List<WriteRequest>> unprocessedItems = outcome.getUnprocessedItems();
+                if (unprocessedItems == null || unprocessedItems.isEmpty()) {
+                    break;
+                }
+                backoff(++numRetries, "batchWriteItem", tableName);
+                outcome = ddbClient.batchWriteItemUnprocessed(unprocessedItems);
+            }
+        }
+    }
+
+    // Helper method to sleep with exponential backoff between unprocessed key retries.
+    private static void backoff(int numRetries, String operation, String tableName) {
+        if (numRetries > MAX_UNPROCESSED_RETRIES) {
+            throw new IllegalStateException("Too many retries of " + operation + " on table " + tableName);
+        }
+        try {
+            Thread.sleep(UNPROCESSED_BACKOFF_MILLIS << Math.min(numRetries, 6));
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted retrying " + operation + " on table " + tableName, ex);
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package org.sagebionetworks.bridge.helper;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.StringJoiner;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.ScanRequest;
+
+/**
+ * Compact local dump of a projected table, for offline joins. Every row has the same number of string columns. The
+ * file is gzipped and written with DataOutputStream.writeUTF, which is much smaller and faster to read back than JSON.
+ * A row count trailer lets the reader detect a truncated dump.
+ */
+public class DumpFile {
+    private static final byte ROW = 1;
+    private static final byte END = 0;
+
+    /** Callback for each row in the dump. */
+    public interface RowHandler {
+        void handle(String[] row) throws Exception;
+    }
+
+    /** Writes a dump. This is thread-safe. */
+    public static class Writer implements Closeable {
+        private final int numColumns;
+        private final DataOutputStream out;
+        private long numRows = 0;
+
+        public Writer(File file, int numColumns) throws IOException {
+            this.numColumns = numColumns;
+            this.out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(
+                    file))));
+            out.writeInt(numColumns);
+        }
+
+        /** Writes one row. Must have exactly numColumns values. Null values are written as empty strings. */
+        public synchronized void writeRow(String... values) throws IOException {
+            if (values.length != numColumns) {
+                throw new IllegalArgumentException("Expected " + numColumns + " columns, got " + values.length);
+            }
+            out.writeByte(ROW);
+            for (String oneValue : values) {
+                out.writeUTF(oneValue != null ? oneValue : "");
+            }
+            numRows++;
+        }
+
+        /** Number of rows written so far. */
+        public synchronized long getNumRows() {
+            return numRows;
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            out.writeByte(END);
+            out.writeLong(numRows);
+            out.close();
+        }
+    }
+
+    /**
+     * Dumps the given attributes of every item in the table, using a parallel segmented scan projected to just those
+     * attributes. Missing attributes are dumped as empty strings. The scan requests at most pagesPerSecond pages per
+     * second, which bounds read capacity to roughly pagesPerSecond * pageSize items per second. Rows are written on a
+     * dedicated writer thread, so neither the throttle nor the file writes block the SDK's completion threads. Returns
+     * the number of rows.
+     */
+    public static long dumpTable(AsyncStorageHelper helper, String tableName, int totalSegments, int pageSize,
+            double pagesPerSecond, File file, String... attributeNames) throws Exception {
+        // Use expression attribute names, so we don't have to worry about reserved words.
+        Map<String, String> expressionNames = new HashMap<>();
+        StringJoiner projection = new StringJoiner(",");
+        for (int i = 0; i < attributeNames.length; i++) {
+            expressionNames.put("#a" + i, attributeNames[i]);
+            projection.add("#a" + i);
+        }
+        // Eventual reads cost half as much, and we're taking a snapshot anyway.
+        ScanRequest template = ScanRequest.builder().tableName(tableName).limit(pageSize).consistentRead(false)
+                .projectionExpression(projection.toString()).expressionAttributeNames(expressionNames).build();
+
+        // If the scan fails, delete the partial dump. Otherwise, the trailer would make it look complete.
+        Writer writer = new Writer(file, attributeNames.length);
+        ExecutorService writerExecutor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "DumpFile-writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        AtomicReference<IOException> writeException = new AtomicReference<>();
+        try {
+            try {
+                helper.scanAllSegments(template, totalSegments, pagesPerSecond, page -> {
+                    // If a write already failed, stop this segment instead of scanning the rest of it.
+                    IOException ex = writeException.get();
+                    if (ex != null) {
+                        throw new UncheckedIOException(ex);
+                    }
+
+                    List<String[]> rowList = new ArrayList<>(page.size());
+                    for (Map<String, AttributeValue> oneItem : page) {
+                        String[] row = new String[attributeNames.length];
+                        for (int i = 0; i < attributeNames.length; i++) {
+                            AttributeValue value = oneItem.get(attributeNames[i]);
+                            if (value != null) {
+                                row[i] = value.s() != null ? value.s() : value.n();
+                            }
+                        }
+                        rowList.add(row);
+                    }
+                    writerExecutor.execute(() -> writeRows(writer, rowList, writeException));
+                }).get();
+            } finally {
+                // Let the writer finish whatever it has queued, so the file isn't closed under it.
+                writerExecutor.shutdown();
+                writerExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            }
+            if (writeException.get() != null) {
+                throw writeException.get();
+            }
+        } catch (Exception ex) {
+            writer.close();
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+            throw ex;
+        }
+        writer.close();
+        return writer.getNumRows();
+    }
+
+    // Helper method to write one page of rows. This runs on the writer thread. After the first failure, later pages
+    // are skipped, since the dump will be deleted anyway.
+    private static void writeRows(Writer writer, List<String[]> rowList, AtomicReference<IOException> writeException) {
+        if (writeException.get() != null) {
+            return;
+        }
+        try {
+            for (String[] row : rowList) {
+                writer.writeRow(row);
+            }
+        } catch (IOException ex) {
+            writeException.compareAndSet(null, ex);
+        }
+    }
+
+    /** Reads every row in the dump, in the order they were written. Returns the number of rows. */
+    public static long read(File file, RowHandler handler) throws Exception {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(
+                new FileInputStream(file))))) {
+            int numColumns = in.readInt();
+            long numRows = 0;
+            while (true) {
+                byte type;
+                try {
+                    type = in.readByte();
+                } catch (EOFException ex) {
+                    throw new IOException("Dump file " + file + " is truncated", ex);
+                }
+
+                if (type == END) {
+                    if (in.readLong() != numRows) {
+                        throw new IOException("Dump file " + file + " row count doesn't match");
+                    }
+                    return numRows;
+                } else if (type != ROW) {
+                    throw new IOException("Unknown entry type " + type + " in dump file " + file);
+                }
+
+                String[] row = new String[numColumns];
+                for (int i = 0; i < numColumns; i++) {
+                    row[i] = in.readUTF();
+                }
+                handler.handle(row);
+                numRows++;
+            }
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package org.sagebionetworks.bridge.helper;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Append-only TSV file of items that failed, so they can be found and retried after the run. Each line is the item
+ * key, some context (such as the table it came from), and the error message. This is thread-safe, and each line is
+ * flushed as soon as it's written, so the ledger survives a crash. The file is only created once the first failure is
+ * recorded.
+ */
+public class FailureLedger implements Closeable {
+    private final File file;
+    private BufferedWriter writer;
+    private long numFailures = 0;
+
+    /** Creates a ledger that appends to the given file. Existing failures in the file are kept. */
+    public FailureLedger(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Reads the keys of all failures in the given ledger file, deduped, in the order they were first recorded. Returns
+     * an empty set if the file doesn't exist.
+     */
+    public static Set<String> readKeys(File file) throws IOException {
+        Set<String> keySet = new LinkedHashSet<>();
+        if (!file.exists()) {
+            return keySet;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int tabIdx = line.indexOf('\t');
+                String key = tabIdx >= 0 ? line.substring(0, tabIdx) : line;
+                if (!key.isEmpty()) {
+                    keySet.add(key);
+                }
+            }
+        }
+        return keySet;
+    }
+
+    /** The file this ledger is written to. */
+    public File getFile() {
+        return file;
+    }
+
+    /** Records a failed item. Errors writing the ledger are logged, since the ledger itself shouldn't fail the run. */
+    public synchronized void record(String key, String context, Throwable ex) {
+        numFailures++;
+        String message = ex.getMessage() != null ? ex.getMessage() : ex.getClass().getName();
+        try {
+            if (writer == null) {
+                writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true),
+                        StandardCharsets.UTF_8));
+            }
+            writer.write(key + "\t" + context + "\t" + sanitize(message));
+            writer.newLine();
+            writer.flush();
+        } catch (IOException writeEx) {
+            LogHelper.logError("Error writing key " + key + " to failure ledger " + file + ": " +
+                    writeEx.getMessage(), writeEx);
+        }
+    }
+
+    /** Number of failures recorded by this run. */
+    public synchronized long getNumFailures() {
+        return numFailures;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (writer != null) {
+            writer.close();
+        }
+    }
+
+    // Helper method to keep each failure on one line.
+    private static String sanitize(String value) {
+        return value.replace('\t', ' ').replace('\n', ' ').replace('\r', ' ');
+    }
+}
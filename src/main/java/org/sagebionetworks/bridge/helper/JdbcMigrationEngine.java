@@ -0,0 +1,561 @@
+package org.sagebionetworks.bridge.helper;
+
+import static org.sagebionetworks.bridge.helper.LogHelper.logError;
+import static org.sagebionetworks.bridge.helper.LogHelper.logInfo;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.base.Stopwatch;
+import com.google.common.collect.Iterables;
+import com.google.common.util.concurrent.RateLimiter;
+
+/**
+ * <p>
+ * Runs select-transform-update migrations over a SQL table. A migration only supplies how to select a page of rows,
+ * how to transform each row, and how to bind each row's update. The engine handles the rest.
+ * </p>
+ * <p>
+ * Rows are read with keyset pagination on the caller's thread, transformed on a pool of transform threads (sized to
+ * the available cores by default, for CPU-heavy transforms), and written by a pool of writer threads, each with its
+ * own connection. Writers batch their updates, and the batch size adapts to keep each batch near a target latency.
+ * Per-batch latency and rows per second are logged as the migration runs. Migrations that implement StagedMigration
+ * can instead be written through a temporary staging table, with one set-based update per batch.
+ * </p>
+ * <p>
+ * If a checkpoint is given, the engine records the last key of each page once every row in that page and all earlier
+ * pages has been written (or has failed and been logged). That way a rerun can resume after the checkpointed key
+ * without skipping rows that were still in flight.
+ * </p>
+ * <p>
+ * Failed rows count as done, so the checkpoint moves past them. If a failure ledger is set, each failed row's key is
+ * recorded there, and retry() can rerun just those keys later, without a full rescan.
+ * </p>
+ */
+public class JdbcMigrationEngine {
+    private static final int DEFAULT_PAGE_SIZE = 1000;
+    private static final int DEFAULT_NUM_WRITERS = 4;
+    private static final int DEFAULT_INITIAL_BATCH_SIZE = 100;
+    private static final int DEFAULT_MIN_BATCH_SIZE = 10;
+    private static final int DEFAULT_MAX_BATCH_SIZE = 1000;
+    private static final int DEFAULT_BATCH_SIZE_STEP = 50;
+    private static final long DEFAULT_TARGET_BATCH_LATENCY_MILLIS = 1000;
+    private static final int LOG_PERIOD_BATCHES = 20;
+    private static final int METRICS_PERIOD_SECONDS = 60;
+    private static final int TRANSFORM_BATCH_SIZE = 10;
+
+    /** Opens a new database connection. */
+    public interface ConnectionFactory {
+        Connection openConnection() throws SQLException;
+    }
+
+    /**
+     * A migration over a table. R is the selected row and U is the transformed row to write.
+     */
+    public interface Migration<R, U> {
+        /** Migration name, used for logging. */
+        String getName();
+
+        /** Selects up to limit rows whose key is greater than afterKey, ordered by key. */
+        List<R> selectPage(Connection connection, String afterKey, int limit) throws SQLException;
+
+        /**
+         * Selects the rows with the given keys that still need migrating, ordered by key. Keys for rows that don't
+         * exist or are already migrated are skipped. Used by retry().
+         */
+        List<R> selectByKeys(Connection connection, List<String> keyList) throws SQLException;
+
+        /** The row's key, which is what pages are ordered by. */
+        String getKey(R row);
+
+        /** Transforms the row. This runs on the transform pool, so it can be CPU-heavy. */
+        U transform(R row) throws Exception;
+
+        /** SQL for the update statement, bound once per row. */
+        String getUpdateSql();
+
+        /** Binds the transformed row's parameters to the update statement. The engine calls addBatch(). */
+        void bindUpdate(U update, PreparedStatement updateStatement) throws SQLException;
+    }
+
+    /**
+     * A migration that can also be written through a staging table. Each write batch is loaded into a temporary
+     * staging table with one multi-row insert, then applied with one joined update, instead of one update per row.
+     */
+    public interface StagedMigration<R, U> extends Migration<R, U> {
+        /** Creates the staging table on a connection. This should be a temporary table, so it's per connection. */
+        String getCreateStagingTableSql();
+
+        /** Start of the multi-row insert into the staging table, up to and including "values". */
+        String getStagingInsertPrefix();
+
+        /** Number of staging table columns, which is the number of parameters per row in the insert. */
+        int getNumStagingColumns();
+
+        /** Binds the transformed row's staging columns, starting at firstParamIdx. */
+        void bindStagingRow(U update, PreparedStatement insertStatement, int firstParamIdx) throws SQLException;
+
+        /** Updates the target table from the staging table, with a join. */
+        String getApplyStagingSql();
+
+        /** Empties the staging table. */
+        String getClearStagingSql();
+    }
+
+    // Configuration
+    private final ConnectionFactory connectionFactory;
+    private int pageSize = DEFAULT_PAGE_SIZE;
+    private int numTransformThreads = Runtime.getRuntime().availableProcessors();
+    private int numWriters = DEFAULT_NUM_WRITERS;
+    private int initialBatchSize = DEFAULT_INITIAL_BATCH_SIZE;
+    private int maxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+    private long targetBatchLatencyMillis = DEFAULT_TARGET_BATCH_LATENCY_MILLIS;
+    private double maxRowsPerSecond = 0.0;
+    private boolean useStagingTable = false;
+    private FailureLedger failureLedger;
+
+    /** Creates an engine that opens connections with the given factory. */
+    public JdbcMigrationEngine(ConnectionFactory connectionFactory) {
+        this.connectionFactory = connectionFactory;
+    }
+
+    /** Rows read per page. Defaults to 1000. */
+    public void setPageSize(int pageSize) {
+        this.pageSize = pageSize;
+    }
+
+    /** Number of transform threads. Defaults to the number of available cores. */
+    public void setNumTransformThreads(int numTransformThreads) {
+        this.numTransformThreads = numTransformThreads;
+    }
+
+    /** Number of writer threads, each with its own connection. Defaults to 4. */
+    public void setNumWriters(int numWriters) {
+        this.numWriters = numWriters;
+    }
+
+    /** Write batch size to start with. Defaults to 100. */
+    public void setInitialBatchSize(int initialBatchSize) {
+        this.initialBatchSize = initialBatchSize;
+    }
+
+    /** Largest write batch size. Defaults to 1000. */
+    public void setMaxBatchSize(int maxBatchSize) {
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    /** Write batches slower than this shrink the batch size. Defaults to 1 second. */
+    public void setTargetBatchLatencyMillis(long targetBatchLatencyMillis) {
+        this.targetBatchLatencyMillis = targetBatchLatencyMillis;
+    }
+
+    /** Caps how fast rows are read. 0 (the default) means no cap. */
+    public void setMaxRowsPerSecond(double maxRowsPerSecond) {
+        this.maxRowsPerSecond = maxRowsPerSecond;
+    }
+
+    /**
+     * If true, writes go through a staging table, and the migration must be a StagedMigration. Defaults to false,
+     * which writes with batched per-row updates.
+     */
+    public void setUseStagingTable(boolean useStagingTable) {
+        this.useStagingTable = useStagingTable;
+    }
+
+    /** If set, the key of each row that fails to transform or write is recorded here. Defaults to null. */
+    public void setFailureLedger(FailureLedger failureLedger) {
+        this.failureLedger = failureLedger;
+    }
+
+    /**
+     * Runs the migration to completion. If checkpoint is non-null, the migration resumes after its last completed
+     * key, and progress is checkpointed as pages complete. Rows that fail to transform or write are logged, recorded
+     * in the failure ledger if there is one, and skipped. Returns the number of failed rows.
+     */
+    public <R, U> long run(Migration<R, U> migration, CheckpointFile checkpoint) throws InterruptedException,
+            SQLException {
+        String startAfterKey = checkpoint != null ? checkpoint.getLastCompletedKey() : null;
+        return runWithPageSource(migration, checkpoint, readConnection -> new KeysetPageSource<>(migration,
+                readConnection, startAfterKey, pageSize));
+    }
+
+    /**
+     * Reruns the migration for just the given keys, for example the keys in a failure ledger from an earlier run.
+     * Rows that no longer need migrating are skipped by the migration's selectByKeys(). There's no checkpoint, but
+     * rows that fail again are recorded in the failure ledger, if one is set. Returns the number of failed rows.
+     */
+    public <R, U> long retry(Migration<R, U> migration, Collection<String> keys) throws InterruptedException,
+            SQLException {
+        logInfo("Retrying " + keys.size() + " keys in " + migration.getName());
+        Iterator<List<String>> keyBatchIter = Iterables.partition(keys, pageSize).iterator();
+        return runWithPageSource(migration, null, readConnection -> () -> {
+            // Skip batches where every row has already been migrated, so an empty page always means we're done.
+            while (keyBatchIter.hasNext()) {
+                List<R> rowList = migration.selectByKeys(readConnection, keyBatchIter.next());
+                if (!rowList.isEmpty()) {
+                    return rowList;
+                }
+            }
+            return new ArrayList<>();
+        });
+    }
+
+    // Sets up connections and runs the pipeline, reading pages from the page source.
+    private <R, U> long runWithPageSource(Migration<R, U> migration, CheckpointFile checkpoint,
+            PageSourceFactory<R> pageSourceFactory) throws InterruptedException, SQLException {
+        if (useStagingTable && !(migration instanceof StagedMigration)) {
+            throw new IllegalArgumentException("Migration " + migration.getName() + " doesn't support staging tables");
+        }
+
+        // Each writer borrows a connection from the pool for each batch.
+        BlockingQueue<Connection> connectionPool = new ArrayBlockingQueue<>(numWriters);
+        try (Connection readConnection = connectionFactory.openConnection()) {
+            for (int i = 0; i < numWriters; i++) {
+                Connection connection = connectionFactory.openConnection();
+                connectionPool.add(connection);
+                if (useStagingTable) {
+                    executeSql(connection, ((StagedMigration<R, U>) migration).getCreateStagingTableSql());
+                }
+            }
+            return runPipeline(migration, checkpoint, pageSourceFactory.create(readConnection), connectionPool);
+        } finally {
+            for (Connection connection : connectionPool) {
+                closeQuietly(connection);
+            }
+        }
+    }
+
+    // Runs the read, transform, and write stages. Returns the number of failed rows.
+    private <R, U> long runPipeline(Migration<R, U> migration, CheckpointFile checkpoint, PageSource<R> pageSource,
+            BlockingQueue<Connection> connectionPool) throws InterruptedException, SQLException {
+        String name = migration.getName();
+        RateLimiter rateLimiter = maxRowsPerSecond > 0 ? RateLimiter.create(maxRowsPerSecond) : null;
+        AdaptiveBatchSizer batchSizer = new AdaptiveBatchSizer(initialBatchSize, DEFAULT_MIN_BATCH_SIZE,
+                maxBatchSize, DEFAULT_BATCH_SIZE_STEP, targetBatchLatencyMillis);
+        WriteMetrics writeMetrics = new WriteMetrics();
+        PageTracker pageTracker = new PageTracker(checkpoint, failureLedger);
+
+        PipelineStage<RowItem<U>> writeStage = new PipelineStage<>(name + "-write", numWriters, maxBatchSize,
+                maxBatchSize * numWriters * 2, batch -> writeBatch(migration, batch, connectionPool,
+                useStagingTable, batchSizer, writeMetrics, pageTracker));
+        PipelineStage<RowItem<R>> transformStage = new PipelineStage<>(name + "-transform",
+                numTransformThreads, TRANSFORM_BATCH_SIZE, pageSize * 2, batch -> {
+                    for (RowItem<R> item : batch) {
+                        transformRow(migration, item, writeStage, pageTracker);
+                    }
+                });
+        writeStage.start();
+        transformStage.start();
+
+        Stopwatch stopwatch = Stopwatch.createStarted();
+        long numRowsRead = 0;
+        try (PipelineMetricsReporter ignored = new PipelineMetricsReporter(METRICS_PERIOD_SECONDS,
+                transformStage, writeStage)) {
+            try {
+                while (true) {
+                    if (rateLimiter != null) {
+                        rateLimiter.acquire(pageSize);
+                    }
+
+                    List<R> rowList = pageSource.nextPage();
+                    if (rowList.isEmpty()) {
+                        break;
+                    }
+                    numRowsRead += rowList.size();
+
+                    String lastKey = migration.getKey(rowList.get(rowList.size() - 1));
+                    Page page = pageTracker.addPage(lastKey, rowList.size());
+                    for (R row : rowList) {
+                        transformStage.submit(new RowItem<>(page, migration.getKey(row), row));
+                    }
+                }
+            } finally {
+                // Drain the stages before the reporter logs its final metrics.
+                transformStage.awaitCompletion();
+                writeStage.awaitCompletion();
+            }
+        }
+
+        long elapsedMillis = stopwatch.elapsed(TimeUnit.MILLISECONDS);
+        logInfo(String.format("Migration %s finished: read=%d, written=%d, failed=%d, rowsPerSec=%.2f, " +
+                        "batches=%d, avgBatchMillis=%d, maxBatchMillis=%d, finalBatchSize=%d in %d seconds",
+                name, numRowsRead, writeMetrics.numRowsWritten.get(), pageTracker.numFailedRows.get(),
+                elapsedMillis > 0 ? writeMetrics.numRowsWritten.get() * 1000.0 / elapsedMillis : 0.0,
+                writeMetrics.numBatches.get(), writeMetrics.getAvgBatchMillis(),
+                writeMetrics.maxBatchMillis.get(), batchSizer.getBatchSize(),
+                TimeUnit.MILLISECONDS.toSeconds(elapsedMillis)));
+        return pageTracker.numFailedRows.get();
+    }
+
+    // Transforms one row and passes it to the write stage. Failures are logged and count as done, so the page can
+    // still complete.
+    private static <R, U> void transformRow(Migration<R, U> migration, RowItem<R> item,
+            PipelineStage<RowItem<U>> writeStage, PageTracker pageTracker) throws InterruptedException {
+        U update;
+        try {
+            update = migration.transform(item.row);
+        } catch (Exception ex) {
+            logError("Error transforming row " + item.key + " in " + migration.getName() + ": " + ex.getMessage(),
+                    ex);
+            pageTracker.markRowFailed(item.page, item.key, migration.getName() + "-transform", ex);
+            return;
+        }
+        writeStage.submit(new RowItem<>(item.page, item.key, update));
+    }
+
+    // Writes a batch from the write stage, in sub-batches sized by the batch sizer.
+    private static <R, U> void writeBatch(Migration<R, U> migration, List<RowItem<U>> batch,
+            BlockingQueue<Connection> connectionPool, boolean useStagingTable, AdaptiveBatchSizer batchSizer,
+            WriteMetrics writeMetrics, PageTracker pageTracker) throws InterruptedException {
+        Connection connection = connectionPool.take();
+        try {
+            int start = 0;
+            while (start < batch.size()) {
+                int end = Math.min(batch.size(), start + batchSizer.getBatchSize());
+                List<RowItem<U>> subBatch = batch.subList(start, end);
+                writeSubBatch(migration, connection, subBatch, useStagingTable, batchSizer, writeMetrics,
+                        pageTracker);
+                start = end;
+            }
+        } finally {
+            connectionPool.put(connection);
+        }
+    }
+
+    private static <R, U> void writeSubBatch(Migration<R, U> migration, Connection connection,
+            List<RowItem<U>> subBatch, boolean useStagingTable, AdaptiveBatchSizer batchSizer,
+            WriteMetrics writeMetrics, PageTracker pageTracker) {
+        Stopwatch batchStopwatch = Stopwatch.createStarted();
+        Exception writeEx = null;
+        try {
+            if (useStagingTable) {
+                writeStaged((StagedMigration<R, U>) migration, connection, subBatch);
+            } else {
+                writeUpdates(migration, connection, subBatch);
+            }
+        } catch (SQLException | RuntimeException ex) {
+            // A RuntimeException from the migration's bind methods must still mark the rows done below, or the
+            // checkpoint would never advance past this page.
+            writeEx = ex;
+            logError("Error writing rows " + subBatch.get(0).key + " to " + subBatch.get(subBatch.size() - 1).key +
+                    " in " + migration.getName() + ": " + ex.getMessage(), ex);
+        }
+
+        long latencyMillis = batchStopwatch.elapsed(TimeUnit.MILLISECONDS);
+        if (writeEx == null) {
+            batchSizer.recordLatency(latencyMillis);
+            long numBatches = writeMetrics.recordBatch(subBatch.size(), latencyMillis);
+            if (numBatches % LOG_PERIOD_BATCHES == 0) {
+                logInfo(String.format("Migration %s: batch of %d rows in %d ms (%.2f rows/sec), %d rows written, " +
+                                "next batch size %d", migration.getName(), subBatch.size(), latencyMillis,
+                        latencyMillis > 0 ? subBatch.size() * 1000.0 / latencyMillis : 0.0,
+                        writeMetrics.numRowsWritten.get(), batchSizer.getBatchSize()));
+            }
+        }
+
+        for (RowItem<U> item : subBatch) {
+            if (writeEx == null) {
+                pageTracker.markRowsDone(item.page, 1, false);
+            } else {
+                pageTracker.markRowFailed(item.page, item.key, migration.getName() + "-write", writeEx);
+            }
+        }
+    }
+
+    // Writes with one update per row, sent as a JDBC batch.
+    private static <R, U> void writeUpdates(Migration<R, U> migration, Connection connection,
+            List<RowItem<U>> subBatch) throws SQLException {
+        try (PreparedStatement updateStatement = connection.prepareStatement(migration.getUpdateSql())) {
+            for (RowItem<U> item : subBatch) {
+                migration.bindUpdate(item.row, updateStatement);
+                updateStatement.addBatch();
+            }
+            updateStatement.executeBatch();
+        }
+    }
+
+    // Writes by loading the rows into the staging table with one multi-row insert, then applying them with one joined
+    // update. That's 3 round trips per batch, no matter how big the batch is.
+    private static <R, U> void writeStaged(StagedMigration<R, U> migration, Connection connection,
+            List<RowItem<U>> subBatch) throws SQLException {
+        // Clear out anything left over from a failed batch.
+        executeSql(connection, migration.getClearStagingSql());
+
+        int numColumns = migration.getNumStagingColumns();
+        String rowPlaceholders = "(" + String.join(",", Collections.nCopies(numColumns, "?")) + ")";
+        String insertSql = migration.getStagingInsertPrefix() + " " + String.join(",",
+                Collections.nCopies(subBatch.size(), rowPlaceholders));
+        try (PreparedStatement insertStatement = connection.prepareStatement(insertSql)) {
+            int paramIdx = 1;
+            for (RowItem<U> item : subBatch) {
+                migration.bindStagingRow(item.row, insertStatement, paramIdx);
+                paramIdx += numColumns;
+            }
+            insertStatement.executeUpdate();
+        }
+
+        executeSql(connection, migration.getApplyStagingSql());
+    }
+
+    private static void executeSql(Connection connection, String sql) throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            statement.execute(sql);
+        }
+    }
+
+    private static void closeQuietly(Connection connection) {
+        try {
+            connection.close();
+        } catch (SQLException ex) {
+            logError("Error closing connection: " + ex.getMessage(), ex);
+        }
+    }
+
+    // Where the read loop gets its pages. An empty page means there are no more rows.
+    private interface PageSource<R> {
+        List<R> nextPage() throws SQLException;
+    }
+
+    // Creates a page source once the read connection is open.
+    private interface PageSourceFactory<R> {
+        PageSource<R> create(Connection readConnection);
+    }
+
+    // Reads the whole table in key order with keyset pagination, starting after the given key.
+    private static class KeysetPageSource<R> implements PageSource<R> {
+        private final Migration<R, ?> migration;
+        private final Connection readConnection;
+        private final int pageSize;
+        private String lastKey;
+
+        KeysetPageSource(Migration<R, ?> migration, Connection readConnection, String startAfterKey, int pageSize) {
+            this.migration = migration;
+            this.readConnection = readConnection;
+            this.pageSize = pageSize;
+            if (startAfterKey != null) {
+                logInfo("Resuming " + migration.getName() + " after key " + startAfterKey);
+                lastKey = startAfterKey;
+            } else {
+                lastKey = "";
+            }
+        }
+
+        @Override
+        public List<R> nextPage() throws SQLException {
+            List<R> rowList = migration.selectPage(readConnection, lastKey, pageSize);
+            if (!rowList.isEmpty()) {
+                lastKey = migration.getKey(rowList.get(rowList.size() - 1));
+            }
+            return rowList;
+        }
+    }
+
+    // A row (selected or transformed) on its way through the pipeline, with the page it came from.
+    private static class RowItem<T> {
+        final Page page;
+        final String key;
+        final T row;
+
+        RowItem(Page page, String key, T row) {
+            this.page = page;
+            this.key = key;
+            this.row = row;
+        }
+    }
+
+    // One page of selected rows. The page is done once all its rows are written or failed. Package-scoped for tests.
+    static class Page {
+        final String lastKey;
+        final AtomicInteger numRowsRemaining;
+        boolean done = false;
+
+        Page(String lastKey, int numRows) {
+            this.lastKey = lastKey;
+            this.numRowsRemaining = new AtomicInteger(numRows);
+        }
+    }
+
+    // Tracks pages in read order. Pages can finish out of order, but the checkpoint only advances past a page once
+    // every page before it is also done. Failed rows are done too, and are recorded in the failure ledger (if there is
+    // one), so they can be retried even though the checkpoint has moved past them. Package-scoped for tests.
+    static class PageTracker {
+        final CheckpointFile checkpoint;
+        final FailureLedger failureLedger;
+        final Deque<Page> pendingPages = new ArrayDeque<>();
+        final AtomicLong numFailedRows = new AtomicLong();
+
+        PageTracker(CheckpointFile checkpoint, FailureLedger failureLedger) {
+            this.checkpoint = checkpoint;
+            this.failureLedger = failureLedger;
+        }
+
+        synchronized Page addPage(String lastKey, int numRows) {
+            Page page = new Page(lastKey, numRows);
+            pendingPages.add(page);
+            return page;
+        }
+
+        // Records the failed row in the ledger before marking it done, so the ledger never misses a row that the
+        // checkpoint has moved past.
+        void markRowFailed(Page page, String key, String context, Throwable ex) {
+            if (failureLedger != null) {
+                failureLedger.record(key, context, ex);
+            }
+            markRowsDone(page, 1, true);
+        }
+
+        void markRowsDone(Page page, int numRows, boolean failed) {
+            if (failed) {
+                numFailedRows.addAndGet(numRows);
+            }
+            if (page.numRowsRemaining.addAndGet(-numRows) > 0) {
+                return;
+            }
+
+            synchronized (this) {
+                page.done = true;
+                while (!pendingPages.isEmpty() && pendingPages.peek().done) {
+                    Page donePage = pendingPages.remove();
+                    if (checkpoint != null) {
+                        checkpoint.markCompleted(donePage.lastKey);
+                    }
+                }
+            }
+        }
+    }
+
+    // Write batch counters, shared by the writer threads.
+    private static class WriteMetrics {
+        final AtomicLong numRowsWritten = new AtomicLong();
+        final AtomicLong numBatches = new AtomicLong();
+        final AtomicLong totalBatchMillis = new AtomicLong();
+        final AtomicLong maxBatchMillis = new AtomicLong();
+
+        // Returns the number of batches so far, including this one.
+        long recordBatch(int numRows, long latencyMillis) {
+            numRowsWritten.addAndGet(numRows);
+            totalBatchMillis.addAndGet(latencyMillis);
+            maxBatchMillis.accumulateAndGet(latencyMillis, Math::max);
+            return numBatches.incrementAndGet();
+        }
+
+        long getAvgBatchMillis() {
+            long batches = numBatches.get();
+            return batches > 0 ? totalBatchMillis.get() / batches : 0;
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package org.sagebionetworks.bridge.helper;
+
+import static org.sagebionetworks.bridge.helper.LogHelper.logInfo;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Ticker;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.LoadingCache;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+import org.sagebionetworks.bridge.rest.exceptions.EntityNotFoundException;
+import org.sagebionetworks.bridge.rest.model.StudyParticipant;
+
+/**
+ * <p>
+ * Size-bounded cache of participants by user ID. Entries are evicted least-recently-used once the cache is full, and
+ * expire after the TTL. Concurrent misses for the same user ID share a single load.
+ * </p>
+ * <p>
+ * Users that don't exist are cached too (negative caching), so scripts that hit the same deleted user many times
+ * don't call Bridge each time. Negative entries have their own, usually shorter, TTL, and re-throw the original
+ * EntityNotFoundException.
+ * </p>
+ */
+@SuppressWarnings("UnstableApiUsage")
+public class ParticipantCache {
+    public static final long DEFAULT_MAX_SIZE = 10000;
+    public static final long DEFAULT_TTL_MILLIS = TimeUnit.MINUTES.toMillis(5);
+    public static final long DEFAULT_NEGATIVE_TTL_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    /** Loads a participant from Bridge. Throws EntityNotFoundException if the user doesn't exist. */
+    public interface Loader {
+        StudyParticipant load(String userId) throws IOException;
+    }
+
+    private final long negativeTtlNanos;
+    private final Ticker ticker;
+    private final LoadingCache<String, Entry> cache;
+
+    /** Creates a participant cache with the default max size and TTLs. */
+    public ParticipantCache(Loader loader) {
+        this(loader, DEFAULT_MAX_SIZE, DEFAULT_TTL_MILLIS, DEFAULT_NEGATIVE_TTL_MILLIS, Ticker.systemTicker());
+    }
+
+    /**
+     * Creates a participant cache.
+     *
+     * @param loader
+     *         loads participants on a cache miss
+     * @param maxSize
+     *         max number of entries, including negative entries
+     * @param ttlMillis
+     *         how long a participant stays cached after it's loaded
+     * @param negativeTtlMillis
+     *         how long a "user does not exist" result stays cached, should be no longer than ttlMillis
+     * @param ticker
+     *         time source, so tests can control expiry
+     */
+    public ParticipantCache(Loader loader, long maxSize, long ttlMillis, long negativeTtlMillis, Ticker ticker) {
+        this.negativeTtlNanos = TimeUnit.MILLISECONDS.toNanos(negativeTtlMillis);
+        this.ticker = ticker;
+        this.cache = CacheBuilder.newBuilder().maximumSize(maxSize).expireAfterWrite(ttlMillis, TimeUnit.MILLISECONDS)
+                .ticker(ticker).recordStats().build(new CacheLoader<String, Entry>() {
+                    @Override
+                    public Entry load(String userId) throws IOException {
+                        try {
+                            return new Entry(loader.load(userId), null, ticker.read());
+                        } catch (EntityNotFoundException ex) {
+                            return new Entry(null, ex, ticker.read());
+                        }
+                    }
+                });
+    }
+
+    /**
+     * Gets the participant for the given user ID, loading it if it's not cached. Throws EntityNotFoundException if the
+     * user doesn't exist, whether or not that result was cached.
+     */
+    public StudyParticipant get(String userId) throws IOException {
+        Entry entry = getEntry(userId);
+        if (entry.notFoundException != null && ticker.read() - entry.loadedAtNanos >= negativeTtlNanos) {
+            // Negative entry is past its TTL. Drop it and load again. If several threads get here at once, only one
+            // of the loads goes to Bridge.
+            cache.asMap().remove(userId, entry);
+            entry = getEntry(userId);
+        }
+
+        if (entry.notFoundException != null) {
+            throw entry.notFoundException;
+        }
+        return entry.participant;
+    }
+
+    // Helper method to unwrap the exceptions from the loading cache.
+    private Entry getEntry(String userId) throws IOException {
+        try {
+            return cache.get(userId);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw new RuntimeException(ex.getCause());
+        } catch (UncheckedExecutionException ex) {
+            if (ex.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) ex.getCause();
+            }
+            throw ex;
+        }
+    }
+
+    /** Removes the given user from the cache, for example after the participant is updated. */
+    public void invalidate(String userId) {
+        cache.invalidate(userId);
+    }
+
+    /** Number of cached entries, including negative entries. */
+    public long size() {
+        return cache.size();
+    }
+
+    /** Hit, miss, eviction, and load time stats. */
+    public CacheStats getStats() {
+        return cache.stats();
+    }
+
+    /** Logs hit rate and load times. */
+    public void logStats() {
+        CacheStats stats = cache.stats();
+        logInfo(String.format("ParticipantCache: size=%d, hits=%d, misses=%d, hitRate=%.1f%%, loads=%d, " +
+                        "loadErrors=%d, avgLoadMillis=%.1f, evictions=%d", cache.size(), stats.hitCount(),
+                stats.missCount(), stats.hitRate() * 100, stats.loadCount(), stats.loadExceptionCount(),
+                stats.averageLoadPenalty() / 1000000.0, stats.evictionCount()));
+    }
+
+    // Cache entry. Exactly one of participant and notFoundException is set.
+    private static class Entry {
+        final StudyParticipant participant;
+        final EntityNotFoundException notFoundException;
+        final long loadedAtNanos;
+
+        Entry(StudyParticipant participant, EntityNotFoundException notFoundException, long loadedAtNanos) {
+            this.participant = participant;
+            this.notFoundException = notFoundException;
+            this.loadedAtNanos = loadedAtNanos;
+        }
+    }
+}
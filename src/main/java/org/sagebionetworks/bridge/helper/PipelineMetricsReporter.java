@@ -0,0 +1,39 @@
+package org.sagebionetworks.bridge.helper;
+
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.collect.ImmutableList;
+
+/** Periodically logs metrics for a set of pipeline stages, so we can see which stage is the bottleneck. */
+public class PipelineMetricsReporter implements AutoCloseable {
+    private final List<PipelineStage<?>> stageList;
+    private final ScheduledExecutorService executor;
+
+    /** Starts reporting metrics for the given stages every periodSeconds. */
+    public PipelineMetricsReporter(int periodSeconds, PipelineStage<?>... stages) {
+        this.stageList = ImmutableList.copyOf(stages);
+        this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "PipelineMetricsReporter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleAtFixedRate(this::logMetrics, periodSeconds, periodSeconds, TimeUnit.SECONDS);
+    }
+
+    /** Logs metrics for all stages. */
+    public void logMetrics() {
+        for (PipelineStage<?> stage : stageList) {
+            stage.logMetrics();
+        }
+    }
+
+    /** Stops the periodic reporting and logs the final metrics. */
+    @Override
+    public void close() {
+        executor.shutdownNow();
+        logMetrics();
+    }
+}
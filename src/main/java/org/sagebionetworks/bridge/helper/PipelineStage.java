@@ -0,0 +1,198 @@
+package org.sagebionetworks.bridge.helper;
+
+import static org.sagebionetworks.bridge.helper.LogHelper.logError;
+import static org.sagebionetworks.bridge.helper.LogHelper.logInfo;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.base.Stopwatch;
+
+/**
+ * <p>
+ * One stage of a pipeline. Items are submitted into a bounded queue and drained by a fixed number of worker threads,
+ * which hand them to the handler in batches of up to batchSize. If the queue is full, submit() blocks, which pushes
+ * back on the upstream stage, so the slowest stage sets the pace of the whole pipeline.
+ * </p>
+ * <p>
+ * Usage: start() the stage, submit() items, then close() to signal there are no more items, and awaitCompletion() to
+ * wait for the workers to drain the queue. Stages are chained by having the handler of one stage submit to the next
+ * stage, and by closing each stage after the previous stage has completed.
+ * </p>
+ */
+public class PipelineStage<T> {
+    private static final long POLL_TIMEOUT_MILLIS = 100;
+
+    /** Handles a batch of items. Exceptions are logged and counted, and don't stop the stage. */
+    public interface BatchHandler<T> {
+        void handle(List<T> batch) throws Exception;
+    }
+
+    // Instance invariants
+    private final String name;
+    private final int numWorkers;
+    private final int batchSize;
+    private final BlockingQueue<T> queue;
+    private final BatchHandler<T> handler;
+    private final CountDownLatch doneLatch;
+
+    // Instance state tracking
+    private final AtomicLong numSubmitted = new AtomicLong();
+    private final AtomicLong numProcessed = new AtomicLong();
+    private final AtomicLong numBatches = new AtomicLong();
+    private final AtomicLong numErrors = new AtomicLong();
+    private final AtomicLong busyNanos = new AtomicLong();
+    private final Stopwatch stopwatch = Stopwatch.createUnstarted();
+    private volatile boolean closed = false;
+    private volatile int maxQueueDepth = 0;
+
+    /**
+     * Constructs a pipeline stage.
+     *
+     * @param name
+     *         stage name, used for logging and metrics
+     * @param numWorkers
+     *         number of worker threads
+     * @param batchSize
+     *         max number of items handed to the handler at once
+     * @param queueCapacity
+     *         max number of items waiting in this stage before submit() blocks
+     * @param handler
+     *         handles each batch
+     */
+    public PipelineStage(String name, int numWorkers, int batchSize, int queueCapacity, BatchHandler<T> handler) {
+        this.name = name;
+        this.numWorkers = numWorkers;
+        this.batchSize = batchSize;
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        this.handler = handler;
+        this.doneLatch = new CountDownLatch(numWorkers);
+    }
+
+    /** Stage name. */
+    public String getName() {
+        return name;
+    }
+
+    /** Starts the worker threads. */
+    public void start() {
+        stopwatch.start();
+        for (int i = 0; i < numWorkers; i++) {
+            Thread worker = new Thread(this::runWorker, name + "-" + i);
+            worker.setDaemon(true);
+            worker.start();
+        }
+    }
+
+    /** Submits an item to this stage. Blocks if the queue is full. */
+    public void submit(T item) throws InterruptedException {
+        if (closed) {
+            throw new IllegalStateException("Stage " + name + " is already closed");
+        }
+        queue.put(item);
+        numSubmitted.incrementAndGet();
+
+        int depth = queue.size();
+        if (depth > maxQueueDepth) {
+            maxQueueDepth = depth;
+        }
+    }
+
+    /** Signals that no more items will be submitted. Workers exit once the queue is drained. */
+    public void close() {
+        closed = true;
+    }
+
+    /** Closes the stage and waits for the workers to finish processing all remaining items. */
+    public void awaitCompletion() throws InterruptedException {
+        close();
+        doneLatch.await();
+        stopwatch.stop();
+    }
+
+    private void runWorker() {
+        List<T> batch = new ArrayList<>(batchSize);
+        try {
+            while (true) {
+                // Take what's available, up to the batch size. If nothing is available, wait a little.
+                queue.drainTo(batch, batchSize);
+                if (batch.isEmpty()) {
+                    T item = queue.poll(POLL_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+                    if (item == null) {
+                        if (closed && queue.isEmpty()) {
+                            // No more work is coming.
+                            break;
+                        }
+                        continue;
+                    }
+                    batch.add(item);
+                    queue.drainTo(batch, batchSize - 1);
+                }
+
+                long startNanos = System.nanoTime();
+                try {
+                    handler.handle(batch);
+                } catch (Exception ex) {
+                    numErrors.incrementAndGet();
+                    logError("Error in stage " + name + " processing batch of " + batch.size() + ": " +
+                            ex.getMessage(), ex);
+                } finally {
+                    busyNanos.addAndGet(System.nanoTime() - startNanos);
+                    numProcessed.addAndGet(batch.size());
+                    numBatches.incrementAndGet();
+                    batch.clear();
+                }
+            }
+        } catch (InterruptedException ex) {
+            logError("Stage " + name + " interrupted", ex);
+            Thread.currentThread().interrupt();
+        } finally {
+            doneLatch.countDown();
+        }
+    }
+
+    /** Number of items submitted to this stage. */
+    public long getNumSubmitted() {
+        return numSubmitted.get();
+    }
+
+    /** Number of items that have gone through the handler, whether or not the handler succeeded. */
+    public long getNumProcessed() {
+        return numProcessed.get();
+    }
+
+    /** Number of batches that failed with an exception. */
+    public long getNumErrors() {
+        return numErrors.get();
+    }
+
+    /** Current number of items waiting in the queue. */
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    /** Highest queue depth seen so far. */
+    public int getMaxQueueDepth() {
+        return maxQueueDepth;
+    }
+
+    /** Logs throughput, queue depth, and how busy the workers are. */
+    public void logMetrics() {
+        long elapsedMillis = stopwatch.elapsed(TimeUnit.MILLISECONDS);
+        long processed = numProcessed.get();
+        double itemsPerSecond = elapsedMillis > 0 ? processed * 1000.0 / elapsedMillis : 0.0;
+
+        // Utilization is the fraction of worker time spent in the handler. A stage near 100% is the bottleneck.
+        double utilization = elapsedMillis > 0 ?
+                TimeUnit.NANOSECONDS.toMillis(busyNanos.get()) / (double) (elapsedMillis * numWorkers) : 0.0;
+
+        logInfo(String.format("Stage %s: processed=%d, batches=%d, errors=%d, itemsPerSec=%.2f, queueDepth=%d, " +
+                        "maxQueueDepth=%d, utilization=%.0f%%", name, processed, numBatches.get(), numErrors.get(),
+                itemsPerSecond, queue.size(), maxQueueDepth, utilization * 100));
+    }
+}
@@ -0,0 +1,268 @@
+package org.sagebionetworks.bridge.helper;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * <p>
+ * Compact binary manifest of the exact keys a purge script will delete. Debug mode writes the manifest, and release
+ * mode can read it back and delete exactly those keys, without repeating any of the discovery work.
+ * </p>
+ * <p>
+ * The file is gzipped and starts with a magic number and format version. Each entry starts with a type byte:
+ * </p>
+ * <ul>
+ *     <li>upload: uploadId, recordId (empty if none), attachment count, attachmentIds. The S3 keys are the upload ID
+ *     in the upload bucket and the attachment IDs in the attachment bucket.</li>
+ *     <li>Synapse rows: tableId, row count, row IDs delta-encoded as var-longs.</li>
+ *     <li>file handle: tableId, fileHandleId as a var-long.</li>
+ *     <li>end: entry counts, so the reader can tell a complete manifest from a truncated one.</li>
+ * </ul>
+ */
+public class PurgeManifest {
+    private static final int MAGIC = 0x50524D46; // "PRMF"
+    private static final short VERSION = 1;
+
+    private static final byte TYPE_END = 0;
+    private static final byte TYPE_UPLOAD = 1;
+    private static final byte TYPE_SYNAPSE_ROWS = 2;
+    private static final byte TYPE_FILE_HANDLE = 3;
+
+    /** Callbacks for each entry in the manifest. Defaults are no-ops, so readers only implement what they need. */
+    public interface Visitor {
+        default void onUpload(String uploadId, String recordId, List<String> attachmentIdList) throws Exception {
+        }
+
+        default void onSynapseRows(String tableId, long[] rowIds) throws Exception {
+        }
+
+        default void onFileHandle(String tableId, String fileHandleId) throws Exception {
+        }
+    }
+
+    /** Writes a manifest. This is thread-safe, so pipeline stages can write concurrently. */
+    public static class Writer implements Closeable {
+        private final File file;
+        private final DataOutputStream out;
+        private long numUploads = 0;
+        private long numRows = 0;
+        private long numFileHandles = 0;
+        private boolean closed = false;
+
+        public Writer(File file) throws IOException {
+            this.file = file;
+            this.out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(
+                    file))));
+            out.writeInt(MAGIC);
+            out.writeShort(VERSION);
+        }
+
+        /** The file this manifest is being written to. */
+        public File getFile() {
+            return file;
+        }
+
+        /** Writes an upload, its record (may be null), and its attachments. */
+        public synchronized void writeUpload(String uploadId, String recordId, List<String> attachmentIdList)
+                throws IOException {
+            out.writeByte(TYPE_UPLOAD);
+            out.writeUTF(uploadId);
+            out.writeUTF(recordId != null ? recordId : "");
+            writeVarLong(out, attachmentIdList.size());
+            for (String attachmentId : attachmentIdList) {
+                out.writeUTF(attachmentId);
+            }
+            numUploads++;
+        }
+
+        /** Writes the first numRowIds row IDs from the array, for the given Synapse table. */
+        public synchronized void writeSynapseRows(String tableId, long[] rowIds, int numRowIds) throws IOException {
+            out.writeByte(TYPE_SYNAPSE_ROWS);
+            out.writeUTF(tableId);
+            writeVarLong(out, numRowIds);
+
+            // Row IDs are usually close together, so deltas are small.
+            long prev = 0;
+            for (int i = 0; i < numRowIds; i++) {
+                writeVarLong(out, zigZag(rowIds[i] - prev));
+                prev = rowIds[i];
+            }
+            numRows += numRowIds;
+        }
+
+        /** Writes a Synapse file handle, referenced from the given table. */
+        public synchronized void writeFileHandle(String tableId, String fileHandleId) throws IOException {
+            out.writeByte(TYPE_FILE_HANDLE);
+            out.writeUTF(tableId);
+            writeVarLong(out, Long.parseLong(fileHandleId));
+            numFileHandles++;
+        }
+
+        /** Writes the end entry and closes the file. Only call this if everything was written successfully. */
+        @Override
+        public synchronized void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            out.writeByte(TYPE_END);
+            writeVarLong(out, numUploads);
+            writeVarLong(out, numRows);
+            writeVarLong(out, numFileHandles);
+            out.close();
+        }
+
+        /**
+         * Closes the file without the end entry, so readers reject it as truncated. Call this instead of close() if
+         * discovery failed, since the manifest might be missing entries. A later close() does nothing.
+         */
+        public synchronized void abort() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            out.close();
+        }
+
+        /** Human-readable summary, for logging. */
+        public synchronized String getSummary() {
+            return "uploads=" + numUploads + ", synapseRows=" + numRows + ", fileHandles=" + numFileHandles;
+        }
+    }
+
+    /**
+     * Reads the manifest from the given file and calls the visitor for each entry, in the order they were written.
+     * Throws if the manifest is truncated or corrupt. The whole file is validated before the visitor is called, so a
+     * bad manifest never gets partially applied.
+     */
+    public static void read(File file, Visitor visitor) throws Exception {
+        validate(file);
+        readEntries(file, visitor);
+    }
+
+    /** Reads the whole manifest without calling any callbacks. Throws if the manifest is truncated or corrupt. */
+    public static void validate(File file) throws IOException {
+        try {
+            readEntries(file, new Visitor() {});
+        } catch (IOException | RuntimeException ex) {
+            throw ex;
+        } catch (Exception ex) {
+            // The no-op visitor doesn't throw, so this should never happen.
+            throw new IOException(ex);
+        }
+    }
+
+    // Helper method to read the manifest and call the visitor for each entry. The end entry is checked last, so this
+    // is only safe to call with a visitor that has side effects after validate() has passed.
+    private static void readEntries(File file, Visitor visitor) throws Exception {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(
+                new FileInputStream(file))))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("File " + file + " is not a purge manifest");
+            }
+            short version = in.readShort();
+            if (version != VERSION) {
+                throw new IOException("Unsupported purge manifest version " + version);
+            }
+
+            long numUploads = 0;
+            long numRows = 0;
+            long numFileHandles = 0;
+            while (true) {
+                byte type;
+                try {
+                    type = in.readByte();
+                } catch (EOFException ex) {
+                    throw new IOException("Purge manifest " + file + " is truncated", ex);
+                }
+
+                switch (type) {
+                    case TYPE_UPLOAD: {
+                        String uploadId = in.readUTF();
+                        String recordId = in.readUTF();
+                        int numAttachments = (int) readVarLong(in);
+                        List<String> attachmentIdList = new ArrayList<>(numAttachments);
+                        for (int i = 0; i < numAttachments; i++) {
+                            attachmentIdList.add(in.readUTF());
+                        }
+                        visitor.onUpload(uploadId, recordId.isEmpty() ? null : recordId, attachmentIdList);
+                        numUploads++;
+                        break;
+                    }
+                    case TYPE_SYNAPSE_ROWS: {
+                        String tableId = in.readUTF();
+                        int count = (int) readVarLong(in);
+                        long[] rowIds = new long[count];
+                        long prev = 0;
+                        for (int i = 0; i < count; i++) {
+                            prev += unZigZag(readVarLong(in));
+                            rowIds[i] = prev;
+                        }
+                        visitor.onSynapseRows(tableId, rowIds);
+                        numRows += count;
+                        break;
+                    }
+                    case TYPE_FILE_HANDLE: {
+                        String tableId = in.readUTF();
+                        String fileHandleId = String.valueOf(readVarLong(in));
+                        visitor.onFileHandle(tableId, fileHandleId);
+                        numFileHandles++;
+                        break;
+                    }
+                    case TYPE_END: {
+                        if (readVarLong(in) != numUploads || readVarLong(in) != numRows ||
+                                readVarLong(in) != numFileHandles) {
+                            throw new IOException("Purge manifest " + file + " entry counts don't match");
+                        }
+                        return;
+                    }
+                    default:
+                        throw new IOException("Unknown entry type " + type + " in purge manifest " + file);
+                }
+            }
+        }
+    }
+
+    // Helper method to write an unsigned var-long, 7 bits at a time.
+    private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    // Helper method to read an unsigned var-long.
+    private static long readVarLong(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.readByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed var-long");
+    }
+
+    // Zig-zag encoding maps small negative deltas to small positive numbers.
+    private static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
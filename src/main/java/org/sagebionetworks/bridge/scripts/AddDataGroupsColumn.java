@@ -2,20 +2,39 @@ package org.sagebionetworks.bridge.scripts;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import com.amazonaws.services.dynamodbv2.AmazonDynamoDBClient;
 import com.amazonaws.services.dynamodbv2.document.DynamoDB;
-import com.amazonaws.services.dynamodbv2.document.Item;
-import com.amazonaws.services.dynamodbv2.document.Table;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Stopwatch;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.RateLimiter;
 import org.sagebionetworks.client.SynapseClient;
 import org.sagebionetworks.client.SynapseClientImpl;
 import org.sagebionetworks.client.exceptions.SynapseException;
+import org.sagebionetworks.repo.model.asynch.AsynchJobType;
+import org.sagebionetworks.repo.model.table.ColumnChange;
 import org.sagebionetworks.repo.model.table.ColumnModel;
 import org.sagebionetworks.repo.model.table.ColumnType;
 import org.sagebionetworks.repo.model.table.TableEntity;
+import org.sagebionetworks.repo.model.table.TableSchemaChangeRequest;
+import org.sagebionetworks.repo.model.table.TableUpdateRequest;
+import org.sagebionetworks.repo.model.table.TableUpdateTransactionRequest;
+
+import org.sagebionetworks.bridge.synapse.SynapseAsyncJobPoller;
+import org.sagebionetworks.bridge.synapse.SynapseTableCatalog;
 
 /**
  * <p>
@@ -25,6 +44,12 @@ import org.sagebionetworks.repo.model.table.TableEntity;
  * <p>
  * Usage: AddDataGroupsColumn [path to config JSON] [study ID]
  * </p>
+ * <p>
+ * For studies with many tables, use bulk mode: AddDataGroupsColumn [path to config JSON] [study ID] bulk. Bulk mode
+ * creates the column model once, and adds it to several tables concurrently using Synapse's asynchronous table
+ * transaction jobs, instead of editing each table entity in turn. It logs how long each table took, and lists the
+ * tables that failed. If any table failed, the script exits with status 1.
+ * </p>
  */
 public class AddDataGroupsColumn {
     private static final ObjectMapper JSON_MAPPER = new ObjectMapper();
@@ -37,14 +62,33 @@ public class AddDataGroupsColumn {
         DATA_GROUPS_COLUMN_MODEL.setMaximumSize(100L);
     }
 
+    // Bulk mode settings. Synapse throttles at 10 requests per second, shared by all worker threads.
+    private static final int BULK_CONCURRENCY = 4;
+    private static final SynapseAsyncJobPoller SCHEMA_CHANGE_POLLER = new SynapseAsyncJobPoller(300,
+            TimeUnit.SECONDS);
+    private static final RateLimiter synapseRateLimiter = RateLimiter.create(10.0);
+
     private static DynamoDB ddbClient;
     private static SynapseClient synapseClient;
-    private static Table synapseMetaTablesDdbTable;
-    private static Table synapseTablesDdbTable;
+    private static SynapseTableCatalog synapseTableCatalog;
 
     public static void main(String[] args) throws IOException, SynapseException {
+        if (args.length == 3 && "bulk".equals(args[2])) {
+            init(args[0]);
+            int numFailed = executeBulk(args[1]);
+            cleanup();
+
+            if (numFailed > 0) {
+                System.out.println("Done with " + numFailed + " failed tables");
+                System.exit(1);
+            }
+            System.out.println("Done");
+            return;
+        }
+
         if (args.length != 2) {
             System.out.println("Usage: AddDataGroupsColumn [path to config JSON] [study ID]");
+            System.out.println("   or: AddDataGroupsColumn [path to config JSON] [study ID] bulk");
             return;
         }
         init(args[0]);
@@ -58,11 +102,9 @@ public class AddDataGroupsColumn {
         // load config JSON
         JsonNode configNode = JSON_MAPPER.readTree(new File(configPath));
 
-        // init ddb
-        String ddbPrefix = configNode.get("ddbPrefix").textValue();
+        // init ddb and the table catalog
         ddbClient = new DynamoDB(new AmazonDynamoDBClient());
-        synapseMetaTablesDdbTable = ddbClient.getTable(ddbPrefix + "SynapseMetaTables");
-        synapseTablesDdbTable = ddbClient.getTable(ddbPrefix + "SynapseTables");
+        synapseTableCatalog = SynapseTableCatalog.fromConfig(ddbClient, configNode);
 
         // init Synapse client
         String synapseUser = configNode.get("synapseUser").textValue();
@@ -77,20 +119,135 @@ public class AddDataGroupsColumn {
     }
 
     public static void execute(String studyId) throws SynapseException {
-        // iterate over all Synapse tables
-        Iterable<Item> synapseMetaTablesDdbIter = synapseMetaTablesDdbTable.scan();
-        for (Item oneSynapseMetaTable : synapseMetaTablesDdbIter) {
-            String tableName = oneSynapseMetaTable.getString("tableName");
-            String synapseTableId = oneSynapseMetaTable.getString("tableId");
-            handleTable(studyId, tableName, synapseTableId);
+        // iterate over this study's Synapse tables
+        for (Map.Entry<String, String> oneTable : synapseTableCatalog.getTablesForStudy(studyId).entrySet()) {
+            handleTable(studyId, oneTable.getKey(), oneTable.getValue());
         }
+    }
+
+    /**
+     * Bulk mode. Creates the dataGroups column model once, then applies a schema change to each of the study's tables
+     * on a pool of worker threads. Logs each table's latency, and a summary at the end. Returns the number of tables
+     * that failed.
+     */
+    public static int executeBulk(String studyId) throws SynapseException {
+        // Column models are immutable, so every table can share the same one.
+        synapseRateLimiter.acquire();
+        String dataGroupsColId = synapseClient.createColumnModel(DATA_GROUPS_COLUMN_MODEL).getId();
+        System.out.println("Created dataGroups column model with ID " + dataGroupsColId);
+
+        Stopwatch totalStopwatch = Stopwatch.createStarted();
+        List<Long> latencyMillisList = Collections.synchronizedList(new ArrayList<>());
+        Set<String> failedTableKeySet = Collections.synchronizedSet(new TreeSet<>());
+        Map<String, String> tablesByKey = synapseTableCatalog.getTablesForStudy(studyId);
+        ExecutorService executor = Executors.newFixedThreadPool(BULK_CONCURRENCY);
+        try {
+            List<Future<?>> futureList = new ArrayList<>();
+            for (Map.Entry<String, String> oneTable : tablesByKey.entrySet()) {
+                String tableKey = oneTable.getKey();
+                String synapseTableId = oneTable.getValue();
+                futureList.add(executor.submit(() -> {
+                    Stopwatch tableStopwatch = Stopwatch.createStarted();
+                    try {
+                        boolean changed = addColumnWithSchemaChange(tableKey, synapseTableId, dataGroupsColId);
+                        long latencyMillis = tableStopwatch.elapsed(TimeUnit.MILLISECONDS);
+                        if (changed) {
+                            latencyMillisList.add(latencyMillis);
+                        }
+                        System.out.println("Finished " + tableKey + " in " + latencyMillis + " ms" +
+                                (changed ? "" : " (already had dataGroups)"));
+                    } catch (SynapseException | RuntimeException ex) {
+                        failedTableKeySet.add(tableKey);
+                        System.out.println("Error processing " + tableKey + " after " +
+                                tableStopwatch.elapsed(TimeUnit.MILLISECONDS) + " ms: " + ex.getMessage());
+                        ex.printStackTrace();
+                    }
+                }));
+            }
 
-        Iterable<Item> synapseTablesDdbIter = synapseTablesDdbTable.scan();
-        for (Item oneSynapseTable : synapseTablesDdbIter) {
-            String schemaKey = oneSynapseTable.getString("schemaKey");
-            String synapseTableId = oneSynapseTable.getString("tableId");
-            handleTable(studyId, schemaKey, synapseTableId);
+            // Futures are in the same order as the tables, so we know which table a future was for.
+            List<String> tableKeyList = new ArrayList<>(tablesByKey.keySet());
+            for (int i = 0; i < futureList.size(); i++) {
+                try {
+                    futureList.get(i).get();
+                } catch (ExecutionException | InterruptedException ex) {
+                    failedTableKeySet.add(tableKeyList.get(i));
+                    System.out.println("Error waiting for table " + tableKeyList.get(i) + ": " + ex.getMessage());
+                    ex.printStackTrace();
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        // Summary.
+        List<Long> sortedLatencyList = new ArrayList<>(latencyMillisList);
+        Collections.sort(sortedLatencyList);
+        int numChanged = sortedLatencyList.size();
+        System.out.print("Added dataGroups to " + numChanged + " of " + tablesByKey.size() + " tables, " +
+                failedTableKeySet.size() + " failed, in " + totalStopwatch.elapsed(TimeUnit.SECONDS) + " seconds");
+        if (numChanged > 0) {
+            System.out.print(", per-table latency min=" + sortedLatencyList.get(0) + " ms, median=" +
+                    sortedLatencyList.get(numChanged / 2) + " ms, max=" + sortedLatencyList.get(numChanged - 1) +
+                    " ms");
+        }
+        System.out.println();
+        if (!failedTableKeySet.isEmpty()) {
+            System.out.println("Failed tables: " + failedTableKeySet);
         }
+        return failedTableKeySet.size();
+    }
+
+    // Helper method to add the dataGroups column to a table with an asynchronous schema change. Returns false if the
+    // table already has the column.
+    private static boolean addColumnWithSchemaChange(String tableKey, String synapseTableId, String dataGroupsColId)
+            throws SynapseException {
+        synapseRateLimiter.acquire();
+        List<ColumnModel> columnModelList = synapseClient.getColumnModelsForTableEntity(synapseTableId);
+
+        // Put it after the externalId column, or at the end if there's no externalId column.
+        List<String> orderedColIdList = new ArrayList<>();
+        boolean addedDataGroups = false;
+        for (ColumnModel oneColumnModel : columnModelList) {
+            String colName = oneColumnModel.getName();
+            if ("dataGroups".equals(colName)) {
+                return false;
+            }
+
+            orderedColIdList.add(oneColumnModel.getId());
+            if ("externalId".equals(colName)) {
+                orderedColIdList.add(dataGroupsColId);
+                addedDataGroups = true;
+            }
+        }
+        if (!addedDataGroups) {
+            orderedColIdList.add(dataGroupsColId);
+        }
+
+        ColumnChange columnChange = new ColumnChange();
+        columnChange.setOldColumnId(null);
+        columnChange.setNewColumnId(dataGroupsColId);
+
+        TableSchemaChangeRequest schemaChangeRequest = new TableSchemaChangeRequest();
+        schemaChangeRequest.setEntityId(synapseTableId);
+        schemaChangeRequest.setChanges(ImmutableList.of(columnChange));
+        schemaChangeRequest.setOrderedColumnIds(orderedColIdList);
+
+        TableUpdateTransactionRequest transactionRequest = new TableUpdateTransactionRequest();
+        transactionRequest.setEntityId(synapseTableId);
+        transactionRequest.setChanges(ImmutableList.<TableUpdateRequest>of(schemaChangeRequest));
+
+        synapseRateLimiter.acquire();
+        String jobToken = synapseClient.startAsynchJob(AsynchJobType.TableTransaction, transactionRequest);
+
+        // Poll until the job is done.
+        SCHEMA_CHANGE_POLLER.waitForResult("adding dataGroups to table " + tableKey + " (" + synapseTableId + ")",
+                () -> {
+                    synapseRateLimiter.acquire();
+                    return synapseClient.getAsyncResult(AsynchJobType.TableTransaction, jobToken,
+                            transactionRequest);
+                });
+        return true;
     }
 
     public static void handleTable(String studyId, String tableKey, String synapseTableId) throws SynapseException {
@@ -1,16 +1,16 @@
 package org.sagebionetworks.bridge.scripts;
 
-import static org.sagebionetworks.bridge.helper.LogHelper.logError;
 import static org.sagebionetworks.bridge.helper.LogHelper.logInfo;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import com.amazonaws.services.dynamodbv2.AmazonDynamoDBClient;
 import com.amazonaws.services.dynamodbv2.document.DynamoDB;
-import com.amazonaws.services.dynamodbv2.document.Item;
-import com.amazonaws.services.dynamodbv2.document.Table;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.collect.ImmutableSet;
@@ -18,16 +18,18 @@ import com.google.common.util.concurrent.RateLimiter;
 import org.sagebionetworks.client.SynapseClient;
 import org.sagebionetworks.client.SynapseClientImpl;
 import org.sagebionetworks.client.exceptions.SynapseException;
-import org.sagebionetworks.client.exceptions.SynapseNotFoundException;
 import org.sagebionetworks.repo.model.ACCESS_TYPE;
-import org.sagebionetworks.repo.model.AccessControlList;
-import org.sagebionetworks.repo.model.ResourceAccess;
 import org.sagebionetworks.repo.model.table.TableEntity;
 
+import org.sagebionetworks.bridge.synapse.AclReconciler;
+import org.sagebionetworks.bridge.synapse.EntityHeaderResolver;
+import org.sagebionetworks.bridge.synapse.SynapseTableCatalog;
+
 /**
  * <p>
  * Backfill script to add BridgeStaff and BridgeAdmin to all Exporter-owned Synapse tables, so we don't have to log in
- * with Exporter account to do dev stuff.
+ * with Exporter account to do dev stuff. Tables are reconciled concurrently with AclReconciler, and each ACL is only
+ * updated if the teams don't already have the right access.
  * </p>
  * <p>
  * To run, use
@@ -45,14 +47,13 @@ public class ExporterPermissionsBackfill {
     private final long bridgeAdminTeamId;
     private final long bridgeStaffTeamId;
     private final DynamoDB ddbClient;
-    private final SynapseClient synapseClient;
-    private final Table synapseMetaTablesDdbTable;
-    private final Table synapseTablesDdbTable;
+    private final AclReconciler aclReconciler;
+    private final SynapseTableCatalog synapseTableCatalog;
 
     // Rate limiter, used to limit the amount of traffic to Synapse. Synapse throttles at 10 requests per second.
     private final RateLimiter rateLimiter = RateLimiter.create(10.0);
 
-    public static void main(String[] args) throws IOException {
+    public static void main(String[] args) throws IOException, InterruptedException, SynapseException {
         if (args.length != 1) {
             logInfo("Usage: SmsRegistrationBackfill [path to config JSON]");
             return;
@@ -70,86 +71,36 @@ public class ExporterPermissionsBackfill {
         backfill.cleanup();
     }
 
-    public ExporterPermissionsBackfill(JsonNode configNode) {
+    public ExporterPermissionsBackfill(JsonNode configNode) throws IOException {
         // Init team IDs.
         bridgeAdminTeamId = configNode.get("bridgeAdminTeamId").longValue();
         bridgeStaffTeamId = configNode.get("bridgeStaffTeamId").longValue();
 
-        // Init DDB.
-        String ddbPrefix = configNode.get("ddbPrefix").textValue();
+        // Init DDB and the table catalog.
         ddbClient = new DynamoDB(new AmazonDynamoDBClient());
-        synapseMetaTablesDdbTable = ddbClient.getTable(ddbPrefix + "SynapseMetaTables");
-        synapseTablesDdbTable = ddbClient.getTable(ddbPrefix + "SynapseTables");
+        synapseTableCatalog = SynapseTableCatalog.fromConfig(ddbClient, configNode);
 
         // init Synapse client
         String synapseUser = configNode.get("synapseUser").textValue();
         String synapseApiKey = configNode.get("synapseApiKey").textValue();
-        synapseClient = new SynapseClientImpl();
+        SynapseClient synapseClient = new SynapseClientImpl();
         synapseClient.setUsername(synapseUser);
         synapseClient.setApiKey(synapseApiKey);
+        aclReconciler = new AclReconciler(synapseClient, rateLimiter, new EntityHeaderResolver(synapseClient,
+                rateLimiter));
     }
 
-    public void execute() {
+    public void execute() throws InterruptedException, SynapseException {
         logInfo("Starting backfill...");
 
-        // Iterate over all Synapse tables.
-        Iterable<Item> synapseMetaTablesDdbIter = synapseMetaTablesDdbTable.scan();
-        for (Item oneSynapseMetaTable : synapseMetaTablesDdbIter) {
-            String tableName = oneSynapseMetaTable.getString("tableName");
-            String synapseTableId = oneSynapseMetaTable.getString("tableId");
-
-            try {
-                handleTable(tableName, synapseTableId);
-            } catch (Exception ex) {
-                logError("Error handling table " + tableName + ": " + ex.getMessage(), ex);
-            }
-        }
-
-        Iterable<Item> synapseTablesDdbIter = synapseTablesDdbTable.scan();
-        for (Item oneSynapseTable : synapseTablesDdbIter) {
-            String schemaKey = oneSynapseTable.getString("schemaKey");
-            String synapseTableId = oneSynapseTable.getString("tableId");
-
-            try {
-                handleTable(schemaKey, synapseTableId);
-            } catch (Exception ex) {
-                logError("Error handling table " + schemaKey + ": " + ex.getMessage(), ex);
-            }
-        }
-    }
-
-    private void handleTable(String tableKey, String synapseTableId) throws SynapseException {
-        // Need 3 permits, 1 to check if the table exists, 1 to get existing ACls, 1 to update ACLs.
-        rateLimiter.acquire(3);
-
-        // Check if table exists.
-        try {
-            synapseClient.getEntity(synapseTableId, TableEntity.class);
-        } catch (SynapseNotFoundException ex) {
-            logInfo("Table " + tableKey + " (" + synapseTableId + ") doesn't exist, skipping...");
-            return;
+        // Add BridgeAdmin and BridgeStaff teams to all Synapse tables.
+        List<AclReconciler.Target> targetList = new ArrayList<>();
+        for (Map.Entry<String, String> oneTable : synapseTableCatalog.getAllTables().entrySet()) {
+            targetList.add(new AclReconciler.Target(oneTable.getValue(), "Table " + oneTable.getKey())
+                    .withAccess(bridgeAdminTeamId, ACCESS_TYPE_ADMIN)
+                    .withAccess(bridgeStaffTeamId, ACCESS_TYPE_READ).withEntityType(TableEntity.class));
         }
-
-        logInfo("Processing " + tableKey);
-
-        // ResourceAccess is a mutable object, but the Synapse API takes them in a Set. This is a little weird.
-        // IMPORTANT: Do not modify ResourceAccess objects after adding them to the set. This will break the set.
-        AccessControlList acl = synapseClient.getACL(synapseTableId);
-        Set<ResourceAccess> resourceAccessSet = acl.getResourceAccess();
-
-        // BridgeAdmin Team.
-        ResourceAccess bridgeAdminAccess = new ResourceAccess();
-        bridgeAdminAccess.setPrincipalId(bridgeAdminTeamId);
-        bridgeAdminAccess.setAccessType(ACCESS_TYPE_ADMIN);
-        resourceAccessSet.add(bridgeAdminAccess);
-
-        // BridgeStaff Team.
-        ResourceAccess bridgeStaffAccess = new ResourceAccess();
-        bridgeStaffAccess.setPrincipalId(bridgeStaffTeamId);
-        bridgeStaffAccess.setAccessType(ACCESS_TYPE_READ);
-        resourceAccessSet.add(bridgeStaffAccess);
-
-        synapseClient.updateACL(acl);
+        aclReconciler.reconcile(targetList);
     }
 
     public void cleanup() {
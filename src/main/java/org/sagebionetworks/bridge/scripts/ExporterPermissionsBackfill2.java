@@ -5,9 +5,9 @@ import static org.sagebionetworks.bridge.helper.LogHelper.logInfo;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
-import java.util.stream.Collectors;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
@@ -16,11 +16,8 @@ import com.google.common.util.concurrent.RateLimiter;
 import org.sagebionetworks.client.SynapseClient;
 import org.sagebionetworks.client.SynapseClientImpl;
 import org.sagebionetworks.client.exceptions.SynapseException;
-import org.sagebionetworks.client.exceptions.SynapseNotFoundException;
 import org.sagebionetworks.repo.model.ACCESS_TYPE;
-import org.sagebionetworks.repo.model.AccessControlList;
 import org.sagebionetworks.repo.model.Project;
-import org.sagebionetworks.repo.model.ResourceAccess;
 import org.sagebionetworks.repo.model.util.ModelConstants;
 
 import org.sagebionetworks.bridge.helper.BridgeHelper;
@@ -28,6 +25,8 @@ import org.sagebionetworks.bridge.rest.ClientManager;
 import org.sagebionetworks.bridge.rest.model.App;
 import org.sagebionetworks.bridge.rest.model.ClientInfo;
 import org.sagebionetworks.bridge.rest.model.SignIn;
+import org.sagebionetworks.bridge.synapse.AclReconciler;
+import org.sagebionetworks.bridge.synapse.EntityHeaderResolver;
 
 /**
  * <p>
@@ -35,6 +34,10 @@ import org.sagebionetworks.bridge.rest.model.SignIn;
  * first remove the Bridge Admin and Staff teams from the tables' permissions, then we add them to the study.
  * </p>
  * <p>
+ * Study projects are looked up in Bridge first, then reconciled concurrently with AclReconciler, which only updates a
+ * project's ACL if the teams don't already have the right access.
+ * </p>
+ * <p>
  * See https://sagebionetworks.jira.com/browse/BRIDGE-2396 for more details.
  * </p>
  * <p>
@@ -51,13 +54,13 @@ public class ExporterPermissionsBackfill2 {
 
     private final long bridgeAdminTeamId;
     private final long bridgeStaffTeamId;
+    private final AclReconciler aclReconciler;
     private final BridgeHelper bridgeHelper;
-    private final SynapseClient synapseClient;
 
     // Rate limiter, used to limit the amount of traffic to Synapse. Synapse throttles at 10 requests per second.
     private final RateLimiter rateLimiter = RateLimiter.create(10.0);
 
-    public static void main(String[] args) throws IOException {
+    public static void main(String[] args) throws IOException, InterruptedException, SynapseException {
         if (args.length != 1) {
             logInfo("Usage: ExporterPermissionsBackfill2 [path to config JSON]");
             return;
@@ -90,74 +93,38 @@ public class ExporterPermissionsBackfill2 {
         // init Synapse client
         String synapseUser = configNode.get("synapseUser").textValue();
         String synapseApiKey = configNode.get("synapseApiKey").textValue();
-        synapseClient = new SynapseClientImpl();
+        SynapseClient synapseClient = new SynapseClientImpl();
         synapseClient.setUsername(synapseUser);
         synapseClient.setApiKey(synapseApiKey);
+        aclReconciler = new AclReconciler(synapseClient, rateLimiter, new EntityHeaderResolver(synapseClient,
+                rateLimiter));
     }
 
-    public void addTeamsToStudies() throws IOException {
+    public void addTeamsToStudies() throws IOException, InterruptedException, SynapseException {
         logInfo("Adding teams to studies...");
 
-        // Iterate over studies.
+        // Get the Synapse project for each study. These are Bridge calls, so they don't count against the Synapse
+        // rate limit.
+        List<AclReconciler.Target> targetList = new ArrayList<>();
         List<App> studySummaryList = bridgeHelper.getAppSummaries();
         for (App studySummary : studySummaryList) {
             String studyId = studySummary.getIdentifier();
             try {
-                handleStudy(studyId);
+                App study = bridgeHelper.getApp(studyId);
+                String projectId = study.getSynapseProjectId();
+                if (projectId == null) {
+                    logInfo("Study " + studyId + " has no Synapse project, skipping...");
+                    continue;
+                }
+                targetList.add(new AclReconciler.Target(projectId, "Study " + studyId + "'s configured project")
+                        .withAccess(bridgeAdminTeamId, ACCESS_TYPE_ADMIN)
+                        .withAccess(bridgeStaffTeamId, ACCESS_TYPE_READ).withEntityType(Project.class));
             } catch (Exception ex) {
                 logError("Error handling study " + studyId + ": " + ex.getMessage(), ex);
             }
         }
-    }
-
-    private void handleStudy(String studyId) throws IOException, SynapseException {
-        // Need 3 permits, 1 to check if the Synapse project exists, 1 to get existing ACls, 1 to update ACLs.
-        rateLimiter.acquire(3);
-
-        // Get Synapse project from study and check if project exists.
-        App study = bridgeHelper.getApp(studyId);
-        String projectId = study.getSynapseProjectId();
-        if (projectId == null) {
-            logInfo("Study " + studyId + " has no Synapse project, skipping...");
-            return;
-        }
-        try {
-            synapseClient.getEntity(projectId, Project.class);
-        } catch (SynapseNotFoundException ex) {
-            logInfo("Study " + studyId + "'s configured project " + projectId + " doesn't exist, skipping...");
-            return;
-        }
-
-        logInfo("Processing study " + studyId);
-
-        // ResourceAccess is a mutable object, but the Synapse API takes them in a Set. This is a little weird.
-        // IMPORTANT: Do not modify ResourceAccess objects after adding them to the set. This will break the set.
-        boolean isModified = false;
-        AccessControlList acl = synapseClient.getACL(projectId);
-        Set<ResourceAccess> resourceAccessSet = acl.getResourceAccess();
-        Set<Long> principalIdSet = resourceAccessSet.stream().map(ResourceAccess::getPrincipalId)
-                .collect(Collectors.toSet());
-
-        // BridgeAdmin Team.
-        if (!principalIdSet.contains(bridgeAdminTeamId)) {
-            ResourceAccess bridgeAdminAccess = new ResourceAccess();
-            bridgeAdminAccess.setPrincipalId(bridgeAdminTeamId);
-            bridgeAdminAccess.setAccessType(ACCESS_TYPE_ADMIN);
-            resourceAccessSet.add(bridgeAdminAccess);
-            isModified = true;
-        }
 
-        // BridgeStaff Team.
-        if (!principalIdSet.contains(bridgeStaffTeamId)) {
-            ResourceAccess bridgeStaffAccess = new ResourceAccess();
-            bridgeStaffAccess.setPrincipalId(bridgeStaffTeamId);
-            bridgeStaffAccess.setAccessType(ACCESS_TYPE_READ);
-            resourceAccessSet.add(bridgeStaffAccess);
-            isModified = true;
-        }
-
-        if (isModified) {
-            synapseClient.updateACL(acl);
-        }
+        // Add BridgeAdmin and BridgeStaff teams to the projects.
+        aclReconciler.reconcile(targetList);
     }
 }
@@ -3,7 +3,12 @@ package org.sagebionetworks.bridge.scripts;
 import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
-import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 
 import au.com.bytecode.opencsv.CSVReader;
@@ -13,40 +18,78 @@ import com.google.common.base.Charsets;
 import com.google.common.base.Joiner;
 import com.google.common.base.Stopwatch;
 import com.google.common.io.Files;
-import org.apache.commons.lang3.RandomStringUtils;
 import org.joda.time.DateTime;
 import org.sagebionetworks.client.SynapseClient;
 import org.sagebionetworks.client.SynapseClientImpl;
 import org.sagebionetworks.client.exceptions.SynapseException;
-import org.sagebionetworks.client.exceptions.SynapseResultNotReadyException;
-import org.sagebionetworks.repo.model.file.FileHandle;
 import org.sagebionetworks.repo.model.table.DownloadFromTableResult;
 
 import org.sagebionetworks.bridge.exceptions.BridgeSynapseException;
+import org.sagebionetworks.bridge.helper.CheckpointFile;
+import org.sagebionetworks.bridge.synapse.FileHandleDedupeCache;
+import org.sagebionetworks.bridge.synapse.FileHandleUploader;
+import org.sagebionetworks.bridge.synapse.SynapseAsyncJobPoller;
 import org.sagebionetworks.bridge.synapse.SynapseHelper;
 
 /**
  * <p>
- * Script to move FitBit heart rate data from a LargeText to a FileHandle.
+ * Script to move FitBit heart rate data from a LargeText to a FileHandle. File handles are uploaded on a bounded pool
+ * of worker threads, so throughput scales with the number of concurrent uploads rather than upload latency. Rows are
+ * still written to the new table in their original order. Dataset values are uploaded straight from memory, so there's
+ * no temp file per row.
  * </p>
  * <p>
- * Usage: Usage: FitBitBackfill [path to config JSON] [table ID]
+ * If "fileHandleDedupeIndexDir" is set in the config, identical dataset values share one file handle. Their
+ * SHA-256 hashes are kept in an index file in that dir, one per Synapse user and table, so reruns against the same
+ * table reuse file handles from earlier runs too. Each file handle from an earlier run is looked up before it's reused.
+ * Since deduped file handles are shared between rows, don't run PurgeStudySynapseDataByDate against the new table.
+ * </p>
+ * <p>
+ * In chunked mode, the new table is uploaded in chunks as rows complete, instead of all at the end. Each committed
+ * chunk is checkpointed, so a failed run can be rerun and picks up after the last committed chunk.
+ * </p>
+ * <p>
+ * Usage: FitBitBackfill [path to config JSON] [table ID] [optional: chunked]
  */
 public class FitBitBackfill {
     private static final ObjectMapper JSON_MAPPER = new ObjectMapper();
     private static final int REPORT_INTERVAL = 25;
     private static final Joiner COLUMN_JOINER = Joiner.on('\t').useForNull("");
 
+    // Number of concurrent file handle uploads. Can be overridden with "fileHandleUploadConcurrency" in the config.
+    private static final int DEFAULT_UPLOAD_CONCURRENCY = 8;
+
+    // Max rows in flight, per upload thread. This bounds memory if one slow upload holds up the rows behind it.
+    private static final int MAX_ROWS_IN_FLIGHT_PER_THREAD = 4;
+
+    // Deadline for Synapse async jobs, such as the table download. Can be overridden with "synapseJobDeadlineMinutes"
+    // in the config.
+    private static final long DEFAULT_SYNAPSE_JOB_DEADLINE_MINUTES = 30;
+
+    // Rows per chunk in chunked mode. Can be overridden with "uploadChunkSize" in the config.
+    private static final int DEFAULT_CHUNK_SIZE = 5000;
+
     private static SynapseClient synapseClient;
     private static SynapseHelper synapseHelper;
+    private static FileHandleUploader fileHandleUploader;
+    private static File fileHandleDedupeIndexDir;
+    private static FileHandleDedupeCache fileHandleDedupeCache;
+    private static String synapseUser;
+    private static int uploadConcurrency;
+    private static int chunkSize;
+    private static SynapseAsyncJobPoller synapseJobPoller;
 
     public static void main(String[] args) throws BridgeSynapseException, IOException, SynapseException {
-        if (args.length != 2) {
-            System.out.println("Usage: AddDataGroupsColumn [path to config JSON] [study ID]");
+        if (args.length != 2 && !(args.length == 3 && "chunked".equals(args[2]))) {
+            System.out.println("Usage: FitBitBackfill [path to config JSON] [table ID] [optional: chunked]");
             return;
         }
         init(args[0]);
-        execute(args[1]);
+        if (args.length == 3) {
+            executeChunked(args[1], chunkSize);
+        } else {
+            execute(args[1]);
+        }
         cleanup();
 
         System.out.println("Done");
@@ -57,7 +100,7 @@ public class FitBitBackfill {
         JsonNode configNode = JSON_MAPPER.readTree(new File(configPath));
 
         // init Synapse client
-        String synapseUser = configNode.get("synapseUser").textValue();
+        synapseUser = configNode.get("synapseUser").textValue();
         String synapseApiKey = configNode.get("synapseApiKey").textValue();
         synapseClient = new SynapseClientImpl();
         synapseClient.setUsername(synapseUser);
@@ -66,10 +109,35 @@ public class FitBitBackfill {
         // init Synapse helper
         synapseHelper = new SynapseHelper();
         synapseHelper.setSynapseClient(synapseClient);
-    }
+        fileHandleUploader = new FileHandleUploader(synapseClient);
+
+        uploadConcurrency = DEFAULT_UPLOAD_CONCURRENCY;
+        if (configNode.hasNonNull("fileHandleUploadConcurrency")) {
+            uploadConcurrency = configNode.get("fileHandleUploadConcurrency").intValue();
+        }
 
-    public static void cleanup() {
+        long synapseJobDeadlineMinutes = DEFAULT_SYNAPSE_JOB_DEADLINE_MINUTES;
+        if (configNode.hasNonNull("synapseJobDeadlineMinutes")) {
+            synapseJobDeadlineMinutes = configNode.get("synapseJobDeadlineMinutes").longValue();
+        }
+        synapseJobPoller = new SynapseAsyncJobPoller(synapseJobDeadlineMinutes, TimeUnit.MINUTES);
+
+        chunkSize = DEFAULT_CHUNK_SIZE;
+        if (configNode.hasNonNull("uploadChunkSize")) {
+            chunkSize = configNode.get("uploadChunkSize").intValue();
+        }
+
+        // Dedupe is optional. Without an index dir, every row gets its own file handle.
+        if (configNode.hasNonNull("fileHandleDedupeIndexDir")) {
+            fileHandleDedupeIndexDir = new File(configNode.get("fileHandleDedupeIndexDir").textValue());
+        }
+    }
 
+    public static void cleanup() throws IOException {
+        if (fileHandleDedupeCache != null) {
+            fileHandleDedupeCache.close();
+        }
+        fileHandleUploader.close();
     }
 
     public static void execute(String tableId) throws BridgeSynapseException, IOException, SynapseException {
@@ -78,10 +146,23 @@ public class FitBitBackfill {
         logWithTimestamp("Making temp dir " + tempDir.getAbsolutePath());
         File oldCsvFile = new File(tempDir, "HeartRate.old.csv");
         File newCsvFile = new File(tempDir, "HeartRate.new.csv");
+        openDedupeCache(tableId);
 
         // Download table.
         downloadTable(tableId, oldCsvFile);
-        processTable(tempDir, oldCsvFile, newCsvFile);
+        try (PrintWriter newCsvWriter = new PrintWriter(Files.newWriter(newCsvFile, Charsets.UTF_8))) {
+            processTable(oldCsvFile, 0, new RowWriter() {
+                @Override
+                public void writeHeaders(String[] headers) {
+                    newCsvWriter.println(COLUMN_JOINER.join(headers));
+                }
+
+                @Override
+                public void writeRow(String[] row) {
+                    newCsvWriter.println(COLUMN_JOINER.join(row));
+                }
+            });
+        }
 
         logWithTimestamp("Uploading to " + tableId);
         synapseHelper.uploadTsvFileToTable(tableId, newCsvFile);
@@ -89,42 +170,83 @@ public class FitBitBackfill {
         logWithTimestamp("Done");
     }
 
-    private static void downloadTable(String tableId, File destinationFile) throws SynapseException {
-        logWithTimestamp("Downloading from table " + tableId);
+    /**
+     * Chunked version of execute(). Transformed rows are flushed in chunks of chunkSize rows, and each chunk is
+     * uploaded with its own append job as soon as it's full. After each chunk is committed, the number of committed
+     * rows is checkpointed. The downloaded table is kept in a work dir next to the checkpoint, so a rerun resumes
+     * after the last committed chunk instead of starting over.
+     */
+    public static void executeChunked(String tableId, int chunkSize) throws BridgeSynapseException, IOException,
+            SynapseException {
+        File workDir = new File("FitBitBackfill-" + tableId);
+        if (!workDir.exists() && !workDir.mkdirs()) {
+            throw new IOException("Couldn't create work dir " + workDir.getAbsolutePath());
+        }
+        File oldCsvFile = new File(workDir, "HeartRate.old.csv");
+        File chunkFile = new File(workDir, "HeartRate.chunk.csv");
+        File checkpointFile = new File(workDir, "FitBitBackfill.checkpoint");
 
-        // Query the table.
-        String jobToken = synapseClient.downloadCsvFromTableAsyncStart("select * from " + tableId +
-                " where \"dataset.old\" is not null", true, true, null, tableId);
-        DownloadFromTableResult downloadResult = null;
-        for (int i = 0; i < 6; i++) {
-            try {
-                Thread.sleep(5000);
-            } catch (InterruptedException ex) {
-                ex.printStackTrace();
+        // The checkpoint is only meaningful against the download it was made from. If the download is missing, start
+        // over with a new download and a new checkpoint.
+        if (!oldCsvFile.exists()) {
+            if (checkpointFile.exists() && !checkpointFile.delete()) {
+                throw new IOException("Couldn't delete stale checkpoint " + checkpointFile.getAbsolutePath());
             }
+            File downloadingFile = new File(workDir, "HeartRate.old.csv.tmp");
+            downloadTable(tableId, downloadingFile);
+            Files.move(downloadingFile, oldCsvFile);
+        } else {
+            logWithTimestamp("Reusing downloaded table " + oldCsvFile.getAbsolutePath());
+        }
 
-            try {
-                downloadResult = synapseClient.downloadCsvFromTableAsyncGet(jobToken, tableId);
-            } catch (SynapseResultNotReadyException ex) {
-                // squelch
+        openDedupeCache(tableId);
+        try (CheckpointFile checkpoint = new CheckpointFile(checkpointFile)) {
+            long rowsCommitted = 0;
+            if (checkpoint.getLastCompletedKey() != null) {
+                rowsCommitted = Long.parseLong(checkpoint.getLastCompletedKey());
             }
-            if (downloadResult != null) {
-                break;
+
+            try (ChunkedRowWriter rowWriter = new ChunkedRowWriter(tableId, chunkFile, chunkSize, rowsCommitted,
+                    checkpoint)) {
+                processTable(oldCsvFile, rowsCommitted, rowWriter);
             }
         }
-        if (downloadResult == null) {
-            throw new RuntimeException("Unable to query table");
+
+        logWithTimestamp("Done");
+    }
+
+    // Helper method to open the dedupe index for this user and table, if dedupe is enabled. File handles from another
+    // user or table are never reused, even if the content matches.
+    private static void openDedupeCache(String tableId) throws IOException {
+        if (fileHandleDedupeIndexDir == null || fileHandleDedupeCache != null) {
+            return;
+        }
+        if (!fileHandleDedupeIndexDir.exists() && !fileHandleDedupeIndexDir.mkdirs()) {
+            throw new IOException("Couldn't create dedupe index dir " + fileHandleDedupeIndexDir.getAbsolutePath());
         }
+        File dedupeIndexFile = new File(fileHandleDedupeIndexDir, "FitBitBackfill-" + synapseUser + "-" + tableId +
+                ".dedupe.tsv");
+        logWithTimestamp("Using dedupe index " + dedupeIndexFile.getAbsolutePath());
+        fileHandleDedupeCache = new FileHandleDedupeCache(fileHandleUploader, dedupeIndexFile);
+    }
+
+    private static void downloadTable(String tableId, File destinationFile) throws SynapseException {
+        logWithTimestamp("Downloading from table " + tableId);
+
+        // Query the table.
+        String jobToken = synapseClient.downloadCsvFromTableAsyncStart("select * from " + tableId +
+                " where \"dataset.old\" is not null", true, true, null, tableId);
+        DownloadFromTableResult downloadResult = synapseJobPoller.waitForResult("CSV download of table " + tableId,
+                () -> synapseClient.downloadCsvFromTableAsyncGet(jobToken, tableId));
 
         // Download the result.
         synapseClient.downloadFromFileHandleTemporaryUrl(downloadResult.getResultsFileHandleId(), destinationFile);
     }
 
-    private static void processTable(File tempDir, File oldCsvTable, File newCsvFile) throws IOException, SynapseException {
+    private static void processTable(File oldCsvTable, long rowsToSkip, RowWriter rowWriter) throws IOException {
         logWithTimestamp("Starting to process table");
 
-        try (CSVReader oldCsvReader = new CSVReader(Files.newReader(oldCsvTable, Charsets.UTF_8));
-                PrintWriter newCsvWriter = new PrintWriter(Files.newWriter(newCsvFile, Charsets.UTF_8))) {
+        try (CSVReader oldCsvReader = new CSVReader(Files.newReader(oldCsvTable, Charsets.UTF_8))) {
             // Find headers for dataset.old and dataset.
             String[] headers = oldCsvReader.readNext();
             Integer datasetOldIdx = null;
@@ -143,55 +265,202 @@ public class FitBitBackfill {
             if (datasetNewIdx == null) {
                 throw new RuntimeException("Couldn't find \"dataset\" column");
             }
+            int oldIdx = datasetOldIdx;
+            int newIdx = datasetNewIdx;
 
             // Copy over headers.
-            newCsvWriter.println(COLUMN_JOINER.join(headers));
+            rowWriter.writeHeaders(headers);
 
-            // Process each row.
+            // Skip rows that were already committed by a previous run.
+            for (long i = 0; i < rowsToSkip; i++) {
+                if (oldCsvReader.readNext() == null) {
+                    break;
+                }
+            }
+            if (rowsToSkip > 0) {
+                logWithTimestamp("Skipped " + rowsToSkip + " rows committed by a previous run");
+            }
+
+            // Process each row. Rows are transformed on the upload pool. Futures are kept in a queue in row order, and
+            // we always write the oldest row first, so the output order matches the input.
             Stopwatch stopwatch = Stopwatch.createStarted();
             int rowsProcessed = 0;
-            String[] oldRow;
-            while ((oldRow = oldCsvReader.readNext()) != null) {
-                String[] newRow = new String[numColumns];
-
-                // Write the old dataset value as a file.
-                String datasetFilename = "dataset" + RandomStringUtils.randomAlphabetic(4);
-                String datasetValue = oldRow[datasetOldIdx];
-                File datasetFile = new File(tempDir, datasetFilename);
-                try (Writer datasetWriter = Files.newWriter(datasetFile, Charsets.UTF_8)) {
-                    datasetWriter.write(datasetValue);
-                }
+            int rowsRead = 0;
+            int maxRowsInFlight = uploadConcurrency * MAX_ROWS_IN_FLIGHT_PER_THREAD;
+            Deque<Future<String[]>> pendingRowQueue = new ArrayDeque<>();
+            ExecutorService uploadExecutor = Executors.newFixedThreadPool(uploadConcurrency);
+            try {
+                String[] oldRow;
+                while ((oldRow = oldCsvReader.readNext()) != null) {
+                    String[] rowToTransform = oldRow;
+                    String datasetFileName = "dataset" + rowsRead;
+                    pendingRowQueue.add(uploadExecutor.submit(() -> transformRow(rowToTransform, numColumns,
+                            datasetFileName, oldIdx, newIdx)));
+                    rowsRead++;
 
-                // Upload the dataset value as a file handle.
-                FileHandle fileHandle = synapseHelper.createFileHandleWithRetry(datasetFile);
-
-                // Copy columns.
-                for (int i = 0; i < numColumns; i++) {
-                    if (i == datasetOldIdx) {
-                        // blank out the old column
-                        newRow[i] = null;
-                    } else if (i == datasetNewIdx) {
-                        // new column is a file handle ID
-                        newRow[i] = fileHandle.getId();
-                    } else {
-                        // everything else is copied verbatim
-                        newRow[i] = oldRow[i];
+                    // If too many rows are in flight, wait for the oldest one.
+                    while (pendingRowQueue.size() >= maxRowsInFlight) {
+                        rowWriter.writeRow(waitForRow(pendingRowQueue.remove()));
+                        rowsProcessed++;
+                        logProgress(rowsProcessed, stopwatch);
                     }
                 }
 
-                // Write row.
-                newCsvWriter.println(COLUMN_JOINER.join(newRow));
-
-                // Logging.
-                rowsProcessed++;
-                if (rowsProcessed % REPORT_INTERVAL == 0) {
-                    logWithTimestamp("Processed " + rowsProcessed + " rows in " +
-                            stopwatch.elapsed(TimeUnit.SECONDS) + " seconds...");
+                // Drain the remaining rows.
+                while (!pendingRowQueue.isEmpty()) {
+                    rowWriter.writeRow(waitForRow(pendingRowQueue.remove()));
+                    rowsProcessed++;
+                    logProgress(rowsProcessed, stopwatch);
                 }
+            } finally {
+                uploadExecutor.shutdownNow();
             }
 
             logWithTimestamp("Finished processing " + rowsProcessed + " rows in " +
                     stopwatch.elapsed(TimeUnit.SECONDS) + " seconds...");
+            if (fileHandleDedupeCache != null) {
+                logWithTimestamp("Uploaded " + fileHandleDedupeCache.getNumUploads() + " file handles, reused " +
+                        fileHandleDedupeCache.getNumHits() + " duplicates");
+            }
+        }
+    }
+
+    // Helper method to upload the old dataset value as a file handle and return the new row. This runs on the upload
+    // pool.
+    private static String[] transformRow(String[] oldRow, int numColumns, String datasetFileName, int datasetOldIdx,
+            int datasetNewIdx) throws IOException, SynapseException {
+        // Upload the dataset value as a file handle, straight from memory, unless it's a duplicate.
+        byte[] datasetContent = oldRow[datasetOldIdx].getBytes(Charsets.UTF_8);
+        String fileHandleId;
+        if (fileHandleDedupeCache != null) {
+            fileHandleId = fileHandleDedupeCache.getOrCreateFileHandleId(datasetContent, datasetFileName,
+                    "text/plain");
+        } else {
+            fileHandleId = fileHandleUploader.createFileHandle(datasetContent, datasetFileName, "text/plain")
+                    .getId();
+        }
+
+        // Copy columns.
+        String[] newRow = new String[numColumns];
+        for (int i = 0; i < numColumns; i++) {
+            if (i == datasetOldIdx) {
+                // blank out the old column
+                newRow[i] = null;
+            } else if (i == datasetNewIdx) {
+                // new column is a file handle ID
+                newRow[i] = fileHandleId;
+            } else {
+                // everything else is copied verbatim
+                newRow[i] = oldRow[i];
+            }
+        }
+        return newRow;
+    }
+
+    // Helper method to wait for a transformed row. Any failure fails the whole backfill, same as before, since we
+    // can't upload a table with missing rows.
+    private static String[] waitForRow(Future<String[]> rowFuture) throws IOException {
+        try {
+            return rowFuture.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for row", ex);
+        } catch (ExecutionException ex) {
+            throw new IOException("Error transforming row: " + ex.getCause().getMessage(), ex.getCause());
+        }
+    }
+
+    private static void logProgress(int rowsProcessed, Stopwatch stopwatch) {
+        if (rowsProcessed % REPORT_INTERVAL == 0) {
+            logWithTimestamp("Processed " + rowsProcessed + " rows in " + stopwatch.elapsed(TimeUnit.SECONDS) +
+                    " seconds...");
+        }
+    }
+
+    // Destination for transformed rows. Rows are written in their original order, on the main thread.
+    private interface RowWriter {
+        void writeHeaders(String[] headers) throws IOException;
+
+        void writeRow(String[] row) throws IOException;
+    }
+
+    // Writes rows to a chunk file and uploads it to the table every chunkSize rows. Each upload is its own append job.
+    // After the upload, the total committed rows are checkpointed and the chunk file is reused for the next chunk.
+    private static class ChunkedRowWriter implements RowWriter, AutoCloseable {
+        private final String tableId;
+        private final File chunkFile;
+        private final int chunkSize;
+        private final CheckpointFile checkpoint;
+        private long rowsCommitted;
+        private String headerLine;
+        private PrintWriter chunkWriter;
+        private int rowsInChunk = 0;
+
+        ChunkedRowWriter(String tableId, File chunkFile, int chunkSize, long rowsCommitted,
+                CheckpointFile checkpoint) {
+            this.tableId = tableId;
+            this.chunkFile = chunkFile;
+            this.chunkSize = chunkSize;
+            this.rowsCommitted = rowsCommitted;
+            this.checkpoint = checkpoint;
+        }
+
+        @Override
+        public void writeHeaders(String[] headers) {
+            headerLine = COLUMN_JOINER.join(headers);
+        }
+
+        @Override
+        public void writeRow(String[] row) throws IOException {
+            if (chunkWriter == null) {
+                // Each chunk is a complete TSV, with its own headers.
+                chunkWriter = new PrintWriter(Files.newWriter(chunkFile, Charsets.UTF_8));
+                chunkWriter.println(headerLine);
+            }
+            chunkWriter.println(COLUMN_JOINER.join(row));
+            rowsInChunk++;
+
+            if (rowsInChunk >= chunkSize) {
+                commitChunk();
+            }
+        }
+
+        // Uploads the last partial chunk, if there is one. If a chunk upload already failed, the chunk file is closed
+        // and its rows aren't checkpointed, so there's nothing to upload. The next run starts again from the last
+        // checkpoint.
+        @Override
+        public void close() throws IOException {
+            if (chunkWriter != null && rowsInChunk > 0) {
+                commitChunk();
+            }
+        }
+
+        private void commitChunk() throws IOException {
+            // PrintWriter swallows errors, so check before we upload a truncated chunk.
+            boolean hasError = chunkWriter.checkError();
+            chunkWriter.close();
+            chunkWriter = null;
+            if (hasError) {
+                throw new IOException("Error writing chunk file " + chunkFile.getAbsolutePath());
+            }
+
+            logWithTimestamp("Uploading chunk of " + rowsInChunk + " rows to " + tableId);
+            try {
+                synapseHelper.uploadTsvFileToTable(tableId, chunkFile);
+            } catch (BridgeSynapseException ex) {
+                throw uploadError(ex);
+            } catch (SynapseException ex) {
+                throw uploadError(ex);
+            }
+
+            rowsCommitted += rowsInChunk;
+            rowsInChunk = 0;
+            checkpoint.markCompleted(String.valueOf(rowsCommitted));
+            logWithTimestamp("Committed " + rowsCommitted + " rows");
+        }
+
+        private IOException uploadError(Exception ex) {
+            return new IOException("Error uploading chunk after row " + rowsCommitted + ": " + ex.getMessage(), ex);
         }
     }
 
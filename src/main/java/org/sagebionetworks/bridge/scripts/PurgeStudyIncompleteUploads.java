@@ -2,44 +2,127 @@ package org.sagebionetworks.bridge.scripts;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
 import java.util.concurrent.TimeUnit;
 
 import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
 import com.amazonaws.services.dynamodbv2.AmazonDynamoDBClient;
+import com.amazonaws.services.dynamodbv2.document.DynamoDB;
 import com.amazonaws.services.dynamodbv2.model.AttributeValue;
 import com.amazonaws.services.dynamodbv2.model.GetItemResult;
 import com.amazonaws.services.dynamodbv2.model.ScanRequest;
 import com.amazonaws.services.dynamodbv2.model.ScanResult;
 import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.base.Stopwatch;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Iterables;
+import com.google.common.util.concurrent.RateLimiter;
 import org.apache.commons.lang3.StringUtils;
 
+import org.sagebionetworks.bridge.helper.AsyncStorageHelper;
+import org.sagebionetworks.bridge.helper.AwsAsyncStorageClient;
+import org.sagebionetworks.bridge.helper.DdbBatchHelper;
+import org.sagebionetworks.bridge.helper.DumpFile;
+import org.sagebionetworks.bridge.helper.PipelineMetricsReporter;
+import org.sagebionetworks.bridge.helper.PipelineStage;
+import org.sagebionetworks.bridge.helper.PurgeManifest;
+
 // Incomplete uploads don't have uploadDate. This means if someone in StJ uploaded to S3 but didn't call upload
 // complete, we have no way of knowing whether it's before or after the cut-off date. To be safe, delete the upload
 // anyway.
+//
+// Debug mode writes a manifest of the uploads it would delete, to
+// [dumpDir]/PurgeStudyIncompleteUploads-[study].manifest in both scan and join modes. Release mode can then delete
+// exactly those uploads with
+// "PurgeStudyIncompleteUploads [path to config JSON] manifest [path to manifest]", without re-scanning.
+//
+// For whole-table sweeps, join mode ("PurgeStudyIncompleteUploads [path to config JSON] join [study IDs]
+// [debug/release]") skips the per-upload HealthCode lookups. It dumps projections of both tables to local files with
+// parallel segmented scans, then joins them locally. Study IDs are comma-separated, so several studies can be purged
+// with a single scan of each table.
 public class PurgeStudyIncompleteUploads {
     private static final ObjectMapper JSON_MAPPER = new ObjectMapper();
     private static final int PAGE_SIZE = 40;
+    private static final int DELETE_WORKERS = 4;
+    private static final int METRICS_PERIOD_SECONDS = 60;
+    private static final int QUEUE_CAPACITY = 1000;
     private static final int SLEEP_TIME_MILLIS = 1000;
 
+    // Default delete budget for manifest and join modes, in items per second, shared by all delete workers. Each S3 key
+    // and each DDB item is one item. Can be overridden with "deleteItemsPerSecond" in the config.
+    private static final double DEFAULT_DELETE_ITEMS_PER_SECOND = 25.0;
+
+    // Join mode
+    private static final int DUMP_PAGE_SIZE = 1000;
+    private static final int DEFAULT_DUMP_PAGES_PER_SECOND = 5;
+    private static final int DEFAULT_DUMP_SEGMENTS = 8;
+
     // DDB
     private static AmazonDynamoDB ddbClient;
+    private static DdbBatchHelper ddbBatchHelper;
     private static String ddbPrefix;
     private static boolean debug;
+    private static PurgeManifest.Writer manifestWriter;
+    private static String dumpDir;
+    private static int dumpPagesPerSecond;
+    private static int dumpSegments;
+    private static RateLimiter deleteRateLimiter;
 
     // S3
     private static AmazonS3Client s3Client;
     private static String uploadBucket;
 
-    public static void main(String[] args) throws IOException {
+    public static void main(String[] args) throws Exception {
+        if (args.length == 3 && "manifest".equals(args[1])) {
+            System.out.println("Running in RELEASE mode from manifest " + args[2]);
+            System.out.println("IMPORTANT: This will delete rows from DDB and files from S3");
+            debug = false;
+
+            init(args[0]);
+            executeFromManifest(new File(args[2]));
+            cleanup();
+
+            System.out.println("Done running PurgeStudyIncompleteUploads");
+            return;
+        }
+
+        if (args.length == 4 && "join".equals(args[1])) {
+            if ("debug".equals(args[3])) {
+                System.out.println("Running in DEBUG mode with offline join");
+                debug = true;
+            } else if ("release".equals(args[3])) {
+                System.out.println("Running in RELEASE mode with offline join");
+                System.out.println("IMPORTANT: This will delete rows from DDB and files from S3");
+                debug = false;
+            } else {
+                System.out.println("Must specify debug or release");
+                return;
+            }
+
+            init(args[0]);
+            executeJoin(new TreeSet<>(Splitter.on(',').trimResults().omitEmptyStrings().splitToList(args[2])));
+            cleanup();
+
+            System.out.println("Done running PurgeStudyIncompleteUploads");
+            return;
+        }
+
         if (args.length != 5) {
             System.out.println("Usage: PurgeStudyIncompleteUploads [path to config JSON] [study ID] " +
                     "[last evaluated upload ID] [max total uploads] [debug/release]");
+            System.out.println("   or: PurgeStudyIncompleteUploads [path to config JSON] manifest [path to manifest]");
+            System.out.println("   or: PurgeStudyIncompleteUploads [path to config JSON] join " +
+                    "[comma-separated study IDs] [debug/release]");
             return;
         }
 
@@ -73,11 +156,26 @@ public class PurgeStudyIncompleteUploads {
 
         // init ddb
         ddbClient = new AmazonDynamoDBClient();
+        ddbBatchHelper = new DdbBatchHelper(new DynamoDB(ddbClient));
         ddbPrefix = configNode.get("ddbBridgePrefix").textValue();
 
         // init S3 client
         s3Client = new AmazonS3Client();
         uploadBucket = configNode.get("uploadBucket").textValue();
+
+        // Join mode settings. dumpDir is also where debug mode writes manifests.
+        dumpDir = configNode.has("dumpDir") ? configNode.get("dumpDir").textValue() : ".";
+        dumpPagesPerSecond = configNode.has("dumpPagesPerSecond") ? configNode.get("dumpPagesPerSecond").intValue() :
+                DEFAULT_DUMP_PAGES_PER_SECOND;
+        dumpSegments = configNode.has("dumpSegments") ? configNode.get("dumpSegments").intValue() :
+                DEFAULT_DUMP_SEGMENTS;
+
+        // Batched deletes are much faster than the scan path, so they need their own throttle.
+        double deleteItemsPerSecond = DEFAULT_DELETE_ITEMS_PER_SECOND;
+        if (configNode.hasNonNull("deleteItemsPerSecond")) {
+            deleteItemsPerSecond = configNode.get("deleteItemsPerSecond").doubleValue();
+        }
+        deleteRateLimiter = RateLimiter.create(deleteItemsPerSecond);
     }
 
     public static void cleanup() {
@@ -85,10 +183,190 @@ public class PurgeStudyIncompleteUploads {
         s3Client.shutdown();
     }
 
-    public static void execute(String studyId, String lastEvaluatedUploadId, int maxTotalUploads) {
+    public static void execute(String studyId, String lastEvaluatedUploadId, int maxTotalUploads)
+            throws IOException {
+        // Debug mode writes a manifest of everything release mode would delete.
+        if (debug) {
+            manifestWriter = new PurgeManifest.Writer(getManifestFile(studyId));
+        }
+
+        boolean complete = false;
+        try {
+            int numErrors = scanAndPurge(studyId, lastEvaluatedUploadId, maxTotalUploads);
+            complete = numErrors == 0;
+        } finally {
+            if (manifestWriter != null) {
+                closeOrAbortManifest(manifestWriter, complete);
+                manifestWriter = null;
+            }
+        }
+    }
+
+    /**
+     * Deletes exactly the uploads listed in a manifest written by debug mode, using batched S3 and DDB deletes on
+     * several threads. This skips the table scan and HealthCode lookups entirely.
+     */
+    public static void executeFromManifest(File manifestFile) throws Exception {
+        PipelineStage<String> deleteStage = new PipelineStage<>("delete", DELETE_WORKERS,
+                DdbBatchHelper.MAX_BATCH_WRITE_SIZE, QUEUE_CAPACITY, PurgeStudyIncompleteUploads::deleteUploads);
+        deleteStage.start();
+
+        Stopwatch stopwatch = Stopwatch.createStarted();
+        try (PipelineMetricsReporter reporter = new PipelineMetricsReporter(METRICS_PERIOD_SECONDS, deleteStage)) {
+            PurgeManifest.read(manifestFile, new PurgeManifest.Visitor() {
+                @Override
+                public void onUpload(String uploadId, String recordId, List<String> attachmentIdList)
+                        throws InterruptedException {
+                    deleteStage.submit(uploadId);
+                }
+            });
+            deleteStage.awaitCompletion();
+        }
+
+        System.out.println("Finished processing manifest " + manifestFile + " in " +
+                stopwatch.elapsed(TimeUnit.SECONDS) + " seconds");
+    }
+
+    /**
+     * Offline hash join of Upload2 and HealthCode, for one or more studies. Both tables are dumped with parallel
+     * segmented scans, projected to just the attributes we need. The HealthCode dump is the build side: only codes in
+     * the target studies are kept in memory, which is a small fraction of the table. The Upload2 dump is then streamed
+     * as the probe side, and each qualifying upload is routed to its study's batched delete stage (or to its study's
+     * manifest in debug mode). Scan cost is the same no matter how many studies there are.
+     */
+    public static void executeJoin(Set<String> studyIdSet) throws Exception {
+        if (studyIdSet.isEmpty()) {
+            throw new IllegalArgumentException("Must specify at least one study");
+        }
+
+        Stopwatch stopwatch = Stopwatch.createStarted();
+        File healthCodeDumpFile = new File(dumpDir, "PurgeStudyIncompleteUploads-HealthCode.dump");
+        File uploadDumpFile = new File(dumpDir, "PurgeStudyIncompleteUploads-Upload2.dump");
+
+        // The dumps run one after the other, and each scans at most dumpPagesPerSecond pages across all segments, so
+        // we never scan faster than dumpPagesPerSecond pages total.
+        try (AwsAsyncStorageClient asyncClient = new AwsAsyncStorageClient();
+                AsyncStorageHelper asyncHelper = new AsyncStorageHelper(asyncClient)) {
+            long numHealthCodes = DumpFile.dumpTable(asyncHelper, ddbPrefix + "HealthCode", dumpSegments,
+                    DUMP_PAGE_SIZE, dumpPagesPerSecond, healthCodeDumpFile, "code", "studyIdentifier");
+            System.out.println("Dumped " + numHealthCodes + " health codes to " +
+                    healthCodeDumpFile.getAbsolutePath() + " in " + stopwatch.elapsed(TimeUnit.SECONDS) +
+                    " seconds");
+
+            long numUploads = DumpFile.dumpTable(asyncHelper, ddbPrefix + "Upload2", dumpSegments, DUMP_PAGE_SIZE,
+                    dumpPagesPerSecond, uploadDumpFile, "uploadId", "healthCode", "uploadDate");
+            System.out.println("Dumped " + numUploads + " uploads to " + uploadDumpFile.getAbsolutePath() + " in " +
+                    stopwatch.elapsed(TimeUnit.SECONDS) + " seconds");
+        }
+
+        // Build side: health codes in our studies, mapped to their study.
+        Map<String, String> studyIdsByHealthCode = new HashMap<>();
+        DumpFile.read(healthCodeDumpFile, row -> {
+            if (studyIdSet.contains(row[1])) {
+                studyIdsByHealthCode.put(row[0], row[1]);
+            }
+        });
+        System.out.println("Found " + studyIdsByHealthCode.size() + " health codes in studies " + studyIdSet);
+
+        // Each study gets its own delete stage (for per-study counts) and its own manifest in debug mode.
+        Map<String, PurgeManifest.Writer> manifestWritersByStudy = new HashMap<>();
+        Map<String, PipelineStage<String>> deleteStagesByStudy = new TreeMap<>();
+        for (String studyId : studyIdSet) {
+            if (debug) {
+                manifestWritersByStudy.put(studyId, new PurgeManifest.Writer(getManifestFile(studyId)));
+            }
+            PipelineStage<String> deleteStage = new PipelineStage<>("delete-" + studyId, DELETE_WORKERS,
+                    DdbBatchHelper.MAX_BATCH_WRITE_SIZE, QUEUE_CAPACITY, PurgeStudyIncompleteUploads::deleteUploads);
+            deleteStage.start();
+            deleteStagesByStudy.put(studyId, deleteStage);
+        }
+
+        // Probe side: stream the uploads. Uploads with uploadDate are covered by other scripts.
+        boolean complete = false;
+        try (PipelineMetricsReporter reporter = new PipelineMetricsReporter(METRICS_PERIOD_SECONDS,
+                deleteStagesByStudy.values().toArray(new PipelineStage<?>[0]))) {
+            DumpFile.read(uploadDumpFile, row -> {
+                String uploadId = row[0];
+                String studyId = studyIdsByHealthCode.get(row[1]);
+                if (!row[2].isEmpty() || studyId == null) {
+                    return;
+                }
+
+                if (debug) {
+                    manifestWritersByStudy.get(studyId).writeUpload(uploadId, null, ImmutableList.of());
+                }
+                // Submit in debug mode too, so the per-study counts are the same. The delete stage skips deletes in
+                // debug mode.
+                deleteStagesByStudy.get(studyId).submit(uploadId);
+            });
+            complete = true;
+            for (PipelineStage<String> deleteStage : deleteStagesByStudy.values()) {
+                deleteStage.awaitCompletion();
+                if (deleteStage.getNumErrors() > 0) {
+                    complete = false;
+                }
+            }
+        } finally {
+            for (PurgeManifest.Writer manifestWriter : manifestWritersByStudy.values()) {
+                closeOrAbortManifest(manifestWriter, complete);
+            }
+        }
+
+        for (Map.Entry<String, PipelineStage<String>> deleteStageEntry : deleteStagesByStudy.entrySet()) {
+            PipelineStage<String> deleteStage = deleteStageEntry.getValue();
+            System.out.println("Study " + deleteStageEntry.getKey() + ": " + deleteStage.getNumSubmitted() +
+                    " qualifying uploads, " + deleteStage.getNumErrors() + " errors");
+        }
+        System.out.println("Finished join in " + stopwatch.elapsed(TimeUnit.SECONDS) + " seconds");
+    }
+
+    // Helper method to get the debug mode manifest file for a study. Scan and join modes use the same file, so release
+    // mode always knows where to find it.
+    private static File getManifestFile(String studyId) {
+        return new File(dumpDir, "PurgeStudyIncompleteUploads-" + studyId + ".manifest");
+    }
+
+    // Helper method to finish a debug mode manifest. The end entry is only written if nothing failed. Otherwise, the
+    // manifest might be missing uploads, so we leave it truncated and release mode will refuse to read it.
+    private static void closeOrAbortManifest(PurgeManifest.Writer manifestWriter, boolean complete)
+            throws IOException {
+        if (complete) {
+            manifestWriter.close();
+            System.out.println("Wrote manifest " + manifestWriter.getFile().getAbsolutePath() + " with " +
+                    manifestWriter.getSummary());
+        } else {
+            manifestWriter.abort();
+            System.err.println("Manifest " + manifestWriter.getFile().getAbsolutePath() + " is incomplete because " +
+                    "of errors, and can't be used to delete");
+        }
+    }
+
+    // Delete stage for manifest and join modes. Delete from S3 before deleting from DDB, same as the scan path. Each
+    // batch is charged against the shared delete budget before it's sent.
+    private static void deleteUploads(List<String> uploadIdList) {
+        if (debug) {
+            // Debug mode already wrote these to the manifest.
+            return;
+        }
+
+        for (List<String> keyBatch : Iterables.partition(uploadIdList, 1000)) {
+            deleteRateLimiter.acquire(keyBatch.size());
+            s3Client.deleteObjects(new DeleteObjectsRequest(uploadBucket).withKeys(keyBatch.toArray(
+                    new String[keyBatch.size()])).withQuiet(true));
+        }
+        deleteRateLimiter.acquire(uploadIdList.size());
+        ddbBatchHelper.batchDeleteItems(ddbPrefix + "Upload2", "uploadId", uploadIdList);
+        System.out.println("Done deleting " + uploadIdList.size() + " uploads, last uploadId=" +
+                uploadIdList.get(uploadIdList.size() - 1));
+    }
+
+    // Returns the number of uploads that failed to process.
+    private static int scanAndPurge(String studyId, String lastEvaluatedUploadId, int maxTotalUploads)
+            throws IOException {
         // Scan DDB page by page
         boolean hasNext = true;
         int countSoFar = 0;
+        int numErrors = 0;
         Stopwatch stopwatch = Stopwatch.createStarted();
         do {
             // logging
@@ -175,7 +453,9 @@ public class PurgeStudyIncompleteUploads {
                     }
 
                     System.out.println("Found qualifying upload with uploadId=" + uploadId);
-                    if (!debug) {
+                    if (debug) {
+                        manifestWriter.writeUpload(uploadId, null, ImmutableList.of());
+                    } else {
                         // Delete from S3 before deleting from DDB. This way, if the delete from S3 fails, we can find
                         // it again.
 
@@ -192,6 +472,7 @@ public class PurgeStudyIncompleteUploads {
                 } catch (RuntimeException ex) {
                     System.err.println("Error processing uploadId="  + uploadId + ": " + ex.getMessage());
                     ex.printStackTrace();
+                    numErrors++;
                 }
             }
 
@@ -199,6 +480,7 @@ public class PurgeStudyIncompleteUploads {
         } while (hasNext);
 
         System.out.println("Total " + countSoFar + " records seen in " + stopwatch.elapsed(TimeUnit.SECONDS) +
-                " seconds...");
+                " seconds, " + numErrors + " errors");
+        return numErrors;
     }
 }
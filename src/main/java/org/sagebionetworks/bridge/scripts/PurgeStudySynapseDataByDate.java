@@ -3,14 +3,18 @@ package org.sagebionetworks.bridge.scripts;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import com.amazonaws.services.dynamodbv2.AmazonDynamoDBClient;
 import com.amazonaws.services.dynamodbv2.document.DynamoDB;
-import com.amazonaws.services.dynamodbv2.document.Item;
-import com.amazonaws.services.dynamodbv2.document.Table;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.primitives.Longs;
+import com.google.common.util.concurrent.RateLimiter;
 import org.apache.commons.lang3.StringUtils;
 import org.joda.time.LocalDate;
 import org.sagebionetworks.client.SynapseClient;
@@ -18,26 +22,81 @@ import org.sagebionetworks.client.SynapseClientImpl;
 import org.sagebionetworks.client.exceptions.SynapseException;
 import org.sagebionetworks.repo.model.table.ColumnType;
 import org.sagebionetworks.repo.model.table.Row;
+import org.sagebionetworks.repo.model.table.RowReferenceSet;
 import org.sagebionetworks.repo.model.table.RowSelection;
 import org.sagebionetworks.repo.model.table.SelectColumn;
 import org.sagebionetworks.repo.model.table.TableEntity;
 
+import org.sagebionetworks.bridge.helper.FailureLedger;
+import org.sagebionetworks.bridge.helper.PipelineMetricsReporter;
+import org.sagebionetworks.bridge.helper.PipelineStage;
+import org.sagebionetworks.bridge.helper.PurgeManifest;
+import org.sagebionetworks.bridge.synapse.SynapseTableCatalog;
 import org.sagebionetworks.bridge.synapse.SynapseTableIterator;
 
+/**
+ * <p>
+ * Purges a study's rows and file handles for a given upload date from all of the study's Synapse tables. File handles
+ * are deleted by a separate stage of worker threads, so the table scan doesn't wait on each delete. Each file handle is
+ * deleted at most once, and file handles that fail to delete are written to a failure ledger.
+ * </p>
+ * <p>
+ * Every file handle that a purged row references is deleted, without checking whether rows from other dates still
+ * reference it. Don't use this on tables whose file handles are shared between rows, such as tables written by
+ * FitBitBackfill with dedupe enabled.
+ * </p>
+ * <p>
+ * Usage: PurgeStudySynapseDataByDate [path to config JSON] [study ID] [date (YYYY-MM-DD)] [debug/release]
+ * </p>
+ * <p>
+ * Debug mode writes a manifest of everything that would be deleted. To delete exactly what's in the manifest without
+ * re-running the scans and queries: PurgeStudySynapseDataByDate [path to config JSON] manifest [path to manifest]
+ * </p>
+ */
 public class PurgeStudySynapseDataByDate {
     private static final ObjectMapper JSON_MAPPER = new ObjectMapper();
-    private static final int SLEEP_TIME_MILLIS = 1000;
+    private static final int FILE_HANDLE_DELETE_WORKERS = 4;
+    private static final int METRICS_PERIOD_SECONDS = 60;
+    private static final int QUEUE_CAPACITY = 1000;
+    private static final int ROW_DELETE_CHUNK_SIZE = 1000;
+    private static final int MAX_CHUNK_ATTEMPTS = 3;
 
     private static DynamoDB ddbClient;
     private static boolean debug;
+    private static PurgeManifest.Writer manifestWriter;
     private static SynapseClient synapseClient;
-    private static Table synapseMetaTablesDdbTable;
-    private static Table synapseTablesDdbTable;
+    private static SynapseTableCatalog synapseTableCatalog;
+
+    // Number of tables and rows that failed in this run. In debug mode, any error means the manifest is incomplete.
+    private static int numErrors;
+
+    // File handle deletion. Handle IDs are deduplicated across all tables, since rows can share file handles.
+    private static PipelineStage<String> fileHandleStage;
+    private static final Set<String> seenFileHandleIdSet = ConcurrentHashMap.newKeySet();
+
+    // Rate limiter, used to limit the amount of traffic to Synapse. Synapse throttles at 10 requests per second. This
+    // is shared by the table scan and the file handle stage. Table queries charge one permit per call, including each
+    // poll and each next page.
+    private static final RateLimiter synapseRateLimiter = RateLimiter.create(10.0);
+
+    public static void main(String[] args) throws Exception {
+        if (args.length == 3 && "manifest".equals(args[1])) {
+            System.out.println("Running in RELEASE mode from manifest " + args[2]);
+            System.out.println("IMPORTANT: This will delete data from Synapse");
+            debug = false;
+
+            init(args[0]);
+            executeFromManifest(new File(args[2]));
+            cleanup();
+
+            System.out.println("Done");
+            return;
+        }
 
-    public static void main(String[] args) throws IOException {
         if (args.length != 4) {
             System.out.println("Usage: PurgeStudySynapseDataByDate [path to config JSON] [study ID] " +
                     "[date (YYYY-MM-DD)] [debug/release]");
+            System.out.println("   or: PurgeStudySynapseDataByDate [path to config JSON] manifest [path to manifest]");
             return;
         }
 
@@ -64,11 +123,9 @@ public class PurgeStudySynapseDataByDate {
         // load config JSON
         JsonNode configNode = JSON_MAPPER.readTree(new File(configPath));
 
-        // init ddb
-        String ddbPrefix = configNode.get("ddbPrefix").textValue();
+        // init ddb and the table catalog
         ddbClient = new DynamoDB(new AmazonDynamoDBClient());
-        synapseMetaTablesDdbTable = ddbClient.getTable(ddbPrefix + "SynapseMetaTables");
-        synapseTablesDdbTable = ddbClient.getTable(ddbPrefix + "SynapseTables");
+        synapseTableCatalog = SynapseTableCatalog.fromConfig(ddbClient, configNode);
 
         // init Synapse client
         String synapseUser = configNode.get("synapseUser").textValue();
@@ -82,118 +139,335 @@ public class PurgeStudySynapseDataByDate {
         ddbClient.shutdown();
     }
 
-    public static void execute(String studyId, LocalDate date) {
-        // iterate over all Synapse tables
-        Iterable<Item> synapseMetaTablesDdbIter = synapseMetaTablesDdbTable.scan();
-        for (Item oneSynapseMetaTable : synapseMetaTablesDdbIter) {
-            String tableName = oneSynapseMetaTable.getString("tableName");
-            String synapseTableId = oneSynapseMetaTable.getString("tableId");
-            handleTable(studyId, date, tableName, synapseTableId);
-            System.out.println();
+    public static void execute(String studyId, LocalDate date) throws IOException {
+        // Debug mode writes a manifest of everything release mode would delete.
+        if (debug) {
+            manifestWriter = new PurgeManifest.Writer(new File("PurgeStudySynapseDataByDate-" + studyId + "-" +
+                    date + ".manifest"));
         }
 
-        Iterable<Item> synapseTablesDdbIter = synapseTablesDdbTable.scan();
-        for (Item oneSynapseTable : synapseTablesDdbIter) {
-            String schemaKey = oneSynapseTable.getString("schemaKey");
-            String synapseTableId = oneSynapseTable.getString("tableId");
-            handleTable(studyId, date, schemaKey, synapseTableId);
-            System.out.println();
+        numErrors = 0;
+        boolean complete = false;
+
+        // In debug mode, file handles go straight to the manifest, so there's no file handle stage.
+        File ledgerFile = new File("PurgeStudySynapseDataByDate-" + studyId + "-" + date + "-failedFileHandles.tsv");
+        try (FailureLedger ledger = new FailureLedger(ledgerFile)) {
+            if (!debug) {
+                fileHandleStage = createFileHandleStage(ledger);
+                fileHandleStage.start();
+            }
+
+            try (PipelineMetricsReporter reporter = new PipelineMetricsReporter(METRICS_PERIOD_SECONDS,
+                    debug ? new PipelineStage<?>[0] : new PipelineStage<?>[] { fileHandleStage })) {
+                executeForAllTables(studyId, date);
+                if (fileHandleStage != null) {
+                    fileHandleStage.awaitCompletion();
+                }
+                complete = numErrors == 0;
+            } catch (InterruptedException ex) {
+                System.err.println("Interrupted while waiting for file handle deletes: " + ex.getMessage());
+                ex.printStackTrace();
+            } finally {
+                fileHandleStage = null;
+            }
+
+            if (ledger.getNumFailures() > 0) {
+                System.out.println(ledger.getNumFailures() + " file handles failed to delete, see " +
+                        ledgerFile.getAbsolutePath());
+            }
+        } finally {
+            // Only write the end entry if nothing failed. Otherwise, the manifest might be missing rows or file
+            // handles, and release mode must not treat it as the full list.
+            if (manifestWriter != null) {
+                if (complete) {
+                    manifestWriter.close();
+                    System.out.println("Wrote manifest " + manifestWriter.getFile().getAbsolutePath() + " with " +
+                            manifestWriter.getSummary());
+                } else {
+                    manifestWriter.abort();
+                    System.out.println("Manifest " + manifestWriter.getFile().getAbsolutePath() + " is incomplete " +
+                            "because of errors, and can't be used to delete");
+                }
+                manifestWriter = null;
+            }
         }
     }
 
-    public static void handleTable(String studyId, LocalDate date, String tableKey, String synapseTableId) {
-        // sleep to avoid browning out DDB or Synapse
-        try {
-            Thread.sleep(SLEEP_TIME_MILLIS);
-        } catch (InterruptedException ex) {
-            System.err.println("Interrupted while sleeping: " + ex.getMessage());
-            ex.printStackTrace();
+    /**
+     * Deletes exactly the file handles and rows listed in a manifest written by debug mode. File handles are deleted
+     * concurrently under the Synapse rate limit, and rows are deleted in chunks. This skips the DDB scans and Synapse
+     * queries entirely, except for one query per table to get the current etag.
+     */
+    public static void executeFromManifest(File manifestFile) throws Exception {
+        File ledgerFile = new File(manifestFile.getPath() + "-failedFileHandles.tsv");
+        try (FailureLedger ledger = new FailureLedger(ledgerFile)) {
+            PipelineStage<String> manifestFileHandleStage = createFileHandleStage(ledger);
+            manifestFileHandleStage.start();
+            executeFromManifest(manifestFile, manifestFileHandleStage);
+
+            if (ledger.getNumFailures() > 0) {
+                System.out.println(ledger.getNumFailures() + " file handles failed to delete, see " +
+                        ledgerFile.getAbsolutePath());
+            }
         }
+    }
 
-        if (!tableKey.startsWith(studyId)) {
-            if (debug) {
-                System.out.println("Skipping table " + tableKey);
+    // Helper method to read the manifest, feeding file handles to the given stage.
+    private static void executeFromManifest(File manifestFile, PipelineStage<String> fileHandleStage)
+            throws Exception {
+        try (PipelineMetricsReporter reporter = new PipelineMetricsReporter(METRICS_PERIOD_SECONDS,
+                fileHandleStage)) {
+            // Debug mode writes each table's rows in several entries. Keep each table's latest etag across entries.
+            Map<String, String> etagsByTable = new HashMap<>();
+            PurgeManifest.read(manifestFile, new PurgeManifest.Visitor() {
+                @Override
+                public void onSynapseRows(String tableId, long[] rowIds) throws SynapseException {
+                    deleteRowsInChunks(etagsByTable, tableId, rowIds, rowIds.length);
+                }
+
+                @Override
+                public void onFileHandle(String tableId, String fileHandleId) throws InterruptedException {
+                    if (seenFileHandleIdSet.add(fileHandleId)) {
+                        fileHandleStage.submit(fileHandleId);
+                    }
+                }
+            });
+            fileHandleStage.awaitCompletion();
+        }
+    }
+
+    // Helper method to create the file handle delete stage. Each delete is charged against the shared Synapse rate
+    // limiter. A failed delete is written to the ledger and doesn't stop the other deletes.
+    private static PipelineStage<String> createFileHandleStage(FailureLedger ledger) {
+        return new PipelineStage<>("fileHandleDelete", FILE_HANDLE_DELETE_WORKERS, 1, QUEUE_CAPACITY, batch -> {
+            for (String fileHandleId : batch) {
+                try {
+                    synapseRateLimiter.acquire();
+                    synapseClient.deleteFileHandle(fileHandleId);
+                } catch (SynapseException | RuntimeException ex) {
+                    System.out.println("Error deleting fileHandleId=" + fileHandleId + ": " + ex.getMessage());
+                    ledger.record(fileHandleId, "deleteFileHandle", ex);
+                }
             }
-            return;
+        });
+    }
+
+    // Helper method to delete rows from a manifest in chunks, so no single request is too large. Each delete returns
+    // the table's new etag, which is kept in etagsByTable and used for the table's next chunk, including chunks from
+    // later manifest entries. The etag is only queried for a table's first chunk, and after a chunk fails (for
+    // example, because something else updated the table), in which case the chunk is retried once.
+    private static void deleteRowsInChunks(Map<String, String> etagsByTable, String synapseTableId, long[] rowIds,
+            int numRowIds) throws SynapseException {
+        String etag = etagsByTable.get(synapseTableId);
+        if (etag == null) {
+            etag = queryEtag(synapseTableId);
         }
+        for (int start = 0; start < numRowIds; start += ROW_DELETE_CHUNK_SIZE) {
+            int end = Math.min(start + ROW_DELETE_CHUNK_SIZE, numRowIds);
+            try {
+                etag = deleteRows(synapseTableId, etag, rowIds, start, end);
+            } catch (SynapseException | RuntimeException ex) {
+                System.out.println("Error deleting rows from table synapseTableId=" + synapseTableId +
+                        ", retrying with fresh etag: " + ex.getMessage());
+                etagsByTable.remove(synapseTableId);
+                etag = deleteRows(synapseTableId, queryEtag(synapseTableId), rowIds, start, end);
+            }
+            etagsByTable.put(synapseTableId, etag);
+        }
+
+        System.out.println("Deleted rows from table synapseTableId=" + synapseTableId + ", " + numRowIds + " rows");
+    }
 
+    // Helper method to get the table's current etag. The query's calls are charged to the rate limiter.
+    private static String queryEtag(String synapseTableId) throws SynapseException {
+        return new SynapseTableIterator(synapseClient, "SELECT ROW_ID FROM " + synapseTableId + " LIMIT 1",
+                synapseTableId, synapseRateLimiter).getEtag();
+    }
+
+    // Helper method to delete rowIds[start] to rowIds[end - 1] from the table. Returns the table's new etag.
+    private static String deleteRows(String synapseTableId, String etag, long[] rowIds, int start, int end)
+            throws SynapseException {
+        RowSelection rowSelectionToDelete = new RowSelection();
+        rowSelectionToDelete.setEtag(etag);
+        rowSelectionToDelete.setRowIds(new ArrayList<>(Longs.asList(rowIds).subList(start, end)));
+        rowSelectionToDelete.setTableId(synapseTableId);
+        synapseRateLimiter.acquire();
+        RowReferenceSet result = synapseClient.deleteRowsFromTable(rowSelectionToDelete);
+        return result.getEtag();
+    }
+
+    private static void executeForAllTables(String studyId, LocalDate date) {
+        // The catalog only returns keys that start with studyId plus the separator, so we never touch other
+        // studies' tables, even ones whose study ID starts with this one.
+        for (Map.Entry<String, String> oneTable : synapseTableCatalog.getTablesForStudy(studyId).entrySet()) {
+            handleTable(studyId, date, oneTable.getKey(), oneTable.getValue());
+            System.out.println();
+        }
+    }
+
+    public static void handleTable(String studyId, LocalDate date, String tableKey, String synapseTableId) {
+        // Synapse traffic is limited by the rate limiter, so there's no need to sleep between tables.
         System.out.println("Processing table tableKey=" + tableKey + ", synapseTableId=" + synapseTableId);
         try {
             // get table from Synapse
+            synapseRateLimiter.acquire();
             TableEntity synapseTable = synapseClient.getEntity(synapseTableId, TableEntity.class);
             if (synapseTable == null) {
                 System.out.println("Couldn't find table tableKey=" + tableKey + ", synapseTableId=" + synapseTableId);
                 return;
             }
 
-            // query and iterate over all records in the given date
-            SynapseTableIterator tableRowIter = new SynapseTableIterator(synapseClient, "SELECT * FROM " +
-                    synapseTableId + " WHERE uploadDate = '" + date.toString() + "'", synapseTableId);
+            if (debug) {
+                writeTableToManifest(tableKey, synapseTableId, date);
+            } else {
+                purgeTableInChunks(tableKey, synapseTableId, date);
+            }
+        } catch (InterruptedException ex) {
+            System.out.println("Interrupted while processing table " + tableKey);
+            Thread.currentThread().interrupt();
+            numErrors++;
+        } catch (IOException | RuntimeException | SynapseException ex) {
+            System.out.println("Error processing table " + tableKey + ": " + ex.getMessage());
+            ex.printStackTrace();
+            numErrors++;
+        }
+    }
 
-            // get headers
-            List<SelectColumn> headerList = tableRowIter.getHeaders();
-            int numCols = headerList.size();
+    // Debug mode. Scans the rows for the date once, writing file handles and row IDs to the manifest. Row IDs are
+    // buffered in a primitive array and written every chunk, so memory doesn't grow with the size of the day.
+    private static void writeTableToManifest(String tableKey, String synapseTableId, LocalDate date)
+            throws InterruptedException, IOException, SynapseException {
+        SynapseTableIterator tableRowIter = new SynapseTableIterator(synapseClient, "SELECT * FROM " +
+                synapseTableId + " WHERE uploadDate = '" + date.toString() + "'", synapseTableId, synapseRateLimiter);
+        RowColumns rowColumns = new RowColumns(tableRowIter.getHeaders());
 
-            // check for recordId column and file handle columns
-            Integer recordIdColIdx = null;
-            List<Integer> fileHandleColIdxList = new ArrayList<>();
-            for (int i = 0; i < numCols; i++) {
-                SelectColumn oneHeader = headerList.get(i);
+        long[] rowIdBuffer = new long[ROW_DELETE_CHUNK_SIZE];
+        int numBuffered = 0;
+        long numRows = 0;
+        while (tableRowIter.hasNext()) {
+            Row oneRow = tableRowIter.next();
+            handleRow(tableKey, synapseTableId, rowColumns, oneRow);
+            rowIdBuffer[numBuffered++] = oneRow.getRowId();
+            if (numBuffered == rowIdBuffer.length) {
+                manifestWriter.writeSynapseRows(synapseTableId, rowIdBuffer, numBuffered);
+                numRows += numBuffered;
+                numBuffered = 0;
+            }
+        }
+        if (numBuffered > 0) {
+            manifestWriter.writeSynapseRows(synapseTableId, rowIdBuffer, numBuffered);
+            numRows += numBuffered;
+        }
 
-                if ("recordId".equals(oneHeader.getName())) {
-                    recordIdColIdx = i;
-                }
+        System.out.println("Found rows for table tableKey=" + tableKey + ", synapseTableId=" + synapseTableId + ", " +
+                numRows + " rows");
+    }
 
-                if (oneHeader.getColumnType() == ColumnType.FILEHANDLEID) {
-                    fileHandleColIdxList.add(i);
-                }
-            }
+    // Release mode. Repeatedly queries the first chunk of remaining rows for the date, submits their file handles for
+    // deletion, then deletes the rows, until no rows are left. We can't delete while paging through one big query,
+    // because next page tokens are offsets, so deletes would make us skip rows. Each delete returns the table's new
+    // etag, which is used for the next chunk. The query's etag is only used for the first chunk, and after a failed
+    // delete (for example, an etag conflict). Memory and request size are bounded by the chunk size, and a failed
+    // chunk is simply re-queried and retried, rather than losing the whole day.
+    private static void purgeTableInChunks(String tableKey, String synapseTableId, LocalDate date)
+            throws InterruptedException, SynapseException {
+        long[] rowIdBuffer = new long[ROW_DELETE_CHUNK_SIZE];
+        long numDeleted = 0;
+        int numConsecutiveFailures = 0;
+        String etag = null;
+        while (true) {
+            SynapseTableIterator tableRowIter = new SynapseTableIterator(synapseClient, "SELECT * FROM " +
+                    synapseTableId + " WHERE uploadDate = '" + date.toString() + "' LIMIT " + ROW_DELETE_CHUNK_SIZE,
+                    synapseTableId, synapseRateLimiter);
+            RowColumns rowColumns = new RowColumns(tableRowIter.getHeaders());
 
-            // iterate over rows
-            List<Long> rowIdsToDelete = new ArrayList<>();
+            int numBuffered = 0;
             while (tableRowIter.hasNext()) {
                 Row oneRow = tableRowIter.next();
-                List<String> rowValueList = oneRow.getValues();
-                String recordId = null;
-                if (recordIdColIdx != null) {
-                    recordId = rowValueList.get(recordIdColIdx);
+                handleRow(tableKey, synapseTableId, rowColumns, oneRow);
+                rowIdBuffer[numBuffered++] = oneRow.getRowId();
+            }
+            if (numBuffered == 0) {
+                break;
+            }
+
+            try {
+                if (etag == null) {
+                    etag = tableRowIter.getEtag();
+                }
+                etag = deleteRows(synapseTableId, etag, rowIdBuffer, 0, numBuffered);
+                numDeleted += numBuffered;
+                numConsecutiveFailures = 0;
+                System.out.println("Deleted chunk from table tableKey=" + tableKey + ", synapseTableId=" +
+                        synapseTableId + ", " + numBuffered + " rows");
+            } catch (SynapseException | RuntimeException ex) {
+                // Use the next query's etag. If the same chunk keeps failing, give up on this table, so we don't loop
+                // forever. Re-running the script picks up whatever's left.
+                etag = null;
+                numConsecutiveFailures++;
+                System.out.println("Error deleting chunk from table tableKey=" + tableKey + ", synapseTableId=" +
+                        synapseTableId + ", attempt " + numConsecutiveFailures + ": " + ex.getMessage());
+                if (numConsecutiveFailures >= MAX_CHUNK_ATTEMPTS) {
+                    throw ex;
                 }
-                rowIdsToDelete.add(oneRow.getRowId());
-                System.out.println("Found record for table " + tableKey + ", recordId=" + recordId);
+            }
+        }
 
-                try {
-                    // find all file handle IDs
-                    for (int oneFileHandleColIdx : fileHandleColIdxList) {
-                        String fileHandleId = rowValueList.get(oneFileHandleColIdx);
-                        if (StringUtils.isNotBlank(fileHandleId)) {
-                            System.out.println("Found file handle for table " + tableKey + ", recordId=" + recordId +
-                                    ", fileHandleId=" + fileHandleId);
-                            if (!debug) {
-                                synapseClient.deleteFileHandle(fileHandleId);
-                            }
-                        }
+        System.out.println("Deleted rows from table tableKey=" + tableKey + ", synapseTableId=" + synapseTableId +
+                ", " + numDeleted + " rows");
+    }
+
+    // Helper method to log a row and hand off its file handles, to the manifest in debug mode, or to the file handle
+    // stage in release mode. Each file handle is only handled once, even if the row is seen again in a retried chunk.
+    private static void handleRow(String tableKey, String synapseTableId, RowColumns rowColumns, Row row)
+            throws InterruptedException {
+        List<String> rowValueList = row.getValues();
+        String recordId = null;
+        if (rowColumns.recordIdColIdx != null) {
+            recordId = rowValueList.get(rowColumns.recordIdColIdx);
+        }
+        System.out.println("Found record for table " + tableKey + ", recordId=" + recordId);
+
+        try {
+            // find all file handle IDs
+            for (int oneFileHandleColIdx : rowColumns.fileHandleColIdxList) {
+                String fileHandleId = rowValueList.get(oneFileHandleColIdx);
+                if (StringUtils.isNotBlank(fileHandleId) && seenFileHandleIdSet.add(fileHandleId)) {
+                    System.out.println("Found file handle for table " + tableKey + ", recordId=" + recordId +
+                            ", fileHandleId=" + fileHandleId);
+                    if (debug) {
+                        manifestWriter.writeFileHandle(synapseTableId, fileHandleId);
+                    } else {
+                        // Blocks only if the file handle stage is backed up.
+                        fileHandleStage.submit(fileHandleId);
                     }
-                } catch (SynapseException | RuntimeException ex) {
-                    System.out.println("Error processing row, tableKey=" + tableKey + ", synapseTableId=" +
-                            synapseTableId + ", recordId=" + recordId + ": " + ex.getMessage());
-                    ex.printStackTrace();
                 }
             }
+        } catch (IOException | RuntimeException ex) {
+            System.out.println("Error processing row, tableKey=" + tableKey + ", synapseTableId=" +
+                    synapseTableId + ", recordId=" + recordId + ": " + ex.getMessage());
+            ex.printStackTrace();
+            numErrors++;
+        }
+    }
+
+    // Positions of the recordId column and file handle columns in a query result.
+    private static class RowColumns {
+        private Integer recordIdColIdx;
+        private final List<Integer> fileHandleColIdxList = new ArrayList<>();
+
+        RowColumns(List<SelectColumn> headerList) {
+            for (int i = 0; i < headerList.size(); i++) {
+                SelectColumn oneHeader = headerList.get(i);
 
-            if (!rowIdsToDelete.isEmpty() && !debug) {
-                // delete rows from Synapse table
-                RowSelection rowSelectionToDelete = new RowSelection();
-                rowSelectionToDelete.setEtag(tableRowIter.getEtag());
-                rowSelectionToDelete.setRowIds(rowIdsToDelete);
-                rowSelectionToDelete.setTableId(synapseTableId);
-                synapseClient.deleteRowsFromTable(rowSelectionToDelete);
+                if ("recordId".equals(oneHeader.getName())) {
+                    recordIdColIdx = i;
+                }
 
-                System.out.println("Deleted rows from table tableKey=" + tableKey + ", synapseTableId=" +
-                        synapseTableId + ", " + rowIdsToDelete.size() + " rows");
+                if (oneHeader.getColumnType() == ColumnType.FILEHANDLEID) {
+                    fileHandleColIdxList.add(i);
+                }
             }
-        } catch (RuntimeException | SynapseException ex) {
-            System.out.println("Error processing table " + tableKey + ": " + ex.getMessage());
-            ex.printStackTrace();
         }
     }
 }
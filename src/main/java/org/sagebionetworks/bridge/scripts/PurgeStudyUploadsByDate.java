@@ -1,7 +1,21 @@
 package org.sagebionetworks.bridge.scripts;
 
+import static org.sagebionetworks.bridge.helper.LogHelper.logError;
+import static org.sagebionetworks.bridge.helper.LogHelper.logInfo;
+
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.amazonaws.services.dynamodbv2.AmazonDynamoDBClient;
 import com.amazonaws.services.dynamodbv2.document.DynamoDB;
@@ -9,17 +23,71 @@ import com.amazonaws.services.dynamodbv2.document.Index;
 import com.amazonaws.services.dynamodbv2.document.Item;
 import com.amazonaws.services.dynamodbv2.document.Table;
 import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Stopwatch;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+import com.google.common.util.concurrent.RateLimiter;
 import org.apache.commons.lang3.StringUtils;
 import org.joda.time.LocalDate;
 
+import org.sagebionetworks.bridge.helper.CheckpointFile;
+import org.sagebionetworks.bridge.helper.DdbBatchHelper;
+import org.sagebionetworks.bridge.helper.PipelineMetricsReporter;
+import org.sagebionetworks.bridge.helper.PipelineStage;
+import org.sagebionetworks.bridge.helper.PurgeManifest;
+
+/**
+ * <p>
+ * Purges all uploads (and their records and attachments) for a study on a given upload date or date range. This runs
+ * as a pipeline of stages connected by bounded queues: discovery (uploadDate-index query, several dates at once),
+ * filter (batch get from Upload2 and HealthCode), attachment lookup (recordId-index query), and delete. Each stage has
+ * its own concurrency and batch size, and all DDB calls share a single rate limiter, so the slowest stage sets the
+ * pace.
+ * </p>
+ * <p>
+ * Usage: PurgeStudyUploadsByDate [path to config JSON] [study ID] [date (YYYY-MM-DD)] [debug/release]
+ * </p>
+ * <p>
+ * Or, for a date range: PurgeStudyUploadsByDate [path to config JSON] [study ID] [start date] [end date, inclusive]
+ * [debug/release]
+ * </p>
+ * <p>
+ * Debug mode writes a manifest of everything that would be deleted. To delete exactly what's in the manifest without
+ * re-running discovery: PurgeStudyUploadsByDate [path to config JSON] manifest [path to manifest]
+ * </p>
+ * <p>
+ * To purge several studies in a single pass: PurgeStudyUploadsByDate [path to config JSON] rules [path to rules JSON]
+ * [debug/release]. The rules JSON maps each study ID to its date range, for example
+ * {"study1":{"startDate":"2019-01-01","endDate":"2019-06-30"}, "study2":{"startDate":"2019-03-01"}}. End date
+ * defaults to the start date. Each date is queried once no matter how many studies include it, and each study gets its
+ * own delete stage, counts, and manifest.
+ * </p>
+ */
+@SuppressWarnings("UnstableApiUsage")
 public class PurgeStudyUploadsByDate {
     private static final ObjectMapper JSON_MAPPER = new ObjectMapper();
-    private static final int SLEEP_TIME_MILLIS = 1000;
+    private static final int METRICS_PERIOD_SECONDS = 60;
+
+    // Default DDB budget, in items per second, shared across all stages. Can be overridden with "ddbItemsPerSecond"
+    // in the config.
+    private static final double DEFAULT_DDB_ITEMS_PER_SECOND = 25.0;
+
+    // Stage configs.
+    private static final int DISCOVERY_WORKERS = 4;
+    private static final int FILTER_WORKERS = 2;
+    private static final int FILTER_BATCH_SIZE = DdbBatchHelper.MAX_BATCH_GET_SIZE;
+    private static final int ATTACHMENT_WORKERS = 4;
+    private static final int DELETE_WORKERS = 2;
+    private static final int DELETE_BATCH_SIZE = DdbBatchHelper.MAX_BATCH_WRITE_SIZE;
+    private static final int QUEUE_CAPACITY = 1000;
 
     // DDB
     private static DynamoDB ddbClient;
+    private static DdbBatchHelper ddbBatchHelper;
+    private static RateLimiter ddbRateLimiter;
     private static boolean debug;
     private static Index attachmentRecordIdIndex;
     private static Table attachmentTable;
@@ -28,22 +96,67 @@ public class PurgeStudyUploadsByDate {
     private static Index uploadDateIndex;
     private static Table uploadTable;
 
+    // Checkpoints and manifests
+    private static File checkpointDir;
+
     // S3
     private static String attachmentBucket;
     private static AmazonS3Client s3Client;
     private static String uploadBucket;
 
-    public static void main(String[] args) throws IOException {
-        if (args.length != 4) {
+    public static void main(String[] args) throws Exception {
+        if (args.length == 3 && "manifest".equals(args[1])) {
+            System.out.println("Running in RELEASE mode from manifest " + args[2]);
+            System.out.println("IMPORTANT: This will delete rows from DDB and files from S3");
+            debug = false;
+
+            init(args[0]);
+            executeFromManifest(new File(args[2]));
+            cleanup();
+
+            System.out.println("Done");
+            return;
+        }
+
+        if (args.length == 4 && "rules".equals(args[1])) {
+            if ("debug".equals(args[3])) {
+                System.out.println("Running in DEBUG mode with rules " + args[2]);
+                debug = true;
+            } else if ("release".equals(args[3])) {
+                System.out.println("Running in RELEASE mode with rules " + args[2]);
+                System.out.println("IMPORTANT: This will delete rows from DDB and files from S3");
+                debug = false;
+            } else {
+                System.out.println("Must specify debug or release");
+                return;
+            }
+
+            List<StudyRule> ruleList = readRules(new File(args[2]));
+
+            init(args[0]);
+            execute(ruleList);
+            cleanup();
+
+            System.out.println("Done");
+            return;
+        }
+
+        if (args.length != 4 && args.length != 5) {
             System.out.println("Usage: PurgeStudyUploadsByDate [path to config JSON] [study ID] [date (YYYY-MM-DD)] " +
             "[debug/release]");
+            System.out.println("   or: PurgeStudyUploadsByDate [path to config JSON] [study ID] " +
+                    "[start date (YYYY-MM-DD)] [end date (YYYY-MM-DD), inclusive] [debug/release]");
+            System.out.println("   or: PurgeStudyUploadsByDate [path to config JSON] manifest [path to manifest]");
+            System.out.println("   or: PurgeStudyUploadsByDate [path to config JSON] rules [path to rules JSON] " +
+                    "[debug/release]");
             return;
         }
 
-        if ("debug".equals(args[3])) {
+        String mode = args[args.length - 1];
+        if ("debug".equals(mode)) {
             System.out.println("Running in DEBUG mode");
             debug = true;
-        } else if ("release".equals(args[3])) {
+        } else if ("release".equals(mode)) {
             System.out.println("Running in RELEASE mode");
             System.out.println("IMPORTANT: This will delete rows from DDB and files from S3");
             debug = false;
@@ -52,8 +165,11 @@ public class PurgeStudyUploadsByDate {
             return;
         }
 
+        LocalDate startDate = LocalDate.parse(args[2]);
+        LocalDate endDate = args.length == 5 ? LocalDate.parse(args[3]) : startDate;
+
         init(args[0]);
-        execute(args[1], LocalDate.parse(args[2]));
+        execute(args[1], startDate, endDate);
         cleanup();
 
         System.out.println("Done");
@@ -66,6 +182,7 @@ public class PurgeStudyUploadsByDate {
         // init ddb
         String ddbPrefix = configNode.get("ddbBridgePrefix").textValue();
         ddbClient = new DynamoDB(new AmazonDynamoDBClient());
+        ddbBatchHelper = new DdbBatchHelper(ddbClient);
         attachmentTable = ddbClient.getTable(ddbPrefix + "HealthDataAttachment");
         attachmentRecordIdIndex = attachmentTable.getIndex("recordId-index");
         healthCodeTable = ddbClient.getTable(ddbPrefix + "HealthCode");
@@ -73,6 +190,19 @@ public class PurgeStudyUploadsByDate {
         uploadTable = ddbClient.getTable(ddbPrefix + "Upload2");
         uploadDateIndex = uploadTable.getIndex("uploadDate-index");
 
+        double ddbItemsPerSecond = DEFAULT_DDB_ITEMS_PER_SECOND;
+        if (configNode.hasNonNull("ddbItemsPerSecond")) {
+            ddbItemsPerSecond = configNode.get("ddbItemsPerSecond").doubleValue();
+        }
+        ddbRateLimiter = RateLimiter.create(ddbItemsPerSecond);
+
+        // Checkpoints and manifests go in the working directory unless otherwise specified.
+        if (configNode.hasNonNull("checkpointDir")) {
+            checkpointDir = new File(configNode.get("checkpointDir").textValue());
+        } else {
+            checkpointDir = new File(".");
+        }
+
         // init S3 client
         attachmentBucket = configNode.get("attachmentBucket").textValue();
         s3Client = new AmazonS3Client();
@@ -84,84 +214,469 @@ public class PurgeStudyUploadsByDate {
         s3Client.shutdown();
     }
 
-    public static void execute(String studyId, LocalDate date) {
-        // find all uploads for this date
-        Iterable<Item> uploadsForDateIter = uploadDateIndex.query("uploadDate", date.toString());
-        for (Item oneUpload : uploadsForDateIter) {
-            // sleep to avoid browning out DDB
-            try {
-                Thread.sleep(SLEEP_TIME_MILLIS);
-            } catch (InterruptedException ex) {
-                System.err.println("Interrupted while sleeping: " + ex.getMessage());
-                ex.printStackTrace();
-            }
-
-            String uploadId = oneUpload.getString("uploadId");
-            try {
-                // First step is to re-query the table to get all params.
-                Item fullUpload = uploadTable.getItem("uploadId", uploadId);
-                String healthCode = fullUpload.getString("healthCode");
-
-                // Check healthCode table to verify what study this upload comes from.
-                Item healthCodeToStudy = healthCodeTable.getItem("code", healthCode);
-                String uploadStudyId = healthCodeToStudy.getString("studyIdentifier");
-                if (!studyId.equals(uploadStudyId)) {
-                    if (debug) {
-                        System.out.println("Filtered out uploadId=" + uploadId + ": Upload not in study " + studyId +
-                                ", instead in study " + uploadStudyId);
-                        System.out.println();
+    // Helper method to read the rules JSON into a list of study rules.
+    private static List<StudyRule> readRules(File rulesFile) throws IOException {
+        JsonNode rulesNode = JSON_MAPPER.readTree(rulesFile);
+        List<StudyRule> ruleList = new ArrayList<>();
+        Iterator<Map.Entry<String, JsonNode>> ruleIter = rulesNode.fields();
+        while (ruleIter.hasNext()) {
+            Map.Entry<String, JsonNode> ruleEntry = ruleIter.next();
+            JsonNode ruleNode = ruleEntry.getValue();
+            LocalDate startDate = LocalDate.parse(ruleNode.get("startDate").textValue());
+            LocalDate endDate = ruleNode.hasNonNull("endDate") ? LocalDate.parse(ruleNode.get("endDate")
+                    .textValue()) : startDate;
+            ruleList.add(new StudyRule(ruleEntry.getKey(), startDate, endDate));
+        }
+        return ruleList;
+    }
+
+    /** Purges uploads for a single date. */
+    public static void execute(String studyId, LocalDate date) throws InterruptedException, IOException {
+        execute(studyId, date, date);
+    }
+
+    /**
+     * Purges uploads for every date from startDate to endDate, inclusive. Dates are queried concurrently by the
+     * discovery stage, and all dates share the downstream stages and the DDB budget. In release mode, each date is
+     * checkpointed once all of its uploads are deleted, so that re-running the same range skips completed dates.
+     */
+    public static void execute(String studyId, LocalDate startDate, LocalDate endDate) throws InterruptedException,
+            IOException {
+        execute(ImmutableList.of(new StudyRule(studyId, startDate, endDate)));
+    }
+
+    /**
+     * Purges uploads for several studies, each with its own date range, in a single pass. Each date in any study's
+     * range is queried once, and the filter stage routes each qualifying upload to its study's delete stage. So the
+     * number of index queries depends only on the dates, not on the number of studies.
+     */
+    public static void execute(List<StudyRule> ruleList) throws InterruptedException, IOException {
+        if (ruleList.isEmpty()) {
+            throw new IllegalArgumentException("Must specify at least one study");
+        }
+
+        // Sorted by study ID, so the checkpoint file name is stable.
+        Map<String, StudyRule> rulesByStudy = new TreeMap<>();
+        LocalDate minDate = null;
+        LocalDate maxDate = null;
+        for (StudyRule rule : ruleList) {
+            if (rulesByStudy.put(rule.studyId, rule) != null) {
+                throw new IllegalArgumentException("Study " + rule.studyId + " has more than one rule");
+            }
+            if (minDate == null || rule.startDate.isBefore(minDate)) {
+                minDate = rule.startDate;
+            }
+            if (maxDate == null || rule.endDate.isAfter(maxDate)) {
+                maxDate = rule.endDate;
+            }
+        }
+
+        // Debug mode writes a manifest per study of everything release mode would delete.
+        Map<String, PurgeManifest.Writer> manifestWritersByStudy = new HashMap<>();
+        boolean complete = false;
+        try {
+            if (debug) {
+                for (StudyRule rule : rulesByStudy.values()) {
+                    manifestWritersByStudy.put(rule.studyId, new PurgeManifest.Writer(new File(checkpointDir,
+                            "PurgeStudyUploadsByDate-" + rule.studyId + "-" + rule.startDate + "-" + rule.endDate +
+                                    ".manifest")));
+                }
+            }
+
+            // A date is only checkpointed once it's done for every study, so the checkpoint is per set of studies.
+            File checkpointFile = new File(checkpointDir, "PurgeStudyUploadsByDate-" +
+                    String.join("_", rulesByStudy.keySet()) + ".checkpoint");
+            try (CheckpointFile checkpoint = new CheckpointFile(checkpointFile)) {
+                complete = executePipeline(rulesByStudy, minDate, maxDate, manifestWritersByStudy, checkpoint);
+            }
+        } finally {
+            // Only write the end entry if nothing failed. Otherwise, the manifest might be missing uploads, and
+            // release mode must not treat it as the full list.
+            for (PurgeManifest.Writer manifestWriter : manifestWritersByStudy.values()) {
+                if (complete) {
+                    manifestWriter.close();
+                    logInfo("Wrote manifest " + manifestWriter.getFile().getAbsolutePath() + " with " +
+                            manifestWriter.getSummary());
+                } else {
+                    manifestWriter.abort();
+                    logError("Manifest " + manifestWriter.getFile().getAbsolutePath() + " is incomplete because " +
+                            "of errors, and can't be used to delete");
+                }
+            }
+        }
+    }
+
+    // Helper method to set up and run the stages for the given rules. Returns true if no stage had any errors.
+    private static boolean executePipeline(Map<String, StudyRule> rulesByStudy, LocalDate minDate, LocalDate maxDate,
+            Map<String, PurgeManifest.Writer> manifestWritersByStudy, CheckpointFile checkpoint)
+            throws InterruptedException {
+        // Set up the stages. Stages are created back to front, because each stage submits to the next one. Each study
+        // has its own delete stage and failure count, for per-study counts.
+        Map<String, PipelineStage<UploadToPurge>> deleteStagesByStudy = new TreeMap<>();
+        Map<String, AtomicLong> numFailedDeletesByStudy = new HashMap<>();
+        for (String studyId : rulesByStudy.keySet()) {
+            PurgeManifest.Writer manifestWriter = manifestWritersByStudy.get(studyId);
+            AtomicLong numFailedDeletes = new AtomicLong();
+            numFailedDeletesByStudy.put(studyId, numFailedDeletes);
+            deleteStagesByStudy.put(studyId, new PipelineStage<>("delete-" + studyId, DELETE_WORKERS,
+                    DELETE_BATCH_SIZE, QUEUE_CAPACITY, batch -> deleteUploads(batch, checkpoint, manifestWriter,
+                            numFailedDeletes)));
+        }
+        PipelineStage<UploadToPurge> attachmentStage = new PipelineStage<>("attachment", ATTACHMENT_WORKERS, 1,
+                QUEUE_CAPACITY, batch -> {
+                    for (UploadToPurge upload : batch) {
+                        findAttachments(upload);
+                        deleteStagesByStudy.get(upload.studyId).submit(upload);
+                    }
+                });
+        PipelineStage<UploadToPurge> filterStage = new PipelineStage<>("filter", FILTER_WORKERS,
+                FILTER_BATCH_SIZE, QUEUE_CAPACITY, batch -> {
+                    for (UploadToPurge upload : filterUploads(rulesByStudy, batch, checkpoint)) {
+                        attachmentStage.submit(upload);
                     }
+                });
+        PipelineStage<LocalDate> discoveryStage = new PipelineStage<>("discovery", DISCOVERY_WORKERS, 1,
+                QUEUE_CAPACITY, batch -> {
+                    for (LocalDate date : batch) {
+                        discoverUploads(date, filterStage, checkpoint);
+                    }
+                });
+
+        List<PipelineStage<?>> allStageList = new ArrayList<>();
+        allStageList.add(discoveryStage);
+        allStageList.add(filterStage);
+        allStageList.add(attachmentStage);
+        allStageList.addAll(deleteStagesByStudy.values());
+        for (PipelineStage<?> stage : allStageList) {
+            stage.start();
+        }
+
+        Stopwatch stopwatch = Stopwatch.createStarted();
+        try (PipelineMetricsReporter reporter = new PipelineMetricsReporter(METRICS_PERIOD_SECONDS,
+                allStageList.toArray(new PipelineStage<?>[0]))) {
+            // Each date is its own uploadDate-index partition. Skip dates that are in the gaps between study ranges.
+            for (LocalDate date = minDate; !date.isAfter(maxDate); date = date.plusDays(1)) {
+                if (!anyRuleContains(rulesByStudy, date)) {
                     continue;
                 }
+                if (checkpoint.isCompleted(date.toString())) {
+                    logInfo("Skipping date " + date + ", already completed");
+                    continue;
+                }
+                discoveryStage.submit(date);
+            }
 
-                String recordId = fullUpload.getString("recordId");
-                System.out.println("Found qualifying upload with uploadId=" + uploadId + ", recordId=" + recordId);
+            // Drain each stage in order. Each stage can only be closed once all stages before it are done.
+            discoveryStage.awaitCompletion();
+            filterStage.awaitCompletion();
+            attachmentStage.awaitCompletion();
+            for (PipelineStage<UploadToPurge> deleteStage : deleteStagesByStudy.values()) {
+                deleteStage.awaitCompletion();
+            }
+        }
 
-                if (StringUtils.isNotBlank(recordId)) {
-                    // Query attachments table by recordId
-                    Iterable<Item> attachmentsForRecordIter = attachmentRecordIdIndex.query("recordId", recordId);
-                    for (Item oneAttachment : attachmentsForRecordIter) {
-                        String attachmentId = oneAttachment.getString("id");
-                        System.out.println("Found attachment for uploadId=" + uploadId + ", recordId=" + recordId +
-                                ", attachmentId=" + attachmentId);
+        // Release mode delete failures are caught and counted per upload. Debug mode manifest write failures are
+        // thrown, so they show up as stage errors.
+        for (Map.Entry<String, PipelineStage<UploadToPurge>> deleteStageEntry : deleteStagesByStudy.entrySet()) {
+            String studyId = deleteStageEntry.getKey();
+            PipelineStage<UploadToPurge> deleteStage = deleteStageEntry.getValue();
+            logInfo("Study " + studyId + ": " + deleteStage.getNumSubmitted() + " uploads submitted, " +
+                    numFailedDeletesByStudy.get(studyId).get() + " failed to delete, " + deleteStage.getNumErrors() +
+                    " stage errors");
+        }
+        logInfo("Finished processing dates " + minDate + " to " + maxDate + " in " +
+                stopwatch.elapsed(TimeUnit.SECONDS) + " seconds");
+
+        long numStageErrors = 0;
+        for (PipelineStage<?> stage : allStageList) {
+            numStageErrors += stage.getNumErrors();
+        }
+        return numStageErrors == 0;
+    }
 
-                        if (!debug) {
-                            // Delete from S3 first, then delete from attachments table. This way, if deleting from S3
-                            // fails, we can find the record again through the attachments table.
+    // Helper method to check whether any study's date range includes this date.
+    private static boolean anyRuleContains(Map<String, StudyRule> rulesByStudy, LocalDate date) {
+        for (StudyRule rule : rulesByStudy.values()) {
+            if (rule.contains(date)) {
+                return true;
+            }
+        }
+        return false;
+    }
 
-                            // delete from S3
-                            s3Client.deleteObject(attachmentBucket, attachmentId);
+    /**
+     * Deletes exactly the uploads, records, and attachments listed in a manifest written by debug mode. This skips
+     * discovery, filtering, and attachment lookup entirely, and only runs the delete stage.
+     */
+    public static void executeFromManifest(File manifestFile) throws Exception {
+        AtomicLong numFailedDeletes = new AtomicLong();
+        PipelineStage<UploadToPurge> deleteStage = new PipelineStage<>("delete", DELETE_WORKERS,
+                DELETE_BATCH_SIZE, QUEUE_CAPACITY, batch -> deleteUploads(batch, null, null, numFailedDeletes));
+        deleteStage.start();
 
-                            // delete from attachments table
-                            attachmentTable.deleteItem("id", attachmentId);
-                        }
-                    }
+        Stopwatch stopwatch = Stopwatch.createStarted();
+        try (PipelineMetricsReporter reporter = new PipelineMetricsReporter(METRICS_PERIOD_SECONDS, deleteStage)) {
+            PurgeManifest.read(manifestFile, new PurgeManifest.Visitor() {
+                @Override
+                public void onUpload(String uploadId, String recordId, List<String> attachmentIdList)
+                        throws InterruptedException {
+                    UploadToPurge upload = new UploadToPurge(uploadId, null);
+                    upload.recordId = recordId;
+                    upload.attachmentIdList.addAll(attachmentIdList);
+                    deleteStage.submit(upload);
                 }
+            });
+            deleteStage.awaitCompletion();
+        }
 
-                if (!debug) {
-                    // Delete the record before the upload. This way, we can find the record from the upload if
-                    // deleting the record fails. Similarly for the upload in S3.
+        logInfo("Finished processing manifest " + manifestFile + " in " + stopwatch.elapsed(TimeUnit.SECONDS) +
+                " seconds: " + deleteStage.getNumSubmitted() + " uploads submitted, " + numFailedDeletes.get() +
+                " failed to delete");
+    }
 
-                    // delete record
-                    if (StringUtils.isNotBlank(recordId)) {
-                        recordTable.deleteItem("id", recordId);
-                    }
+    // Discovery stage. Find all uploads for this date and feed them into the pipeline.
+    private static void discoverUploads(LocalDate date, PipelineStage<UploadToPurge> filterStage,
+            CheckpointFile checkpoint) throws InterruptedException {
+        Stopwatch stopwatch = Stopwatch.createStarted();
+        DateProgress dateProgress = new DateProgress(date);
+        int numDiscovered = 0;
+        Iterable<Item> uploadsForDateIter = uploadDateIndex.query("uploadDate", date.toString());
+        for (Item oneUpload : uploadsForDateIter) {
+            acquireDdbPermits(1);
+            dateProgress.numPending.incrementAndGet();
+            filterStage.submit(new UploadToPurge(oneUpload.getString("uploadId"), dateProgress));
+            numDiscovered++;
+        }
+        logInfo("Discovered " + numDiscovered + " uploads for date " + date + " in " +
+                stopwatch.elapsed(TimeUnit.SECONDS) + " seconds");
+
+        dateProgress.discoveryDone = true;
+        dateProgress.checkCompleted(checkpoint);
+    }
+
+    // Filter stage. Looks up each upload and its health code in batches, and returns only the uploads in a study whose
+    // rule includes the upload's date.
+    private static List<UploadToPurge> filterUploads(Map<String, StudyRule> rulesByStudy, List<UploadToPurge> batch,
+            CheckpointFile checkpoint) {
+        // First step is to re-query the table to get all params.
+        List<String> uploadIdList = new ArrayList<>();
+        for (UploadToPurge upload : batch) {
+            uploadIdList.add(upload.uploadId);
+        }
+        acquireDdbPermits(uploadIdList.size());
+        Map<String, Item> fullUploadsById = ddbBatchHelper.batchGetItems(uploadTable.getTableName(), "uploadId",
+                uploadIdList);
+
+        Set<String> healthCodeSet = new HashSet<>();
+        for (UploadToPurge upload : batch) {
+            Item fullUpload = fullUploadsById.get(upload.uploadId);
+            if (fullUpload == null) {
+                // Upload was deleted between the index query and now.
+                logInfo("Upload uploadId=" + upload.uploadId + " no longer exists");
+                upload.finish(checkpoint);
+                continue;
+            }
+            upload.healthCode = fullUpload.getString("healthCode");
+            upload.recordId = fullUpload.getString("recordId");
+            if (upload.healthCode == null) {
+                // Can't tell which study this upload is from, so we can't purge it. Finish it so the date still gets
+                // checkpointed.
+                logInfo("Upload has no healthCode, uploadId=" + upload.uploadId);
+                upload.finish(checkpoint);
+                continue;
+            }
+            healthCodeSet.add(upload.healthCode);
+        }
+
+        // Check healthCode table to verify what study these uploads come from.
+        Map<String, Item> healthCodesByCode = new HashMap<>();
+        if (!healthCodeSet.isEmpty()) {
+            acquireDdbPermits(healthCodeSet.size());
+            healthCodesByCode = ddbBatchHelper.batchGetItems(healthCodeTable.getTableName(), "code", healthCodeSet);
+        }
 
-                    // delete from S3
-                    s3Client.deleteObject(uploadBucket, uploadId);
+        List<UploadToPurge> qualifyingUploadList = new ArrayList<>();
+        for (UploadToPurge upload : batch) {
+            if (upload.healthCode == null) {
+                // Already finished above, either because the upload no longer exists or it has no healthCode.
+                continue;
+            }
 
-                    // delete upload
-                    uploadTable.deleteItem("uploadId", uploadId);
+            Item healthCodeToStudy = healthCodesByCode.get(upload.healthCode);
+            if (healthCodeToStudy == null) {
+                logInfo("Upload has healthCode with no entry in HealthCode table, uploadId=" + upload.uploadId);
+                upload.finish(checkpoint);
+                continue;
+            }
 
-                    System.out.println("Done deleting for uploadId=" + uploadId);
+            String uploadStudyId = healthCodeToStudy.getString("studyIdentifier");
+            StudyRule rule = rulesByStudy.get(uploadStudyId);
+            if (rule == null || !rule.contains(upload.dateProgress.date)) {
+                if (debug) {
+                    logInfo("Filtered out uploadId=" + upload.uploadId + ": Upload in study " + uploadStudyId +
+                            ", which isn't being purged for date " + upload.dateProgress.date);
                 }
-            } catch (RuntimeException ex) {
-                System.err.println("Error processing uploadId="  + uploadId + ": " + ex.getMessage());
-                ex.printStackTrace();
+                upload.finish(checkpoint);
+                continue;
+            }
+            upload.studyId = uploadStudyId;
+
+            logInfo("Found qualifying upload with uploadId=" + upload.uploadId + ", recordId=" + upload.recordId);
+            qualifyingUploadList.add(upload);
+        }
+        return qualifyingUploadList;
+    }
+
+    // Attachment stage. Query attachments table by recordId.
+    private static void findAttachments(UploadToPurge upload) {
+        if (StringUtils.isBlank(upload.recordId)) {
+            return;
+        }
+
+        acquireDdbPermits(1);
+        Iterable<Item> attachmentsForRecordIter = attachmentRecordIdIndex.query("recordId", upload.recordId);
+        for (Item oneAttachment : attachmentsForRecordIter) {
+            String attachmentId = oneAttachment.getString("id");
+            logInfo("Found attachment for uploadId=" + upload.uploadId + ", recordId=" + upload.recordId +
+                    ", attachmentId=" + attachmentId);
+            upload.attachmentIdList.add(attachmentId);
+        }
+    }
+
+    // Delete stage. Deletes a batch of uploads with multi-object S3 deletes and DDB batch writes. In debug mode, writes
+    // them to the study's manifest instead. Manifest write errors are thrown, so the stage counts them and the
+    // manifest isn't marked complete. Uploads that fail to delete are added to numFailedDeletes.
+    private static void deleteUploads(List<UploadToPurge> batch, CheckpointFile checkpoint,
+            PurgeManifest.Writer manifestWriter, AtomicLong numFailedDeletes) throws IOException {
+        if (debug) {
+            for (UploadToPurge upload : batch) {
+                manifestWriter.writeUpload(upload.uploadId, upload.recordId, upload.attachmentIdList);
+                upload.finish(checkpoint);
+            }
+            return;
+        }
+
+        List<String> attachmentIdList = new ArrayList<>();
+        List<String> recordIdList = new ArrayList<>();
+        List<String> uploadIdList = new ArrayList<>();
+        for (UploadToPurge upload : batch) {
+            attachmentIdList.addAll(upload.attachmentIdList);
+            if (StringUtils.isNotBlank(upload.recordId)) {
+                recordIdList.add(upload.recordId);
             }
+            uploadIdList.add(upload.uploadId);
+        }
+
+        try {
+            // This keeps the same ordering as deleting one upload at a time: For every upload in the batch, S3
+            // attachments are deleted before the attachments table, attachments before the record, the record
+            // before the upload, and the upload in S3 before the upload in DDB. This way, if any step fails, we can
+            // still find the remaining data from what's left.
+            deleteS3Objects(attachmentBucket, attachmentIdList);
+            acquireDdbPermits(attachmentIdList.size());
+            ddbBatchHelper.batchDeleteItems(attachmentTable.getTableName(), "id", attachmentIdList);
+
+            acquireDdbPermits(recordIdList.size());
+            ddbBatchHelper.batchDeleteItems(recordTable.getTableName(), "id", recordIdList);
+
+            deleteS3Objects(uploadBucket, uploadIdList);
+            acquireDdbPermits(uploadIdList.size());
+            ddbBatchHelper.batchDeleteItems(uploadTable.getTableName(), "uploadId", uploadIdList);
+
+            for (UploadToPurge upload : batch) {
+                logInfo("Done deleting for uploadId=" + upload.uploadId);
+                upload.finish(checkpoint);
+            }
+        } catch (RuntimeException ex) {
+            // Don't finish these uploads. This leaves their dates un-checkpointed, so they'll be retried next run.
+            logError("Error deleting batch of uploads " + uploadIdList + ": " + ex.getMessage(), ex);
+            numFailedDeletes.addAndGet(batch.size());
+        }
+    }
+
+    // Helper method to charge DDB items against the shared budget. RateLimiter doesn't allow acquiring 0 permits.
+    private static void acquireDdbPermits(int numItems) {
+        if (numItems > 0) {
+            ddbRateLimiter.acquire(numItems);
+        }
+    }
+
+    // Helper method to delete S3 objects in batches using the multi-object delete API.
+    private static void deleteS3Objects(String bucket, List<String> keyList) {
+        for (List<String> keyBatch : Iterables.partition(keyList, 1000)) {
+            DeleteObjectsRequest request = new DeleteObjectsRequest(bucket)
+                    .withKeys(keyBatch.toArray(new String[keyBatch.size()])).withQuiet(true);
+            s3Client.deleteObjects(request);
+        }
+    }
+
+    // Work item that flows through the pipeline. Each stage fills in more of the fields.
+    private static class UploadToPurge {
+        private final String uploadId;
+        private final DateProgress dateProgress;
+        private final List<String> attachmentIdList = new ArrayList<>();
+        private String healthCode;
+        private String recordId;
+        private String studyId;
+
+        UploadToPurge(String uploadId, DateProgress dateProgress) {
+            this.uploadId = uploadId;
+            this.dateProgress = dateProgress;
+        }
 
-            // Newline for better logging.
-            System.out.println();
+        // Called when this upload is done, either filtered out or successfully deleted. Uploads that fail are never
+        // finished, so their date is never checkpointed. Uploads from a manifest have no date to checkpoint.
+        void finish(CheckpointFile checkpoint) {
+            if (dateProgress == null) {
+                return;
+            }
+            dateProgress.numPending.decrementAndGet();
+            dateProgress.checkCompleted(checkpoint);
+        }
+    }
+
+    /** A study to purge, and the range of upload dates to purge for that study, inclusive. */
+    public static class StudyRule {
+        private final String studyId;
+        private final LocalDate startDate;
+        private final LocalDate endDate;
+
+        public StudyRule(String studyId, LocalDate startDate, LocalDate endDate) {
+            if (endDate.isBefore(startDate)) {
+                throw new IllegalArgumentException("End date " + endDate + " is before start date " + startDate +
+                        " for study " + studyId);
+            }
+            this.studyId = studyId;
+            this.startDate = startDate;
+            this.endDate = endDate;
+        }
+
+        boolean contains(LocalDate date) {
+            return !date.isBefore(startDate) && !date.isAfter(endDate);
+        }
+    }
+
+    // Tracks how many uploads for a date are still in the pipeline.
+    private static class DateProgress {
+        private final LocalDate date;
+        private final AtomicInteger numPending = new AtomicInteger();
+        private volatile boolean discoveryDone = false;
+        private boolean completed = false;
+
+        DateProgress(LocalDate date) {
+            this.date = date;
+        }
+
+        // Checkpoints the date once discovery is done and nothing is pending. Debug mode deletes nothing, so it
+        // never checkpoints.
+        synchronized void checkCompleted(CheckpointFile checkpoint) {
+            if (!completed && discoveryDone && numPending.get() == 0) {
+                completed = true;
+                if (!debug) {
+                    checkpoint.markCompleted(date.toString());
+                    logInfo("Completed date " + date);
+                }
+            }
         }
     }
 }
@@ -3,24 +3,42 @@ package org.sagebionetworks.bridge.scripts;
 import static org.sagebionetworks.bridge.helper.LogHelper.logError;
 import static org.sagebionetworks.bridge.helper.LogHelper.logInfo;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import com.amazonaws.AmazonClientException;
 import com.amazonaws.services.dynamodbv2.AmazonDynamoDBClient;
 import com.amazonaws.services.dynamodbv2.document.DynamoDB;
 import com.amazonaws.services.dynamodbv2.document.Item;
+import com.amazonaws.services.dynamodbv2.document.ItemUtils;
+import com.amazonaws.services.dynamodbv2.document.Page;
+import com.amazonaws.services.dynamodbv2.document.PrimaryKey;
+import com.amazonaws.services.dynamodbv2.document.ScanOutcome;
 import com.amazonaws.services.dynamodbv2.document.Table;
+import com.amazonaws.services.dynamodbv2.document.spec.ScanSpec;
+import com.amazonaws.services.dynamodbv2.model.AttributeValue;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.google.common.base.Stopwatch;
 import com.google.common.util.concurrent.RateLimiter;
 import org.joda.time.DateTime;
 import org.joda.time.DateTimeZone;
 
 import org.sagebionetworks.bridge.helper.BridgeHelper;
+import org.sagebionetworks.bridge.helper.PipelineMetricsReporter;
+import org.sagebionetworks.bridge.helper.PipelineStage;
 import org.sagebionetworks.bridge.rest.ClientManager;
 import org.sagebionetworks.bridge.rest.exceptions.EntityNotFoundException;
 import org.sagebionetworks.bridge.rest.model.ClientInfo;
@@ -28,21 +46,75 @@ import org.sagebionetworks.bridge.rest.model.HealthDataSubmission;
 import org.sagebionetworks.bridge.rest.model.SignIn;
 import org.sagebionetworks.bridge.rest.model.StudyParticipant;
 
+/**
+ * <p>
+ * Backfills health data for SMS messages in the NotificationLog table. This runs as a pipeline of stages connected by
+ * bounded queues: scan (parallel scan segments of NotificationLog), participant (looks up each user in Bridge), and
+ * submit (submits the health data). Each stage has its own worker count and its own rate budget, so a slow Bridge
+ * call doesn't hold up the scan, and the slowest stage sets the pace.
+ * </p>
+ * <p>
+ * Usage: SmsLogHealthDataBackfill [path to config JSON] [optional: grouped or grouped-resume]
+ * </p>
+ * <p>
+ * In grouped mode, the scan first writes each entry to a local partition file by hash of user ID. Then each partition
+ * is read back and grouped by user, so each participant is looked up once and all of that user's entries are
+ * submitted together. Bridge lookups then scale with the number of users rather than the number of messages. Each
+ * partition needs to fit in memory, which is what "numPartitions" (defaults to 64) is for.
+ * </p>
+ * <p>
+ * If any scan segment fails, grouped mode stops before submitting anything and deletes the partial partition files, so
+ * running grouped mode again rescans without resubmitting. Otherwise, a partition file is deleted once every entry in
+ * it has been submitted (or has failed and been logged). If some partitions fail to read, or the run stops partway,
+ * grouped-resume skips the scan and processes only the partition files that are left. Entries in those partitions
+ * that were already submitted before the run stopped are submitted again.
+ * </p>
+ * <p>
+ * Optional config: "scanSegments" (defaults to 4), "scanItemsPerSecond" (defaults to 100), "participantWorkers"
+ * (defaults to 4), "participantsPerSecond" (defaults to 10), "submissionWorkers" (defaults to 4), and
+ * "submissionsPerSecond" (defaults to 10).
+ * </p>
+ */
+@SuppressWarnings("UnstableApiUsage")
 public class SmsLogHealthDataBackfill {
     private static final ClientInfo CLIENT_INFO = new ClientInfo().appName("SmsLogHealthDataBackfill").appVersion(1);
     private static final ObjectMapper JSON_MAPPER = new ObjectMapper();
+    private static final int METRICS_PERIOD_SECONDS = 60;
+    private static final int QUEUE_CAPACITY = 1000;
 
-    // If there are a lot of entries, write log messages regularly so we know the worker is still running.
-    private static final int REPORTING_INTERVAL = 25;
+    // A scan segment that fails this many times in a row, without making progress, is given up on.
+    private static final int MAX_SCAN_ATTEMPTS = 5;
+    private static final long SCAN_RETRY_BACKOFF_MILLIS = 1000;
+
+    // Defaults for stage configs. These can be overridden in the config.
+    private static final int DEFAULT_SCAN_SEGMENTS = 4;
+    private static final double DEFAULT_SCAN_ITEMS_PER_SECOND = 100.0;
+    private static final int DEFAULT_PARTICIPANT_WORKERS = 4;
+    private static final double DEFAULT_PARTICIPANTS_PER_SECOND = 10.0;
+    private static final int DEFAULT_SUBMISSION_WORKERS = 4;
+    private static final double DEFAULT_SUBMISSIONS_PER_SECOND = 10.0;
+    private static final int DEFAULT_NUM_PARTITIONS = 64;
+
+    // Partition files for grouped mode are written here, relative to the working directory.
+    private static final File PARTITION_DIR = new File("SmsLogHealthDataBackfill-partitions");
 
     private final BridgeHelper bridgeHelper;
     private final DynamoDB ddbClient;
     private final String ddbPrefix;
-    private final RateLimiter perMessageRateLimiter = RateLimiter.create(1.0);
 
-    public static void main(String[] args) throws IOException {
-        if (args.length != 1) {
-            logInfo("Usage: SmsLogHealthDataBackfill [path to config JSON]");
+    // Stage configs.
+    private int numScanSegments = DEFAULT_SCAN_SEGMENTS;
+    private double scanItemsPerSecond = DEFAULT_SCAN_ITEMS_PER_SECOND;
+    private int numParticipantWorkers = DEFAULT_PARTICIPANT_WORKERS;
+    private double participantsPerSecond = DEFAULT_PARTICIPANTS_PER_SECOND;
+    private int numSubmissionWorkers = DEFAULT_SUBMISSION_WORKERS;
+    private double submissionsPerSecond = DEFAULT_SUBMISSIONS_PER_SECOND;
+    private int numPartitions = DEFAULT_NUM_PARTITIONS;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length != 1 && !(args.length == 2 && ("grouped".equals(args[1]) ||
+                "grouped-resume".equals(args[1])))) {
+            logInfo("Usage: SmsLogHealthDataBackfill [path to config JSON] [optional: grouped or grouped-resume]");
             return;
         }
 
@@ -67,9 +139,38 @@ public class SmsLogHealthDataBackfill {
 
         SmsLogHealthDataBackfill backfill = new SmsLogHealthDataBackfill(bridgeHelper, ddbClient, ddbPrefix);
 
+        // Stage configs.
+        if (configNode.hasNonNull("scanSegments")) {
+            backfill.setNumScanSegments(configNode.get("scanSegments").intValue());
+        }
+        if (configNode.hasNonNull("scanItemsPerSecond")) {
+            backfill.setScanItemsPerSecond(configNode.get("scanItemsPerSecond").doubleValue());
+        }
+        if (configNode.hasNonNull("participantWorkers")) {
+            backfill.setNumParticipantWorkers(configNode.get("participantWorkers").intValue());
+        }
+        if (configNode.hasNonNull("participantsPerSecond")) {
+            backfill.setParticipantsPerSecond(configNode.get("participantsPerSecond").doubleValue());
+        }
+        if (configNode.hasNonNull("submissionWorkers")) {
+            backfill.setNumSubmissionWorkers(configNode.get("submissionWorkers").intValue());
+        }
+        if (configNode.hasNonNull("submissionsPerSecond")) {
+            backfill.setSubmissionsPerSecond(configNode.get("submissionsPerSecond").doubleValue());
+        }
+        if (configNode.hasNonNull("numPartitions")) {
+            backfill.setNumPartitions(configNode.get("numPartitions").intValue());
+        }
+
         // Execute.
         try {
-            backfill.execute();
+            if (args.length == 2 && "grouped-resume".equals(args[1])) {
+                backfill.resumeGroupedByUser();
+            } else if (args.length == 2) {
+                backfill.executeGroupedByUser();
+            } else {
+                backfill.execute();
+            }
         } finally {
             backfill.cleanup();
         }
@@ -81,85 +182,548 @@ public class SmsLogHealthDataBackfill {
         this.ddbPrefix = ddbPrefix;
     }
 
-    public void execute() {
+    /** Number of parallel scan segments over NotificationLog. Defaults to 4. */
+    public void setNumScanSegments(int numScanSegments) {
+        this.numScanSegments = numScanSegments;
+    }
+
+    /** Rate budget for scanned NotificationLog entries, shared by all segments. Defaults to 100. */
+    public void setScanItemsPerSecond(double scanItemsPerSecond) {
+        this.scanItemsPerSecond = scanItemsPerSecond;
+    }
+
+    /** Number of workers looking up participants. Defaults to 4. */
+    public void setNumParticipantWorkers(int numParticipantWorkers) {
+        this.numParticipantWorkers = numParticipantWorkers;
+    }
+
+    /** Rate budget for participant lookups, shared by all participant workers. Defaults to 10. */
+    public void setParticipantsPerSecond(double participantsPerSecond) {
+        this.participantsPerSecond = participantsPerSecond;
+    }
+
+    /** Number of workers submitting health data. Defaults to 4. */
+    public void setNumSubmissionWorkers(int numSubmissionWorkers) {
+        this.numSubmissionWorkers = numSubmissionWorkers;
+    }
+
+    /** Rate budget for health data submissions, shared by all submission workers. Defaults to 10. */
+    public void setSubmissionsPerSecond(double submissionsPerSecond) {
+        this.submissionsPerSecond = submissionsPerSecond;
+    }
+
+    /** Number of partition files in grouped mode. Defaults to 64. */
+    public void setNumPartitions(int numPartitions) {
+        this.numPartitions = numPartitions;
+    }
+
+    public void execute() throws InterruptedException {
         logInfo("Starting backfill...");
 
-        // Scan notification log table and process each row.
         Table notificationLogTable = ddbClient.getTable(ddbPrefix + "NotificationLog");
-        Iterable<Item> notificationLogTableIter = notificationLogTable.scan();
-        int numEntries = 0;
-        int numBackfilled = 0;
+        RateLimiter scanRateLimiter = RateLimiter.create(scanItemsPerSecond);
+        RateLimiter participantRateLimiter = RateLimiter.create(participantsPerSecond);
+        RateLimiter submissionRateLimiter = RateLimiter.create(submissionsPerSecond);
+        AtomicInteger numEntries = new AtomicInteger();
+        AtomicInteger numBackfilled = new AtomicInteger();
+
+        // Set up the stages. Stages are created back to front, because each stage submits to the next one.
+        PipelineStage<Submission> submitStage = newSubmitStage(submissionRateLimiter, numBackfilled);
+        PipelineStage<LogEntry> participantStage = new PipelineStage<>("participant", numParticipantWorkers, 1,
+                QUEUE_CAPACITY, batch -> {
+                    for (LogEntry entry : batch) {
+                        participantRateLimiter.acquire();
+                        try {
+                            DateTimeZone timeZone = getTimeZone(entry.userId);
+                            if (timeZone != null) {
+                                submitStage.submit(new Submission(entry.userId, makeHealthData(entry, timeZone),
+                                        null));
+                            }
+                        } catch (InterruptedException ex) {
+                            throw ex;
+                        } catch (Exception ex) {
+                            logError("Error processing log entry for user " + entry.userId + ": " +
+                                    ex.getMessage(), ex);
+                        }
+                    }
+                });
+        PipelineStage<Integer> scanStage = new PipelineStage<>("scan", numScanSegments, 1, numScanSegments,
+                batch -> {
+                    for (int segment : batch) {
+                        scanSegment(notificationLogTable, segment, scanRateLimiter, numEntries,
+                                participantStage::submit);
+                    }
+                });
+
+        scanStage.start();
+        participantStage.start();
+        submitStage.start();
+
         Stopwatch stopwatch = Stopwatch.createStarted();
-        for (Item notificationLogEntry : notificationLogTableIter) {
-            // Rate limit.
-            perMessageRateLimiter.acquire();
+        try (PipelineMetricsReporter reporter = new PipelineMetricsReporter(METRICS_PERIOD_SECONDS, scanStage,
+                participantStage, submitStage)) {
+            for (int i = 0; i < numScanSegments; i++) {
+                scanStage.submit(i);
+            }
 
-            // Process.
-            try {
-                // Get message log attributes.
-                String userId = notificationLogEntry.getString("userId");
-                long sentOnMillis = notificationLogEntry.getLong("notificationTime");
-                String messageBody = notificationLogEntry.getString("message");
-
-                // We neglected to add study ID to the notification log. Also, the user might have been deleted. Check
-                // Bridge Server to see if the user exists and is in our study.
-                StudyParticipant participant = null;
+            // Drain each stage in order. Each stage can only be closed once all stages before it are done.
+            scanStage.awaitCompletion();
+            participantStage.awaitCompletion();
+            submitStage.awaitCompletion();
+        }
+
+        logInfo("Finished processing " + numEntries.get() + " entries in " + stopwatch.elapsed(TimeUnit.SECONDS) +
+                " seconds");
+        logInfo("Backfilled " + numBackfilled.get() + " entries");
+        bridgeHelper.getParticipantCache().logStats();
+        if (scanStage.getNumErrors() > 0) {
+            logError("Scan failed for " + scanStage.getNumErrors() + " of " + numScanSegments +
+                    " segments. Entries in those segments may not have been backfilled.");
+        }
+    }
+
+    /**
+     * Backfills in grouped mode. The scan writes entries to partition files by hash of user ID, then each partition is
+     * grouped by user, so each participant is looked up once and all of their entries are submitted together.
+     */
+    public void executeGroupedByUser() throws InterruptedException, IOException {
+        logInfo("Starting backfill, grouped by user...");
+
+        // A fresh scan re-creates every entry, so any partition files left from an earlier run are just overwritten.
+        List<File> leftoverPartitionFileList = listPartitionFiles();
+        if (!leftoverPartitionFileList.isEmpty()) {
+            logInfo("Overwriting " + leftoverPartitionFileList.size() + " partition files left from an earlier run " +
+                    "in " + PARTITION_DIR);
+        }
+
+        // Pass 1: Scan and partition.
+        Table notificationLogTable = ddbClient.getTable(ddbPrefix + "NotificationLog");
+        RateLimiter scanRateLimiter = RateLimiter.create(scanItemsPerSecond);
+        AtomicInteger numEntries = new AtomicInteger();
+        List<File> partitionFileList = new ArrayList<>();
+        Stopwatch stopwatch = Stopwatch.createStarted();
+        long numFailedSegments = partitionEntries(notificationLogTable, scanRateLimiter, numEntries,
+                partitionFileList);
+        logInfo("Partitioned " + numEntries.get() + " entries into " + numPartitions + " partitions in " +
+                stopwatch.elapsed(TimeUnit.SECONDS) + " seconds");
+
+        // The partitions are missing the failed segments' entries. Nothing has been submitted yet, so stop here and
+        // delete the partial partitions, so grouped-resume can't submit them and a fresh grouped run doesn't
+        // duplicate anything.
+        if (numFailedSegments > 0) {
+            logError("Scan failed for " + numFailedSegments + " of " + numScanSegments + " segments. Nothing was " +
+                    "submitted. Run grouped mode again to rescan.");
+            for (File partitionFile : partitionFileList) {
+                if (!partitionFile.delete()) {
+                    logInfo("Could not delete partition file " + partitionFile);
+                }
+            }
+            return;
+        }
+
+        // Pass 2: Group and submit.
+        processPartitions(partitionFileList);
+    }
+
+    /**
+     * Resumes grouped mode without scanning, by processing only the partition files left in the partition directory
+     * from an earlier grouped run.
+     */
+    public void resumeGroupedByUser() throws InterruptedException {
+        List<File> partitionFileList = listPartitionFiles();
+        if (partitionFileList.isEmpty()) {
+            logInfo("No partition files left in " + PARTITION_DIR + ", nothing to resume");
+            return;
+        }
+
+        logInfo("Resuming backfill, grouped by user, with " + partitionFileList.size() + " partition files...");
+        processPartitions(partitionFileList);
+    }
+
+    // Helper method to list the partition files in the partition directory, sorted by name.
+    private static List<File> listPartitionFiles() {
+        File[] partitionFiles = PARTITION_DIR.listFiles((dir, name) -> name.startsWith("partition-") &&
+                name.endsWith(".json"));
+        if (partitionFiles == null) {
+            return new ArrayList<>();
+        }
+        Arrays.sort(partitionFiles);
+        return new ArrayList<>(Arrays.asList(partitionFiles));
+    }
+
+    // Pass 2 of grouped mode. Groups each partition by user, and looks up and submits one user at a time. Stages are
+    // created back to front, because each stage submits to the next one. Partitions are read one at a time, so only
+    // one partition is in memory at once (plus whatever is queued in the user stage).
+    private void processPartitions(List<File> partitionFileList) throws InterruptedException {
+        RateLimiter participantRateLimiter = RateLimiter.create(participantsPerSecond);
+        RateLimiter submissionRateLimiter = RateLimiter.create(submissionsPerSecond);
+        AtomicInteger numUsers = new AtomicInteger();
+        AtomicInteger numBackfilled = new AtomicInteger();
+
+        PipelineStage<Submission> submitStage = newSubmitStage(submissionRateLimiter, numBackfilled);
+        PipelineStage<UserEntries> userStage = new PipelineStage<>("user", numParticipantWorkers, 1,
+                QUEUE_CAPACITY, batch -> {
+                    for (UserEntries userEntries : batch) {
+                        participantRateLimiter.acquire();
+                        int numQueued = 0;
+                        try {
+                            DateTimeZone timeZone = getTimeZone(userEntries.userId);
+                            if (timeZone != null) {
+                                for (LogEntry entry : userEntries.entryList) {
+                                    submitStage.submit(new Submission(entry.userId, makeHealthData(entry,
+                                            timeZone), userEntries.partition));
+                                    numQueued++;
+                                }
+                            }
+                        } catch (InterruptedException ex) {
+                            throw ex;
+                        } catch (Exception ex) {
+                            logError("Error processing " + userEntries.entryList.size() + " log entries for user " +
+                                    userEntries.userId + ": " + ex.getMessage(), ex);
+                        }
+
+                        // Entries that were queued are marked done by the submit stage. The rest are done now.
+                        userEntries.partition.markEntriesDone(userEntries.entryList.size() - numQueued);
+                    }
+                });
+        PipelineStage<File> partitionStage = new PipelineStage<>("partition", 1, 1, numPartitions, batch -> {
+            for (File partitionFile : batch) {
+                readPartition(partitionFile, userStage, numUsers);
+            }
+        });
+
+        partitionStage.start();
+        userStage.start();
+        submitStage.start();
+
+        Stopwatch stopwatch = Stopwatch.createStarted();
+        try (PipelineMetricsReporter reporter = new PipelineMetricsReporter(METRICS_PERIOD_SECONDS, partitionStage,
+                userStage, submitStage)) {
+            for (File partitionFile : partitionFileList) {
+                partitionStage.submit(partitionFile);
+            }
+
+            // Drain each stage in order. Each stage can only be closed once all stages before it are done.
+            partitionStage.awaitCompletion();
+            userStage.awaitCompletion();
+            submitStage.awaitCompletion();
+        }
+
+        logInfo("Finished processing " + partitionFileList.size() + " partitions with " + numUsers.get() +
+                " users in " + stopwatch.elapsed(TimeUnit.SECONDS) + " seconds");
+        logInfo("Backfilled " + numBackfilled.get() + " entries");
+        bridgeHelper.getParticipantCache().logStats();
+        if (partitionStage.getNumErrors() > 0) {
+            logError("Failed to read " + partitionStage.getNumErrors() + " partitions. Partition files that " +
+                    "failed are left in " + PARTITION_DIR + ". Run again with grouped-resume to retry them.");
+        }
+    }
+
+    // Scans the notification log table and writes each entry to a partition file by hash of user ID. Adds the
+    // partition files to the given list. Returns the number of scan segments that failed.
+    private long partitionEntries(Table notificationLogTable, RateLimiter scanRateLimiter, AtomicInteger numEntries,
+            List<File> partitionFileList) throws InterruptedException, IOException {
+        if (!PARTITION_DIR.isDirectory() && !PARTITION_DIR.mkdirs()) {
+            throw new IOException("Could not create directory " + PARTITION_DIR);
+        }
+
+        List<BufferedWriter> partitionWriterList = new ArrayList<>();
+        try {
+            for (int i = 0; i < numPartitions; i++) {
+                File partitionFile = new File(PARTITION_DIR, "partition-" + i + ".json");
+                partitionFileList.add(partitionFile);
+                partitionWriterList.add(Files.newBufferedWriter(partitionFile.toPath(), StandardCharsets.UTF_8));
+            }
+
+            PipelineStage<Integer> scanStage = new PipelineStage<>("scan", numScanSegments, 1, numScanSegments,
+                    batch -> {
+                        for (int segment : batch) {
+                            scanSegment(notificationLogTable, segment, scanRateLimiter, numEntries,
+                                    entry -> writePartitionEntry(partitionWriterList, entry));
+                        }
+                    });
+            scanStage.start();
+            try (PipelineMetricsReporter reporter = new PipelineMetricsReporter(METRICS_PERIOD_SECONDS, scanStage)) {
+                for (int i = 0; i < numScanSegments; i++) {
+                    scanStage.submit(i);
+                }
+                scanStage.awaitCompletion();
+            }
+            return scanStage.getNumErrors();
+        } finally {
+            for (BufferedWriter partitionWriter : partitionWriterList) {
                 try {
-                    participant = bridgeHelper.getParticipant(userId);
-                } catch (EntityNotFoundException ex) {
-                    logInfo("User " + userId + " does not exist");
+                    partitionWriter.close();
+                } catch (IOException ex) {
+                    logError("Error closing partition file: " + ex.getMessage(), ex);
                 }
+            }
+        }
+    }
+
+    // Helper method to write an entry to its partition file, one JSON object per line. Scan segments write
+    // concurrently, so each write locks the partition's writer.
+    private static void writePartitionEntry(List<BufferedWriter> partitionWriterList, LogEntry entry)
+            throws IOException {
+        if (entry.userId == null) {
+            // The scan already skips these, but an entry without a user can't be partitioned or backfilled anyway.
+            logError("Skipping log entry with no userId, sentOnMillis=" + entry.sentOnMillis);
+            return;
+        }
+
+        ObjectNode entryNode = JSON_MAPPER.createObjectNode();
+        entryNode.put("userId", entry.userId);
+        entryNode.put("sentOnMillis", entry.sentOnMillis);
+        entryNode.put("messageBody", entry.messageBody);
+        String line = JSON_MAPPER.writeValueAsString(entryNode);
+
+        BufferedWriter partitionWriter = partitionWriterList.get(Math.floorMod(entry.userId.hashCode(),
+                partitionWriterList.size()));
+        synchronized (partitionWriter) {
+            partitionWriter.write(line);
+            partitionWriter.newLine();
+        }
+    }
 
-                if (participant != null) {
-                    // Set sentOn w/ user's time zone, if it exists.
-                    DateTimeZone timeZone;
-                    if (participant.getTimeZone() != null) {
-                        timeZone = parseTimeZone(participant.getTimeZone());
-                    } else {
-                        timeZone = DateTimeZone.UTC;
+    // Partition stage. Reads a partition file, groups its entries by user, and feeds each user into the user stage.
+    // The partition file is deleted once all of its entries are done, which is usually after this returns.
+    private static void readPartition(File partitionFile, PipelineStage<UserEntries> userStage,
+            AtomicInteger numUsers) throws InterruptedException, IOException {
+        Map<String, List<LogEntry>> entriesByUser = new HashMap<>();
+        int numPartitionEntries = 0;
+        try (BufferedReader partitionReader = Files.newBufferedReader(partitionFile.toPath(),
+                StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = partitionReader.readLine()) != null) {
+                JsonNode entryNode = JSON_MAPPER.readTree(line);
+                LogEntry entry = new LogEntry(entryNode.get("userId").textValue(),
+                        entryNode.get("sentOnMillis").longValue(), entryNode.get("messageBody").textValue());
+                entriesByUser.computeIfAbsent(entry.userId, userId -> new ArrayList<>()).add(entry);
+                numPartitionEntries++;
+            }
+        }
+
+        // Count all the entries before queueing any, so the file can't be deleted while users are still being queued.
+        Partition partition = new Partition(partitionFile, numPartitionEntries);
+        if (numPartitionEntries == 0) {
+            partition.deleteFile();
+            return;
+        }
+        for (Map.Entry<String, List<LogEntry>> userEntry : entriesByUser.entrySet()) {
+            userStage.submit(new UserEntries(userEntry.getKey(), userEntry.getValue(), partition));
+            numUsers.incrementAndGet();
+        }
+    }
+
+    // Submit stage. Submits health data for one entry. Shared by both modes.
+    private PipelineStage<Submission> newSubmitStage(RateLimiter submissionRateLimiter, AtomicInteger numBackfilled) {
+        return new PipelineStage<>("submit", numSubmissionWorkers, 1, QUEUE_CAPACITY, batch -> {
+            for (Submission submission : batch) {
+                submissionRateLimiter.acquire();
+                try {
+                    bridgeHelper.submitHealthDataForParticipant(submission.userId, submission.healthData);
+                    numBackfilled.incrementAndGet();
+                } catch (Exception ex) {
+                    logError("Error submitting health data for user " + submission.userId + ": " +
+                            ex.getMessage(), ex);
+                }
+
+                if (submission.partition != null) {
+                    submission.partition.markEntriesDone(1);
+                }
+            }
+        });
+    }
+
+    // Scan stage. Scans one segment of the notification log table and passes each entry to the sink. An entry that
+    // can't be read, or that the sink fails on, is logged and skipped, so one bad entry doesn't lose the rest of the
+    // segment. If a page fails to load, the scan is resumed after the last page that was fully processed.
+    private void scanSegment(Table notificationLogTable, int segment, RateLimiter scanRateLimiter,
+            AtomicInteger numEntries, EntrySink sink) throws InterruptedException, IOException {
+        Stopwatch stopwatch = Stopwatch.createStarted();
+        int numScanned = 0;
+        int numSkipped = 0;
+        Map<String, AttributeValue> lastEvaluatedKey = null;
+        int numConsecutiveFailures = 0;
+        while (true) {
+            ScanSpec scanSpec = new ScanSpec().withSegment(segment).withTotalSegments(numScanSegments);
+            if (lastEvaluatedKey != null) {
+                scanSpec.withExclusiveStartKey(toPrimaryKey(lastEvaluatedKey));
+            }
+
+            try {
+                for (Page<Item, ScanOutcome> page : notificationLogTable.scan(scanSpec).pages()) {
+                    for (Item notificationLogEntry : page) {
+                        scanRateLimiter.acquire();
+                        numScanned++;
+                        numEntries.incrementAndGet();
+                        if (!handleEntry(notificationLogEntry, segment, sink)) {
+                            numSkipped++;
+                        }
                     }
-                    DateTime sentOn = new DateTime(sentOnMillis, timeZone);
-
-                    // Create health data. (Use a map instead of a Jackson JSON node, because mixing JSON libraries
-                    // causes bad things to happen.) All messages sent by the notification worker are promotional.
-                    Map<String, String> dataMap = new HashMap<>();
-                    dataMap.put("sentOn", sentOn.toString());
-                    dataMap.put("smsType", "Promotional");
-                    dataMap.put("messageBody", messageBody);
-
-                    // Health Data Service requires app version and phone info. However, this health data is submitted
-                    // by Bridge, not by the app, so fill those in with artificial values.
-                    HealthDataSubmission healthData = new HealthDataSubmission().appVersion("SmsLogHealthDataBackfill")
-                            .phoneInfo("SmsLogHealthDataBackfill").createdOn(sentOn)
-                            .schemaId("sms-messages-sent-from-bridge").schemaRevision(1L).data(dataMap);
-                    bridgeHelper.submitHealthDataForParticipant(userId, healthData);
-
-                    numBackfilled++;
+
+                    // The page is fully processed, so a retry can start after it.
+                    lastEvaluatedKey = page.getLowLevelResult().getScanResult().getLastEvaluatedKey();
+                    numConsecutiveFailures = 0;
                 }
-            } catch (Exception ex) {
-                logError("Error processing log entry: " + ex.getMessage(), ex);
+                break;
+            } catch (AmazonClientException ex) {
+                numConsecutiveFailures++;
+                if (numConsecutiveFailures >= MAX_SCAN_ATTEMPTS) {
+                    throw ex;
+                }
+                logError("Error scanning segment " + segment + " (attempt " + numConsecutiveFailures + "), " +
+                        "resuming after key " + lastEvaluatedKey + ": " + ex.getMessage(), ex);
+                Thread.sleep(SCAN_RETRY_BACKOFF_MILLIS * numConsecutiveFailures);
             }
+        }
+        logInfo("Scanned " + numScanned + " entries in segment " + segment + " (" + numSkipped + " skipped) in " +
+                stopwatch.elapsed(TimeUnit.SECONDS) + " seconds");
+    }
 
-            // Reporting.
-            numEntries++;
-            if (numEntries % REPORTING_INTERVAL == 0) {
-                logInfo("Processing entries in progress: " + numEntries + " entries in " +
-                        stopwatch.elapsed(TimeUnit.SECONDS) + " seconds");
+    // Helper method to pass one scanned entry to the sink. Returns false if the entry was skipped. Interrupts and sink
+    // IO errors (a partition file that can't be written) are thrown, since every entry after this would fail too.
+    private static boolean handleEntry(Item notificationLogEntry, int segment, EntrySink sink)
+            throws InterruptedException, IOException {
+        try {
+            String userId = notificationLogEntry.getString("userId");
+            if (userId == null || !notificationLogEntry.isPresent("notificationTime")) {
+                logError("Skipping entry in segment " + segment + " with no userId or notificationTime: " +
+                        notificationLogEntry.toJSON());
+                return false;
             }
+            sink.accept(new LogEntry(userId, notificationLogEntry.getLong("notificationTime"),
+                    notificationLogEntry.getString("message")));
+            return true;
+        } catch (RuntimeException ex) {
+            logError("Skipping entry in segment " + segment + " that couldn't be processed: " + ex.getMessage(), ex);
+            return false;
+        }
+    }
+
+    // Helper method to convert a low-level last evaluated key to a document API key, for ScanSpec.
+    private static PrimaryKey toPrimaryKey(Map<String, AttributeValue> key) {
+        PrimaryKey primaryKey = new PrimaryKey();
+        for (Map.Entry<String, Object> keyComponent : ItemUtils.toItem(key).attributes()) {
+            primaryKey.addComponent(keyComponent.getKey(), keyComponent.getValue());
+        }
+        return primaryKey;
+    }
+
+    // Participant lookup. We neglected to add study ID to the notification log. Also, the user might have been
+    // deleted. Check Bridge Server to see if the user exists and is in our study. Returns the user's time zone, UTC if
+    // the user has none, or null if the user doesn't exist.
+    private DateTimeZone getTimeZone(String userId) throws IOException {
+        StudyParticipant participant;
+        try {
+            participant = bridgeHelper.getParticipant(userId);
+        } catch (EntityNotFoundException ex) {
+            logInfo("User " + userId + " does not exist");
+            return null;
+        }
+
+        if (participant.getTimeZone() != null) {
+            return parseTimeZone(participant.getTimeZone());
+        } else {
+            return DateTimeZone.UTC;
         }
-        logInfo("Finished processing " + numEntries + " entries in " + stopwatch.elapsed(TimeUnit.SECONDS) +
-                " seconds");
-        logInfo("Backfilled " + numBackfilled + " entries");
+    }
+
+    // Helper method to make the health data for a log entry, with sentOn in the user's time zone.
+    private static HealthDataSubmission makeHealthData(LogEntry entry, DateTimeZone timeZone) {
+        DateTime sentOn = new DateTime(entry.sentOnMillis, timeZone);
+
+        // Create health data. (Use a map instead of a Jackson JSON node, because mixing JSON libraries causes bad
+        // things to happen.) All messages sent by the notification worker are promotional.
+        Map<String, String> dataMap = new HashMap<>();
+        dataMap.put("sentOn", sentOn.toString());
+        dataMap.put("smsType", "Promotional");
+        dataMap.put("messageBody", entry.messageBody);
+
+        // Health Data Service requires app version and phone info. However, this health data is submitted by Bridge,
+        // not by the app, so fill those in with artificial values.
+        return new HealthDataSubmission().appVersion("SmsLogHealthDataBackfill")
+                .phoneInfo("SmsLogHealthDataBackfill").createdOn(sentOn)
+                .schemaId("sms-messages-sent-from-bridge").schemaRevision(1L).data(dataMap);
     }
 
     public void cleanup() {
         ddbClient.shutdown();
     }
 
-    private static DateTimeZone parseTimeZone(String value) {
+    static DateTimeZone parseTimeZone(String value) {
         // There's no simple way to parse a timezone (in the format "+09:00"). The fastest way is to concatenate it
         // with an ISO date time and the parse it.
         DateTime dateTime = DateTime.parse("1970-01-01T0:00" + value);
         return dateTime.getZone();
     }
+
+    // Where the scan stage puts entries: the participant stage, or the partition files in grouped mode.
+    private interface EntrySink {
+        void accept(LogEntry entry) throws InterruptedException, IOException;
+    }
+
+    // A notification log entry, as passed from the scan stage to the participant stage.
+    private static class LogEntry {
+        final String userId;
+        final long sentOnMillis;
+        final String messageBody;
+
+        LogEntry(String userId, long sentOnMillis, String messageBody) {
+            this.userId = userId;
+            this.sentOnMillis = sentOnMillis;
+            this.messageBody = messageBody;
+        }
+    }
+
+    // A partition file in grouped mode, and how many of its entries aren't done yet. The file is deleted when the
+    // last entry is done, so a partition is only gone once all of its entries have been submitted or have failed.
+    private static class Partition {
+        final File file;
+        final AtomicInteger numPendingEntries;
+
+        Partition(File file, int numEntries) {
+            this.file = file;
+            this.numPendingEntries = new AtomicInteger(numEntries);
+        }
+
+        void markEntriesDone(int numDone) {
+            if (numDone > 0 && numPendingEntries.addAndGet(-numDone) == 0) {
+                deleteFile();
+            }
+        }
+
+        void deleteFile() {
+            if (!file.delete()) {
+                logInfo("Could not delete partition file " + file);
+            }
+        }
+    }
+
+    // All log entries for one user, as passed from the partition stage to the user stage in grouped mode.
+    private static class UserEntries {
+        final String userId;
+        final List<LogEntry> entryList;
+        final Partition partition;
+
+        UserEntries(String userId, List<LogEntry> entryList, Partition partition) {
+            this.userId = userId;
+            this.entryList = entryList;
+            this.partition = partition;
+        }
+    }
+
+    // Health data for a participant, as passed from the participant stage to the submit stage. The partition is null
+    // outside of grouped mode.
+    private static class Submission {
+        final String userId;
+        final HealthDataSubmission healthData;
+        final Partition partition;
+
+        Submission(String userId, HealthDataSubmission healthData, Partition partition) {
+            this.userId = userId;
+            this.healthData = healthData;
+            this.partition = partition;
+        }
+    }
 }
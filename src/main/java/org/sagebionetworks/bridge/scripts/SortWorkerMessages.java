@@ -66,7 +66,7 @@ public class SortWorkerMessages {
         while ((line = fileReader.readLine()) != null) {
             try {
                 // Parse JSON.
-                JsonNode messageNode = JSON_MAPPER.readTree(line);
+                JsonNode messageNode = parseLine(line);
                 String service = messageNode.get("service").textValue();
                 JsonNode body = messageNode.get("body");
 
@@ -88,6 +88,11 @@ public class SortWorkerMessages {
         }
     }
 
+    // Parses one line of the worker message dump. Package-scoped so the benchmarks can reach it.
+    static JsonNode parseLine(String line) throws IOException {
+        return JSON_MAPPER.readTree(line);
+    }
+
     private static void processParticipantMessage(JsonNode body) throws IOException {
         String appId = body.get("appId").textValue();
         String healthCode = body.get("healthCode").textValue();
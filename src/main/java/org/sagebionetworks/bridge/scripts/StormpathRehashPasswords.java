@@ -5,66 +5,116 @@ import static org.sagebionetworks.bridge.helper.LogHelper.logInfo;
 
 import java.io.File;
 import java.io.IOException;
-import java.security.spec.KeySpec;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.NoSuchAlgorithmException;
+import java.security.spec.InvalidKeySpecException;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.util.concurrent.TimeUnit;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
 
 import javax.crypto.SecretKeyFactory;
 import javax.crypto.spec.PBEKeySpec;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.google.common.base.Stopwatch;
-import com.google.common.util.concurrent.RateLimiter;
 import org.apache.commons.codec.binary.Base64;
 
+import org.sagebionetworks.bridge.helper.CheckpointFile;
+import org.sagebionetworks.bridge.helper.FailureLedger;
+import org.sagebionetworks.bridge.helper.JdbcMigrationEngine;
+
 /**
  * <p>
  * This script will take Stormpath hashes and double-hash them with PBKDF2 for enhanced security. This is also used to
  * backup the Stormpath password to the stormpathPasswordHash field, as well as to restore if something goes wrong.
  * </p>
  * <p>
+ * Each task is a migration run by the JdbcMigrationEngine. Accounts are read in ID order, hashed on one thread per
+ * core, and written by a pool of writers with adaptive batch sizes. Progress is saved to
+ * StormpathRehashPasswords-[task].checkpoint, and a rerun resumes after it. Delete that file to start from the
+ * beginning. Optional config: "rowsPerSecond" (defaults to 0, which means no cap), "hashThreads" (defaults to the
+ * number of cores), "writerThreads" (defaults to 4), and "useStagingTable" (defaults to false). With useStagingTable,
+ * each write batch is loaded into a temporary staging table with a multi-row insert and applied with one joined
+ * update.
+ * </p>
+ * <p>
+ * The checkpoint moves past accounts that fail, so the IDs of failed accounts are written to
+ * StormpathRehashPasswords-[task]-failed.tsv. Run the task again with "retry" to rerun just those accounts, without
+ * rescanning the table. Accounts that fail again are written back to the same file.
+ * </p>
+ * <p>
  * To run, use
- * mvn compile exec:java -Dexec.mainClass=org.sagebionetworks.bridge.scripts.StormpathRehashPasswords -Dexec.args="[backup/restore/rehash] [path to config JSON]"
+ * mvn compile exec:java -Dexec.mainClass=org.sagebionetworks.bridge.scripts.StormpathRehashPasswords -Dexec.args="[backup/restore/rehash] [path to config JSON] [optional: retry]"
  * </p>
  */
 public class StormpathRehashPasswords {
-    private static final int BATCH_SIZE = 100;
     private static final ObjectMapper JSON_MAPPER = new ObjectMapper();
-    private static final int LOG_PERIOD = 50;
     private static final int PBKDF2_ITERATIONS = 250000;
 
-    // This account limit is to make sure we don't end up in some weird infinite loop. Since there are only 110518
-    // accounts with Stormpath hashes, and we aren't creating new accounts with Stormpath hashes, if we see 200k
-    // accounts, there's almost certainly a bug in the code.
-    private static final int BATCH_LIMIT = 200000 / BATCH_SIZE;
+    // No cap by default, so throughput scales with hashThreads and writerThreads. Set rowsPerSecond to throttle.
+    private static final double DEFAULT_ROWS_PER_SECOND = 0.0;
+
+    // SecretKeyFactory isn't thread-safe, but it's expensive enough to look up that we don't want one per password.
+    // Each hash thread gets its own.
+    private static final ThreadLocal<SecretKeyFactory> KEY_FACTORY = ThreadLocal.withInitial(() -> {
+        try {
+            return SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    });
+
+    // Each task's select is its filter plus one of these suffixes, either the next page after an ID, or a list of IDs
+    // for retries.
+    private static final String SELECT_PAGE_SUFFIX = " and id > ? order by id limit ?";
+    private static final String SELECT_BY_IDS_PREFIX = " and id in (";
+    private static final String SELECT_BY_IDS_SUFFIX = ") order by id";
 
     private static final String BACKUP_SELECT_STATEMENT = "select id, passwordHash, version from Accounts where " +
-            "passwordAlgorithm='STORMPATH_HMAC_SHA_256' and stormpathPasswordHash is null limit " + BATCH_SIZE;
+            "passwordAlgorithm='STORMPATH_HMAC_SHA_256' and stormpathPasswordHash is null";
     private static final String BACKUP_UPDATE_STATEMENT = "update Accounts set stormpathPasswordHash=?, " +
             "modifiedOn=?, version=? where id=?";
 
-    private static final String RESTORE_SELECT_STATEMENT = "select id, stormpathPasswordHash, version from Accounts " +
-            "where stormpathPasswordHash is not null and passwordHash <> stormpathPasswordHash limit " + BATCH_SIZE;
+    private static final String RESTORE_SELECT_STATEMENT = "select id, stormpathPasswordHash as passwordHash, " +
+            "version from Accounts where stormpathPasswordHash is not null and passwordHash <> stormpathPasswordHash";
     private static final String RESTORE_UPDATE_STATEMENT = "update Accounts set passwordAlgorithm='STORMPATH_HMAC_SHA_256', " +
             "passwordHash=?, passwordModifiedOn=?, modifiedOn=?, version=? where id=?";
 
     private static final String REHASH_SELECT_STATEMENT = "select id, passwordHash, version from Accounts where " +
-            "passwordAlgorithm='STORMPATH_HMAC_SHA_256' limit " + BATCH_SIZE;
+            "passwordAlgorithm='STORMPATH_HMAC_SHA_256'";
     private static final String REHASH_UPDATE_STATEMENT = "update Accounts set passwordAlgorithm='STORMPATH_PBKDF2_DOUBLE_HASH', " +
             "passwordHash=?, passwordModifiedOn=?, modifiedOn=?, version=? where id=?";
 
-    private final Connection dbConnection;
+    // Staging table for set-based writes. It's created from the Accounts columns, so the types and collation match
+    // and the join can use the primary key.
+    private static final String STAGING_TABLE_CREATE_STATEMENT = "create temporary table if not exists " +
+            "AccountsStaging (primary key (id)) select id, passwordHash, modifiedOn, version from Accounts where 1=0";
+    private static final String STAGING_TABLE_INSERT_PREFIX = "insert into AccountsStaging (id, passwordHash, " +
+            "modifiedOn, version) values";
+    private static final String STAGING_TABLE_CLEAR_STATEMENT = "delete from AccountsStaging";
+    private static final String BACKUP_APPLY_STATEMENT = "update Accounts a join AccountsStaging s on a.id = s.id " +
+            "set a.stormpathPasswordHash = s.passwordHash, a.modifiedOn = s.modifiedOn, a.version = s.version";
+    private static final String RESTORE_APPLY_STATEMENT = "update Accounts a join AccountsStaging s on a.id = s.id " +
+            "set a.passwordAlgorithm = 'STORMPATH_HMAC_SHA_256', a.passwordHash = s.passwordHash, " +
+            "a.passwordModifiedOn = s.modifiedOn, a.modifiedOn = s.modifiedOn, a.version = s.version";
+    private static final String REHASH_APPLY_STATEMENT = "update Accounts a join AccountsStaging s on a.id = s.id " +
+            "set a.passwordAlgorithm = 'STORMPATH_PBKDF2_DOUBLE_HASH', a.passwordHash = s.passwordHash, " +
+            "a.passwordModifiedOn = s.modifiedOn, a.modifiedOn = s.modifiedOn, a.version = s.version";
+
+    private final JdbcMigrationEngine migrationEngine;
     private final long updateTimeMillis;
-    private final RateLimiter rateLimiter = RateLimiter.create(1.0);
 
-    public static void main(String[] args) throws IOException, SQLException {
-        if (args.length != 2) {
-            logInfo("Usage: StormpathRehashPasswords [backup/restore/rehash] [path to config JSON]");
+    public static void main(String[] args) throws InterruptedException, IOException, SQLException {
+        if (args.length != 2 && !(args.length == 3 && "retry".equals(args[2]))) {
+            logInfo("Usage: StormpathRehashPasswords [backup/restore/rehash] [path to config JSON] [optional: retry]");
             return;
         }
 
@@ -79,28 +129,32 @@ public class StormpathRehashPasswords {
 
         // Execute.
         String task = args[0];
-        logInfo("Executing " + task + "...");
-        try {
-            switch (task) {
-                case "backup":
-                    job.backup();
-                    break;
-                case "restore":
-                    job.restore();
-                    break;
-                case "rehash":
-                    job.rehash();
-                    break;
-                default:
-                    logError("Invalid task " + task);
-                    break;
-            }
-        } finally {
-            job.shutdown();
+        boolean retry = args.length == 3;
+        logInfo("Executing " + task + (retry ? " retry" : "") + "...");
+        AccountMigration migration;
+        switch (task) {
+            case "backup":
+                migration = job.newBackupMigration();
+                break;
+            case "restore":
+                migration = job.newRestoreMigration();
+                break;
+            case "rehash":
+                migration = job.newRehashMigration();
+                break;
+            default:
+                logError("Invalid task " + task);
+                return;
+        }
+
+        if (retry) {
+            job.retryMigration(migration);
+        } else {
+            job.runMigration(migration);
         }
     }
 
-    public StormpathRehashPasswords(JsonNode configNode) throws SQLException {
+    public StormpathRehashPasswords(JsonNode configNode) {
         logInfo("Initializing...");
         String url = configNode.get("dbUrl").textValue();
         String username = configNode.get("dbUsername").textValue();
@@ -115,175 +169,266 @@ public class StormpathRehashPasswords {
             url = url + "&requireSSL=true&useSSL=true&verifyServerCertificate=false";
         }
 
-        // Connect to DB
-        dbConnection = DriverManager.getConnection(url, username, password);
+        // Connections to the DB are opened by the migration engine.
+        String dbUrl = url;
+        migrationEngine = new JdbcMigrationEngine(() -> DriverManager.getConnection(dbUrl, username, password));
+
+        double rowsPerSecond = DEFAULT_ROWS_PER_SECOND;
+        if (configNode.hasNonNull("rowsPerSecond")) {
+            rowsPerSecond = configNode.get("rowsPerSecond").doubleValue();
+        }
+        migrationEngine.setMaxRowsPerSecond(rowsPerSecond);
+
+        // Hashing is CPU-bound, so the engine defaults to one transform thread per core.
+        if (configNode.hasNonNull("hashThreads")) {
+            migrationEngine.setNumTransformThreads(configNode.get("hashThreads").intValue());
+        }
+        if (configNode.hasNonNull("writerThreads")) {
+            migrationEngine.setNumWriters(configNode.get("writerThreads").intValue());
+        }
+        if (configNode.hasNonNull("useStagingTable")) {
+            migrationEngine.setUseStagingTable(configNode.get("useStagingTable").booleanValue());
+        }
 
         // Init vars.
         updateTimeMillis = System.currentTimeMillis();
     }
 
-    public void shutdown() throws SQLException {
-        dbConnection.close();
+    public void backup() throws InterruptedException, IOException, SQLException {
+        runMigration(newBackupMigration());
     }
 
-    public void backup() {
-        executeLoop(() -> {
-            try (PreparedStatement selectStatement = dbConnection.prepareStatement(BACKUP_SELECT_STATEMENT);
-                    ResultSet resultSet = selectStatement.executeQuery();
-                    PreparedStatement updateStatement = dbConnection.prepareStatement(BACKUP_UPDATE_STATEMENT)) {
-
-                int numRows = 0;
-                while(resultSet.next()) {
-                    // Get queried row.
-                    numRows++;
-                    String id = resultSet.getString("id");
-                    String passwordHash = resultSet.getString("passwordHash");
-                    int version = resultSet.getInt("version");
-
-                    // Add to batch update.
-                    updateStatement.setString(1, passwordHash);
-                    updateStatement.setLong(2, updateTimeMillis);
-                    updateStatement.setInt(3, version + 1);
-                    updateStatement.setString(4, id);
-                    updateStatement.addBatch();
-                }
+    public void restore() throws InterruptedException, IOException, SQLException {
+        runMigration(newRestoreMigration());
+    }
 
-                if (numRows > 0) {
-                    // Execute batch.
-                    updateStatement.executeBatch();
-                    return true;
-                } else {
-                    // There are no more passwords to update. Break.
-                    return false;
-                }
-            }
-        });
+    public void rehash() throws InterruptedException, IOException, SQLException {
+        runMigration(newRehashMigration());
     }
 
-    public void restore() {
-        executeLoop(() -> {
-            try (PreparedStatement selectStatement = dbConnection.prepareStatement(RESTORE_SELECT_STATEMENT);
-                    ResultSet resultSet = selectStatement.executeQuery();
-                    PreparedStatement updateStatement = dbConnection.prepareStatement(RESTORE_UPDATE_STATEMENT)) {
-
-                int numRows = 0;
-                while(resultSet.next()) {
-                    // Get queried row.
-                    numRows++;
-                    String id = resultSet.getString("id");
-                    String passwordHash = resultSet.getString("stormpathPasswordHash");
-                    int version = resultSet.getInt("version");
-
-                    //private static final String RESTORE_UPDATE_STATEMENT = "update Accounts set passwordAlgorithm='STORMPATH_HMAC_SHA_256', " +
-                    //        "passwordHash=?, passwordModifiedOn=?, modifiedOn=?, version=? where id=?";
-                    // Add to batch update.
-                    updateStatement.setString(1, passwordHash);
-                    updateStatement.setLong(2, updateTimeMillis);
-                    updateStatement.setLong(3, updateTimeMillis);
-                    updateStatement.setInt(4, version + 1);
-                    updateStatement.setString(5, id);
-                    updateStatement.addBatch();
-                }
+    private AccountMigration newBackupMigration() {
+        return new AccountMigration("backup", BACKUP_SELECT_STATEMENT, BACKUP_UPDATE_STATEMENT,
+                BACKUP_APPLY_STATEMENT, false, false);
+    }
 
-                if (numRows > 0) {
-                    // Execute batch.
-                    updateStatement.executeBatch();
-                    return true;
-                } else {
-                    // There are no more passwords to update. Break.
-                    return false;
-                }
-            }
-        });
+    private AccountMigration newRestoreMigration() {
+        // The select returns stormpathPasswordHash as passwordHash, so we write it back as is.
+        return new AccountMigration("restore", RESTORE_SELECT_STATEMENT, RESTORE_UPDATE_STATEMENT,
+                RESTORE_APPLY_STATEMENT, false, true);
     }
 
-    public void rehash() {
-        executeLoop(() -> {
-            // The strategy is to get a batch of 100 accounts that have passwordAlgorithm=STORMPATH_PBKDF2_DOUBLE_HASH,
-            // process those 100 accounts, and then repeat until there are no more accounts with
-            // passwordAlgorithm=STORMPATH_PBKDF2_DOUBLE_HASH.
-            try (PreparedStatement selectStatement = dbConnection.prepareStatement(REHASH_SELECT_STATEMENT);
-                    ResultSet resultSet = selectStatement.executeQuery();
-                    PreparedStatement updateStatement = dbConnection.prepareStatement(REHASH_UPDATE_STATEMENT)) {
-
-                int numRows = 0;
-                while(resultSet.next()) {
-                    // Get queried row.
-                    numRows++;
-                    String id = resultSet.getString("id");
-                    String passwordHash = resultSet.getString("passwordHash");
-                    int version = resultSet.getInt("version");
-
-                    // Password is in the form "$stormpath1$[base64-encoded salt]$[base64-encoded hashed password]"
-                    String[] stormpathHashParts = passwordHash.split("\\$");
-                    String base64Salt = stormpathHashParts[2];
-                    byte[] salt = Base64.decodeBase64(base64Salt);
-                    String stormpathHashedPassword = stormpathHashParts[3];
-
-                    // Hash the hash with PBKDF2.
-                    SecretKeyFactory keyFactory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256");
-                    KeySpec keySpec = new PBEKeySpec(stormpathHashedPassword.toCharArray(), salt,
-                            PBKDF2_ITERATIONS, 256);
-                    String doubleHashedPassword = Base64.encodeBase64String(keyFactory.generateSecret(keySpec)
-                            .getEncoded());
-
-                    // Output format will be "[iterations]$[base64-encoded salt]$[base64-encoded hashed password]"
-                    String newPasswordHash = PBKDF2_ITERATIONS + "$" + base64Salt + "$" + doubleHashedPassword;
-
-                    // Add to batch update.
-                    updateStatement.setString(1, newPasswordHash);
-                    updateStatement.setLong(2, updateTimeMillis);
-                    updateStatement.setLong(3, updateTimeMillis);
-                    updateStatement.setInt(4, version + 1);
-                    updateStatement.setString(5, id);
-                    updateStatement.addBatch();
-                }
+    private AccountMigration newRehashMigration() {
+        return new AccountMigration("rehash", REHASH_SELECT_STATEMENT, REHASH_UPDATE_STATEMENT,
+                REHASH_APPLY_STATEMENT, true, true);
+    }
+
+    // Runs the migration, checkpointed to a file named after the task. Failed account IDs go to the task's ledger.
+    private void runMigration(AccountMigration migration) throws InterruptedException, IOException, SQLException {
+        File checkpointFile = new File("StormpathRehashPasswords-" + migration.getName() + ".checkpoint");
+        File ledgerFile = getLedgerFile(migration);
+        try (CheckpointFile checkpoint = new CheckpointFile(checkpointFile);
+                FailureLedger ledger = new FailureLedger(ledgerFile)) {
+            migrationEngine.setFailureLedger(ledger);
+            long numFailed = migrationEngine.run(migration, checkpoint);
+            logFailures(migration, numFailed, ledgerFile);
+        }
+    }
+
+    // Reruns just the accounts in the task's ledger. The IDs are moved aside to a .retrying file first, so accounts
+    // that fail again are written to a fresh ledger. If an earlier retry was interrupted, its IDs are retried too.
+    private void retryMigration(AccountMigration migration) throws InterruptedException, IOException, SQLException {
+        File ledgerFile = getLedgerFile(migration);
+        File retryingFile = new File(ledgerFile.getPath() + ".retrying");
+        Set<String> accountIdSet = new LinkedHashSet<>(FailureLedger.readKeys(retryingFile));
+        accountIdSet.addAll(FailureLedger.readKeys(ledgerFile));
+        if (accountIdSet.isEmpty()) {
+            logInfo("No failed accounts in " + ledgerFile + ", nothing to retry");
+            return;
+        }
+
+        // Save the IDs we're retrying before clearing the ledger, so a crash here doesn't lose them.
+        Files.write(retryingFile.toPath(), accountIdSet, StandardCharsets.UTF_8);
+        if (ledgerFile.exists() && !ledgerFile.delete()) {
+            throw new IOException("Could not delete " + ledgerFile);
+        }
+
+        try (FailureLedger ledger = new FailureLedger(ledgerFile)) {
+            migrationEngine.setFailureLedger(ledger);
+            long numFailed = migrationEngine.retry(migration, accountIdSet);
+            logFailures(migration, numFailed, ledgerFile);
+        }
+        if (!retryingFile.delete()) {
+            logInfo("Could not delete " + retryingFile);
+        }
+    }
+
+    private static File getLedgerFile(AccountMigration migration) {
+        return new File("StormpathRehashPasswords-" + migration.getName() + "-failed.tsv");
+    }
+
+    private static void logFailures(AccountMigration migration, long numFailed, File ledgerFile) {
+        if (numFailed > 0) {
+            logError(numFailed + " accounts failed in " + migration.getName() + ", see errors above. Failed " +
+                    "account IDs are in " + ledgerFile.getAbsolutePath() + ". Run with retry to retry them.");
+        }
+    }
+
+    // Helper method to double-hash a Stormpath password hash with PBKDF2. This runs on the engine's transform threads.
+    static String doubleHash(String passwordHash) throws InvalidKeySpecException {
+        // Password is in the form "$stormpath1$[base64-encoded salt]$[base64-encoded hashed password]"
+        String[] stormpathHashParts = passwordHash.split("\\$");
+        String base64Salt = stormpathHashParts[2];
+        byte[] salt = Base64.decodeBase64(base64Salt);
+        String stormpathHashedPassword = stormpathHashParts[3];
+
+        // Hash the hash with PBKDF2.
+        PBEKeySpec keySpec = new PBEKeySpec(stormpathHashedPassword.toCharArray(), salt, PBKDF2_ITERATIONS, 256);
+        String doubleHashedPassword;
+        try {
+            doubleHashedPassword = Base64.encodeBase64String(KEY_FACTORY.get().generateSecret(keySpec)
+                    .getEncoded());
+        } finally {
+            keySpec.clearPassword();
+        }
 
-                if (numRows > 0) {
-                    // Execute batch.
-                    updateStatement.executeBatch();
-                    return true;
-                } else {
-                    // There are no more passwords to update. Break.
-                    return false;
+        // Output format will be "[iterations]$[base64-encoded salt]$[base64-encoded hashed password]"
+        return PBKDF2_ITERATIONS + "$" + base64Salt + "$" + doubleHashedPassword;
+    }
+
+    // One migration task over the Accounts table. All tasks select the same columns, and optionally rehash before
+    // writing. Writes are per-row updates, or go through the staging table if useStagingTable is set.
+    private class AccountMigration implements JdbcMigrationEngine.StagedMigration<AccountRow, AccountRow> {
+        private final String name;
+        private final String selectSql;
+        private final String updateSql;
+        private final String applyStagingSql;
+        private final boolean rehash;
+        private final boolean updatesPasswordModifiedOn;
+
+        AccountMigration(String name, String selectSql, String updateSql, String applyStagingSql, boolean rehash,
+                boolean updatesPasswordModifiedOn) {
+            this.name = name;
+            this.selectSql = selectSql;
+            this.updateSql = updateSql;
+            this.applyStagingSql = applyStagingSql;
+            this.rehash = rehash;
+            this.updatesPasswordModifiedOn = updatesPasswordModifiedOn;
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public List<AccountRow> selectPage(Connection connection, String afterKey, int limit) throws SQLException {
+            try (PreparedStatement selectStatement = connection.prepareStatement(selectSql + SELECT_PAGE_SUFFIX)) {
+                selectStatement.setString(1, afterKey);
+                selectStatement.setInt(2, limit);
+                return readAccounts(selectStatement);
+            }
+        }
+
+        @Override
+        public List<AccountRow> selectByKeys(Connection connection, List<String> keyList) throws SQLException {
+            // The task's filter still applies, so accounts that have been migrated since they failed are skipped.
+            String sql = selectSql + SELECT_BY_IDS_PREFIX + String.join(",", Collections.nCopies(keyList.size(),
+                    "?")) + SELECT_BY_IDS_SUFFIX;
+            try (PreparedStatement selectStatement = connection.prepareStatement(sql)) {
+                for (int i = 0; i < keyList.size(); i++) {
+                    selectStatement.setString(i + 1, keyList.get(i));
                 }
+                return readAccounts(selectStatement);
             }
-        });
-    }
+        }
 
-    private void executeLoop(SqlBatchRunnable runnable) {
-        Stopwatch stopwatch = Stopwatch.createStarted();
-        int numBatches = 0;
-        while (true) {
-            // Rate limit at 1 batch per second.
-            rateLimiter.acquire();
-
-            try {
-                boolean shouldContinue = runnable.run();
-                if (!shouldContinue) {
-                    break;
+        // Helper method to run a select and read the accounts it returns.
+        private List<AccountRow> readAccounts(PreparedStatement selectStatement) throws SQLException {
+            List<AccountRow> accountList = new ArrayList<>();
+            try (ResultSet resultSet = selectStatement.executeQuery()) {
+                while (resultSet.next()) {
+                    accountList.add(new AccountRow(resultSet.getString("id"), resultSet.getString("passwordHash"),
+                            resultSet.getInt("version")));
                 }
-            } catch (Exception ex) {
-                logError("Error processing batch: " + ex.getMessage(), ex);
             }
+            return accountList;
+        }
 
-            // Batch counting. Logging and batch limit.
-            numBatches++;
-            if (numBatches >= BATCH_LIMIT) {
-                logError("Batch limit exceeded!");
-                break;
+        @Override
+        public String getKey(AccountRow account) {
+            return account.id;
+        }
+
+        @Override
+        public AccountRow transform(AccountRow account) throws InvalidKeySpecException {
+            if (!rehash) {
+                return account;
             }
-            if (numBatches % LOG_PERIOD == 0) {
-                logInfo(numBatches + " batches in " + stopwatch.elapsed(TimeUnit.SECONDS) + " seconds...");
+            return new AccountRow(account.id, doubleHash(account.passwordHash), account.version);
+        }
+
+        @Override
+        public String getUpdateSql() {
+            return updateSql;
+        }
+
+        @Override
+        public void bindUpdate(AccountRow account, PreparedStatement updateStatement) throws SQLException {
+            int paramIdx = 1;
+            updateStatement.setString(paramIdx++, account.passwordHash);
+            if (updatesPasswordModifiedOn) {
+                updateStatement.setLong(paramIdx++, updateTimeMillis);
             }
+            updateStatement.setLong(paramIdx++, updateTimeMillis);
+            updateStatement.setInt(paramIdx++, account.version + 1);
+            updateStatement.setString(paramIdx, account.id);
         }
 
-        logInfo("Finished processing " + numBatches + " batches in " + stopwatch.elapsed(TimeUnit.SECONDS) +
-                " seconds...");
+        @Override
+        public String getCreateStagingTableSql() {
+            return STAGING_TABLE_CREATE_STATEMENT;
+        }
+
+        @Override
+        public String getStagingInsertPrefix() {
+            return STAGING_TABLE_INSERT_PREFIX;
+        }
+
+        @Override
+        public int getNumStagingColumns() {
+            return 4;
+        }
+
+        @Override
+        public void bindStagingRow(AccountRow account, PreparedStatement insertStatement, int firstParamIdx)
+                throws SQLException {
+            insertStatement.setString(firstParamIdx, account.id);
+            insertStatement.setString(firstParamIdx + 1, account.passwordHash);
+            insertStatement.setLong(firstParamIdx + 2, updateTimeMillis);
+            insertStatement.setInt(firstParamIdx + 3, account.version + 1);
+        }
+
+        @Override
+        public String getApplyStagingSql() {
+            return applyStagingSql;
+        }
+
+        @Override
+        public String getClearStagingSql() {
+            return STAGING_TABLE_CLEAR_STATEMENT;
+        }
     }
 
-    interface SqlBatchRunnable {
-        // Returns true if we should keep running, false otherwise.
-        boolean run() throws Exception;
+    // One selected account. For restore, passwordHash is the backed up stormpathPasswordHash.
+    private static class AccountRow {
+        final String id;
+        final String passwordHash;
+        final int version;
+
+        AccountRow(String id, String passwordHash, int version) {
+            this.id = id;
+            this.passwordHash = passwordHash;
+            this.version = version;
+        }
     }
 }
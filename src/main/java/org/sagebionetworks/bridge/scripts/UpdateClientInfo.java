@@ -105,7 +105,7 @@ public class UpdateClientInfo {
         }
     }
 
-    private static boolean isDuplicateClientInfo(String userAgent) {
+    static boolean isDuplicateClientInfo(String userAgent) {
         if (userAgent != null) {
             int midpoint = userAgent.length() / 2;
             if (userAgent.charAt(midpoint) == ',') {
@@ -0,0 +1,290 @@
+package org.sagebionetworks.bridge.synapse;
+
+import static org.sagebionetworks.bridge.helper.LogHelper.logError;
+import static org.sagebionetworks.bridge.helper.LogHelper.logInfo;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.base.Stopwatch;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.RateLimiter;
+import org.sagebionetworks.client.SynapseClient;
+import org.sagebionetworks.client.exceptions.SynapseException;
+import org.sagebionetworks.client.exceptions.SynapseNotFoundException;
+import org.sagebionetworks.repo.model.ACCESS_TYPE;
+import org.sagebionetworks.repo.model.AccessControlList;
+import org.sagebionetworks.repo.model.Entity;
+import org.sagebionetworks.repo.model.EntityHeader;
+import org.sagebionetworks.repo.model.ResourceAccess;
+
+import org.sagebionetworks.bridge.helper.PipelineMetricsReporter;
+import org.sagebionetworks.bridge.helper.PipelineStage;
+
+/**
+ * <p>
+ * Brings the ACLs of many Synapse entities to a desired state, several entities at a time. For each entity, this gets
+ * the ACL, checks that each desired principal has at least the desired access, and only calls updateACL if some
+ * access is missing. Missing access types are added to what the principal already has. Access is never removed, so
+ * extra access granted by hand is kept, and principals that aren't in the desired state are left alone.
+ * </p>
+ * <p>
+ * All calls share the given rate limiter, and each call charges one permit when it's made, so entities that are
+ * already correct cost one call instead of three. An entity that doesn't exist, or that inherits its ACL from a
+ * parent, is skipped.
+ * </p>
+ * <p>
+ * If an EntityHeaderResolver is given, all targets are checked for existence and type up front, in batches, and
+ * entities that don't exist or have the wrong type are skipped without calling getACL. If a batch fails, its entities
+ * fall back to plain getACL, without the type check, so one failed batch doesn't stop the whole run.
+ * </p>
+ */
+@SuppressWarnings("UnstableApiUsage")
+public class AclReconciler {
+    private static final int DEFAULT_NUM_THREADS = 8;
+    private static final int METRICS_PERIOD_SECONDS = 60;
+    private static final int QUEUE_CAPACITY = 100;
+
+    /** Result of reconciling one entity. */
+    public enum Result {
+        /** The ACL was different and was updated. */
+        UPDATED,
+        /** The ACL already matched, no update was needed. */
+        UNCHANGED,
+        /** The entity doesn't exist, has the wrong type, or doesn't have its own ACL. */
+        NOT_FOUND,
+        /** Synapse call failed. See logs. */
+        FAILED,
+    }
+
+    /** An entity and the access each principal should have on it. */
+    public static class Target {
+        private final String entityId;
+        private final String description;
+        private final Map<Long, Set<ACCESS_TYPE>> accessByPrincipal = new LinkedHashMap<>();
+        private Class<? extends Entity> entityClass;
+
+        /** Creates a target for the given entity. The description is used in logs, for example "table foo". */
+        public Target(String entityId, String description) {
+            this.entityId = entityId;
+            this.description = description;
+        }
+
+        /** Sets the access the given principal should have. Returns this target, for chaining. */
+        public Target withAccess(long principalId, Set<ACCESS_TYPE> accessTypeSet) {
+            accessByPrincipal.put(principalId, ImmutableSet.copyOf(accessTypeSet));
+            return this;
+        }
+
+        /**
+         * Sets the type the entity should be, for example TableEntity or Project. Only checked if the reconciler has
+         * an EntityHeaderResolver. Returns this target, for chaining.
+         */
+        public Target withEntityType(Class<? extends Entity> entityClass) {
+            this.entityClass = entityClass;
+            return this;
+        }
+
+        public String getEntityId() {
+            return entityId;
+        }
+
+        public String getDescription() {
+            return description;
+        }
+
+        public Map<Long, Set<ACCESS_TYPE>> getAccessByPrincipal() {
+            return ImmutableMap.copyOf(accessByPrincipal);
+        }
+    }
+
+    private final SynapseClient synapseClient;
+    private final RateLimiter rateLimiter;
+    private final int numThreads;
+    private final EntityHeaderResolver entityHeaderResolver;
+
+    /** Creates a reconciler with the default number of threads, without the up-front existence check. */
+    public AclReconciler(SynapseClient synapseClient, RateLimiter rateLimiter) {
+        this(synapseClient, rateLimiter, DEFAULT_NUM_THREADS, null);
+    }
+
+    /** Creates a reconciler with the default number of threads, which checks existence with the given resolver. */
+    public AclReconciler(SynapseClient synapseClient, RateLimiter rateLimiter,
+            EntityHeaderResolver entityHeaderResolver) {
+        this(synapseClient, rateLimiter, DEFAULT_NUM_THREADS, entityHeaderResolver);
+    }
+
+    /**
+     * Creates a reconciler.
+     *
+     * @param synapseClient
+     *         Synapse client, must be able to read and change permissions on all targets
+     * @param rateLimiter
+     *         rate limiter for Synapse calls, one permit per call, shared by all threads
+     * @param numThreads
+     *         number of entities to reconcile at once
+     * @param entityHeaderResolver
+     *         checks existence and type before getACL, may be null to skip the check
+     */
+    public AclReconciler(SynapseClient synapseClient, RateLimiter rateLimiter, int numThreads,
+            EntityHeaderResolver entityHeaderResolver) {
+        this.synapseClient = synapseClient;
+        this.rateLimiter = rateLimiter;
+        this.numThreads = numThreads;
+        this.entityHeaderResolver = entityHeaderResolver;
+    }
+
+    /** Reconciles all targets and returns the number of entities with each result. */
+    public Map<Result, Integer> reconcile(Iterable<Target> targets) throws InterruptedException {
+        // Resolve all the entity headers up front, so the reconcile threads only hit the cache. Failed batches are
+        // logged by the resolver, and those targets fall back to getACL.
+        if (entityHeaderResolver != null) {
+            List<String> entityIdList = new ArrayList<>();
+            for (Target target : targets) {
+                entityIdList.add(target.entityId);
+            }
+            entityHeaderResolver.resolve(entityIdList);
+        }
+
+        Map<Result, AtomicInteger> countsByResult = new EnumMap<>(Result.class);
+        for (Result result : Result.values()) {
+            countsByResult.put(result, new AtomicInteger());
+        }
+
+        PipelineStage<Target> reconcileStage = new PipelineStage<>("acl", numThreads, 1, QUEUE_CAPACITY, batch -> {
+            for (Target target : batch) {
+                Result result;
+                try {
+                    result = reconcileOne(target);
+                } catch (Exception ex) {
+                    logError("Error reconciling ACL for " + target.description + " (" + target.entityId + "): " +
+                            ex.getMessage(), ex);
+                    result = Result.FAILED;
+                }
+                countsByResult.get(result).incrementAndGet();
+            }
+        });
+        reconcileStage.start();
+
+        Stopwatch stopwatch = Stopwatch.createStarted();
+        try (PipelineMetricsReporter reporter = new PipelineMetricsReporter(METRICS_PERIOD_SECONDS, reconcileStage)) {
+            for (Target target : targets) {
+                reconcileStage.submit(target);
+            }
+            reconcileStage.awaitCompletion();
+        }
+
+        Map<Result, Integer> resultMap = new EnumMap<>(Result.class);
+        for (Map.Entry<Result, AtomicInteger> countEntry : countsByResult.entrySet()) {
+            resultMap.put(countEntry.getKey(), countEntry.getValue().get());
+        }
+        logInfo("Reconciled " + reconcileStage.getNumProcessed() + " ACLs in " + stopwatch.elapsed(TimeUnit.SECONDS) +
+                " seconds: " + resultMap);
+        return resultMap;
+    }
+
+    // Reconciles a single entity. Charges one permit for getACL, and one more only if it needs to call updateACL. The
+    // header check only uses what was resolved up front. If the entity's batch failed, we skip straight to getACL,
+    // which still tells us if the entity doesn't exist.
+    private Result reconcileOne(Target target) throws SynapseException {
+        if (entityHeaderResolver != null && entityHeaderResolver.isResolved(target.entityId)) {
+            EntityHeader header = entityHeaderResolver.getHeader(target.entityId);
+            if (header == null) {
+                logInfo(target.description + " (" + target.entityId + ") doesn't exist, skipping...");
+                return Result.NOT_FOUND;
+            }
+            if (target.entityClass != null && !target.entityClass.getName().equals(header.getType())) {
+                logInfo(target.description + " (" + target.entityId + ") is a " + header.getType() +
+                        ", not a " + target.entityClass.getSimpleName() + ", skipping...");
+                return Result.NOT_FOUND;
+            }
+        }
+
+        rateLimiter.acquire();
+        AccessControlList acl;
+        try {
+            acl = synapseClient.getACL(target.entityId);
+        } catch (SynapseNotFoundException ex) {
+            logInfo(target.description + " (" + target.entityId + ") doesn't exist or doesn't have its own ACL, " +
+                    "skipping...");
+            return Result.NOT_FOUND;
+        }
+
+        Set<ResourceAccess> newResourceAccessSet = diffResourceAccess(acl.getResourceAccess(),
+                target.accessByPrincipal);
+        if (newResourceAccessSet == null) {
+            return Result.UNCHANGED;
+        }
+
+        logInfo("Updating ACL for " + target.description + " (" + target.entityId + ")");
+        acl.setResourceAccess(newResourceAccessSet);
+        rateLimiter.acquire();
+        synapseClient.updateACL(acl);
+        return Result.UPDATED;
+    }
+
+    /**
+     * Diffs the current ResourceAccess set against the desired access by principal. A principal matches if its current
+     * access types, across all of its ResourceAccess entries, include every desired access type. Returns null if every
+     * desired principal matches. Otherwise, returns a new set where each mismatched principal has a single entry with
+     * its current access types plus the missing ones, and all other entries are kept. Access is never removed.
+     */
+    static Set<ResourceAccess> diffResourceAccess(Set<ResourceAccess> currentResourceAccessSet,
+            Map<Long, Set<ACCESS_TYPE>> desiredAccessByPrincipal) {
+        // Collect each desired principal's current access. A principal could have more than one entry.
+        Map<Long, Set<ACCESS_TYPE>> currentAccessByPrincipal = new HashMap<>();
+        for (ResourceAccess resourceAccess : currentResourceAccessSet) {
+            Long principalId = resourceAccess.getPrincipalId();
+            if (principalId != null && desiredAccessByPrincipal.containsKey(principalId)) {
+                Set<ACCESS_TYPE> currentAccessTypeSet = currentAccessByPrincipal.computeIfAbsent(principalId,
+                        key -> new HashSet<>());
+                if (resourceAccess.getAccessType() != null) {
+                    currentAccessTypeSet.addAll(resourceAccess.getAccessType());
+                }
+            }
+        }
+
+        // Find the principals that are missing some access.
+        Set<Long> changedPrincipalIdSet = new HashSet<>();
+        for (Map.Entry<Long, Set<ACCESS_TYPE>> desiredEntry : desiredAccessByPrincipal.entrySet()) {
+            Set<ACCESS_TYPE> currentAccessTypeSet = currentAccessByPrincipal.get(desiredEntry.getKey());
+            if (currentAccessTypeSet == null || !currentAccessTypeSet.containsAll(desiredEntry.getValue())) {
+                changedPrincipalIdSet.add(desiredEntry.getKey());
+            }
+        }
+        if (changedPrincipalIdSet.isEmpty()) {
+            return null;
+        }
+
+        // ResourceAccess is mutable, but Synapse keeps them in a Set, so we build a new set instead of modifying the
+        // entries in place.
+        Set<ResourceAccess> newResourceAccessSet = new HashSet<>();
+        for (ResourceAccess resourceAccess : currentResourceAccessSet) {
+            if (!changedPrincipalIdSet.contains(resourceAccess.getPrincipalId())) {
+                newResourceAccessSet.add(resourceAccess);
+            }
+        }
+        for (long principalId : changedPrincipalIdSet) {
+            Set<ACCESS_TYPE> newAccessTypeSet = new HashSet<>(desiredAccessByPrincipal.get(principalId));
+            Set<ACCESS_TYPE> currentAccessTypeSet = currentAccessByPrincipal.get(principalId);
+            if (currentAccessTypeSet != null) {
+                newAccessTypeSet.addAll(currentAccessTypeSet);
+            }
+
+            ResourceAccess resourceAccess = new ResourceAccess();
+            resourceAccess.setPrincipalId(principalId);
+            resourceAccess.setAccessType(newAccessTypeSet);
+            newResourceAccessSet.add(resourceAccess);
+        }
+        return newResourceAccessSet;
+    }
+}
@@ -0,0 +1,149 @@
+package org.sagebionetworks.bridge.synapse;
+
+import static org.sagebionetworks.bridge.helper.LogHelper.logError;
+import static org.sagebionetworks.bridge.helper.LogHelper.logInfo;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+import com.google.common.util.concurrent.RateLimiter;
+import org.sagebionetworks.client.SynapseClient;
+import org.sagebionetworks.client.exceptions.SynapseException;
+import org.sagebionetworks.repo.model.Entity;
+import org.sagebionetworks.repo.model.EntityHeader;
+import org.sagebionetworks.repo.model.PaginatedResults;
+import org.sagebionetworks.repo.model.Reference;
+
+/**
+ * <p>
+ * Checks existence and type of Synapse entities in batches, using entity headers instead of fetching each entity.
+ * One getEntityHeaderBatch call covers up to 100 entity IDs and charges one permit.
+ * </p>
+ * <p>
+ * Results are cached for the life of the resolver, including entities that don't exist (or that we can't read, which
+ * Synapse doesn't distinguish), so each ID is looked up at most once per run. This is thread-safe.
+ * </p>
+ * <p>
+ * If a batch call fails, its IDs are logged and left unresolved, and the other batches still go through. Callers can
+ * check isResolved() and fall back to their own per-entity calls for those IDs.
+ * </p>
+ */
+@SuppressWarnings("UnstableApiUsage")
+public class EntityHeaderResolver {
+    // Max number of references per getEntityHeaderBatch call.
+    static final int MAX_BATCH_SIZE = 100;
+
+    private final SynapseClient synapseClient;
+    private final RateLimiter rateLimiter;
+    private final ConcurrentMap<String, Optional<EntityHeader>> headerCache = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a resolver.
+     *
+     * @param synapseClient
+     *         Synapse client
+     * @param rateLimiter
+     *         rate limiter for Synapse calls, one permit per batch
+     */
+    public EntityHeaderResolver(SynapseClient synapseClient, RateLimiter rateLimiter) {
+        this.synapseClient = synapseClient;
+        this.rateLimiter = rateLimiter;
+    }
+
+    /**
+     * Looks up headers for all the given entity IDs that aren't already cached, in batches. Returns the headers for
+     * the entities that exist, keyed by entity ID. Entities that don't exist aren't in the returned map, and neither
+     * are entities in batches that failed. Use isResolved() to tell those apart.
+     */
+    public Map<String, EntityHeader> resolve(Collection<String> entityIdCollection) {
+        // Dedupe and skip IDs we already know about.
+        Set<String> uncachedIdSet = new LinkedHashSet<>();
+        for (String entityId : entityIdCollection) {
+            if (!headerCache.containsKey(entityId)) {
+                uncachedIdSet.add(entityId);
+            }
+        }
+
+        int numBatches = 0;
+        int numUnresolved = 0;
+        for (List<String> batchIdList : Iterables.partition(uncachedIdSet, MAX_BATCH_SIZE)) {
+            try {
+                fetchBatch(batchIdList);
+            } catch (SynapseException | RuntimeException ex) {
+                // Leave these uncached, so the caller can fall back, and a later lookup can try again.
+                logError("Error getting entity headers for " + batchIdList + ": " + ex.getMessage(), ex);
+                numUnresolved += batchIdList.size();
+            }
+            numBatches++;
+        }
+        if (numBatches > 0) {
+            logInfo("Resolved " + (uncachedIdSet.size() - numUnresolved) + " entity headers in " + numBatches +
+                    " batches, " + numUnresolved + " unresolved because of errors");
+        }
+
+        Map<String, EntityHeader> headerMap = new HashMap<>();
+        for (String entityId : entityIdCollection) {
+            Optional<EntityHeader> header = headerCache.get(entityId);
+            if (header != null && header.isPresent()) {
+                headerMap.put(entityId, header.get());
+            }
+        }
+        return headerMap;
+    }
+
+    /** True if the given entity's header (or the fact that it doesn't exist) is cached. */
+    public boolean isResolved(String entityId) {
+        return headerCache.containsKey(entityId);
+    }
+
+    /**
+     * Returns the header for the given entity, or null if it doesn't exist. Uses the cache if it can. Otherwise, looks
+     * up just this entity, and throws if that fails.
+     */
+    public EntityHeader getHeader(String entityId) throws SynapseException {
+        Optional<EntityHeader> header = headerCache.get(entityId);
+        if (header == null) {
+            fetchBatch(ImmutableList.of(entityId));
+            header = headerCache.get(entityId);
+        }
+        return header.orElse(null);
+    }
+
+    /** True if the given entity exists and is of the given type, for example TableEntity or Project. */
+    public boolean existsWithType(String entityId, Class<? extends Entity> entityClass) throws SynapseException {
+        EntityHeader header = getHeader(entityId);
+        return header != null && entityClass.getName().equals(header.getType());
+    }
+
+    // Fetches one batch of headers and caches the result for each ID, including the ones that weren't returned.
+    private void fetchBatch(List<String> batchIdList) throws SynapseException {
+        List<Reference> referenceList = new ArrayList<>();
+        for (String entityId : batchIdList) {
+            Reference reference = new Reference();
+            reference.setTargetId(entityId);
+            referenceList.add(reference);
+        }
+
+        rateLimiter.acquire();
+        PaginatedResults<EntityHeader> headerResults = synapseClient.getEntityHeaderBatch(referenceList);
+
+        // Headers come back with the ID as given, for example "syn1234". Anything not returned doesn't exist.
+        Map<String, EntityHeader> returnedHeaderMap = new HashMap<>();
+        for (EntityHeader header : headerResults.getResults()) {
+            returnedHeaderMap.put(header.getId(), header);
+        }
+        for (String entityId : batchIdList) {
+            headerCache.put(entityId, Optional.ofNullable(returnedHeaderMap.get(entityId)));
+        }
+    }
+}
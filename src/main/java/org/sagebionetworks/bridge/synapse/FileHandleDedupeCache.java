@@ -0,0 +1,159 @@
+package org.sagebionetworks.bridge.synapse;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.hash.Hashing;
+import org.sagebionetworks.client.exceptions.SynapseException;
+import org.sagebionetworks.repo.model.file.FileHandle;
+
+/**
+ * <p>
+ * Dedupes file handle uploads by the SHA-256 hash of their content. If the same content was already uploaded, by this
+ * run or an earlier one, the existing file handle ID is returned instead of uploading again.
+ * </p>
+ * <p>
+ * Hashes are kept in a local TSV index of hash and file handle ID. It's loaded on construction. Each new upload is
+ * appended and flushed right away, so the index survives a crash. If several threads upload the same content at the
+ * same time, only one of them uploads and the rest wait for its file handle ID. If that upload fails, the waiting
+ * threads try to claim the hash again, so one of them retries the upload.
+ * </p>
+ * <p>
+ * File handles in the index may have been deleted since they were written, or may belong to a different user or
+ * stack. The index should be scoped to one user and table, and each file handle loaded from it is looked up once
+ * before its first reuse. If it's gone, the content is uploaded again.
+ * </p>
+ * <p>
+ * Deduped file handles are shared by many rows, so they must not be deleted along with one row. In particular, don't
+ * run PurgeStudySynapseDataByDate against a table written with this cache, since it deletes every file handle that a
+ * purged row references, including ones that rows from other dates still use.
+ * </p>
+ */
+public class FileHandleDedupeCache implements Closeable {
+    private final FileHandleUploader uploader;
+    private final File indexFile;
+    private final ConcurrentMap<String, CompletableFuture<String>> fileHandleIdsByHash = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, String> unverifiedFileHandleIdsByHash = new ConcurrentHashMap<>();
+    private final AtomicLong numHits = new AtomicLong();
+    private final AtomicLong numUploads = new AtomicLong();
+    private BufferedWriter indexWriter;
+
+    /**
+     * Creates a cache that uploads with the given uploader, and loads the index file, if it exists. File handles from
+     * the index aren't trusted until they've been looked up.
+     */
+    public FileHandleDedupeCache(FileHandleUploader uploader, File indexFile) throws IOException {
+        this.uploader = uploader;
+        this.indexFile = indexFile;
+
+        if (indexFile.exists()) {
+            try (BufferedReader reader = Files.newBufferedReader(indexFile.toPath(), StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    int tabIdx = line.indexOf('\t');
+                    if (tabIdx > 0) {
+                        unverifiedFileHandleIdsByHash.put(line.substring(0, tabIdx), line.substring(tabIdx + 1));
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns a file handle ID with the given content. Uploads the content with the given file name and content type
+     * only if it hasn't been uploaded before.
+     */
+    public String getOrCreateFileHandleId(byte[] content, String fileName, String contentType)
+            throws IOException, SynapseException {
+        String hash = Hashing.sha256().hashBytes(content).toString();
+
+        // Claim the hash. If someone else already has, use (or wait for) their file handle ID. If their upload fails,
+        // they release the claim before failing it, so we loop back and try to claim it ourselves. Each pass either
+        // waits on someone else's upload or does our own, so this doesn't spin.
+        CompletableFuture<String> claim = new CompletableFuture<>();
+        CompletableFuture<String> existing;
+        while ((existing = fileHandleIdsByHash.putIfAbsent(hash, claim)) != null) {
+            try {
+                String fileHandleId = existing.get();
+                numHits.incrementAndGet();
+                return fileHandleId;
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted waiting for upload of " + hash, ex);
+            } catch (ExecutionException ex) {
+                // Fall through and try to claim the hash again.
+            }
+        }
+
+        // We have the claim. If an earlier run uploaded this content, reuse its file handle if it still exists.
+        // Otherwise, we upload. On failure, release the claim so a later row can try again.
+        String previousFileHandleId = unverifiedFileHandleIdsByHash.remove(hash);
+        String fileHandleId;
+        try {
+            if (previousFileHandleId != null) {
+                if (uploader.fileHandleExists(previousFileHandleId)) {
+                    claim.complete(previousFileHandleId);
+                    numHits.incrementAndGet();
+                    return previousFileHandleId;
+                }
+                // It's gone. Don't check it again.
+                previousFileHandleId = null;
+            }
+
+            FileHandle fileHandle = uploader.createFileHandle(content, fileName, contentType);
+            fileHandleId = fileHandle.getId();
+        } catch (RuntimeException | SynapseException ex) {
+            if (previousFileHandleId != null) {
+                // We never found out if it exists, so leave it for the next claim to check.
+                unverifiedFileHandleIdsByHash.putIfAbsent(hash, previousFileHandleId);
+            }
+            fileHandleIdsByHash.remove(hash, claim);
+            claim.completeExceptionally(ex);
+            throw ex;
+        }
+        numUploads.incrementAndGet();
+        claim.complete(fileHandleId);
+        appendToIndex(hash, fileHandleId);
+        return fileHandleId;
+    }
+
+    /** Number of values that were served from the cache instead of uploaded. */
+    public long getNumHits() {
+        return numHits.get();
+    }
+
+    /** Number of values that were uploaded. */
+    public long getNumUploads() {
+        return numUploads.get();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (indexWriter != null) {
+            indexWriter.close();
+        }
+    }
+
+    // Helper method to append a new entry to the index file.
+    private synchronized void appendToIndex(String hash, String fileHandleId) throws IOException {
+        if (indexWriter == null) {
+            indexWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(indexFile, true),
+                    StandardCharsets.UTF_8));
+        }
+        indexWriter.write(hash + "\t" + fileHandleId);
+        indexWriter.newLine();
+        indexWriter.flush();
+    }
+}
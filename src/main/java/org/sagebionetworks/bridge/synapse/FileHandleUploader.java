@@ -0,0 +1,145 @@
+package org.sagebionetworks.bridge.synapse;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+import com.jcabi.aspects.RetryOnFailure;
+import org.sagebionetworks.client.SynapseClient;
+import org.sagebionetworks.client.exceptions.SynapseException;
+import org.sagebionetworks.client.exceptions.SynapseForbiddenException;
+import org.sagebionetworks.client.exceptions.SynapseNotFoundException;
+import org.sagebionetworks.repo.model.file.FileHandle;
+
+/**
+ * <p>
+ * Creates Synapse file handles directly from in-memory values or streams, without the caller writing a temp file for
+ * each one.
+ * </p>
+ * <p>
+ * Byte arrays are uploaded straight from the heap. Streams are buffered on the heap up to the spill threshold. Larger
+ * streams are spilled to a scratch file, since the upload needs to know the size up front. Each thread reuses its own
+ * scratch file, so there's one scratch file per thread instead of one temp file per value. Call close() to delete the
+ * scratch files.
+ * </p>
+ * <p>
+ * This is thread-safe.
+ * </p>
+ */
+public class FileHandleUploader implements AutoCloseable {
+    /** Default size above which streams are spilled to a scratch file, 1 MB. */
+    public static final int DEFAULT_SPILL_THRESHOLD_BYTES = 1024 * 1024;
+
+    private final SynapseClient synapseClient;
+    private final int spillThresholdBytes;
+    private final File scratchDir;
+    private final Map<Thread, File> scratchFilesByThread = new ConcurrentHashMap<>();
+
+    /** Creates an uploader with the default spill threshold. */
+    public FileHandleUploader(SynapseClient synapseClient) {
+        this(synapseClient, DEFAULT_SPILL_THRESHOLD_BYTES);
+    }
+
+    /** Creates an uploader that spills streams larger than spillThresholdBytes to a scratch file. */
+    public FileHandleUploader(SynapseClient synapseClient, int spillThresholdBytes) {
+        this.synapseClient = synapseClient;
+        this.spillThresholdBytes = spillThresholdBytes;
+        this.scratchDir = Files.createTempDir();
+    }
+
+    /** Creates a file handle with the given content, file name, and content type. */
+    public FileHandle createFileHandle(byte[] content, String fileName, String contentType)
+            throws SynapseException {
+        return uploadBytesWithRetry(content, content.length, fileName, contentType);
+    }
+
+    /**
+     * Creates a file handle from a stream, with the given file name and content type. Reads the stream to the end,
+     * but doesn't close it.
+     */
+    public FileHandle createFileHandle(InputStream contentStream, String fileName, String contentType)
+            throws IOException, SynapseException {
+        // Read up to the threshold, plus one byte, so we know if there's more.
+        ByteArrayOutputStream heapBuffer = new ByteArrayOutputStream();
+        long numBuffered = ByteStreams.copy(ByteStreams.limit(contentStream, spillThresholdBytes + 1L),
+                heapBuffer);
+        if (numBuffered <= spillThresholdBytes) {
+            byte[] content = heapBuffer.toByteArray();
+            return uploadBytesWithRetry(content, content.length, fileName, contentType);
+        }
+
+        // Too big for the heap. Spill everything to this thread's scratch file.
+        File scratchFile = scratchFilesByThread.computeIfAbsent(Thread.currentThread(), thread -> new File(
+                scratchDir, "scratch-" + thread.getId()));
+        long fileSize;
+        try (OutputStream scratchStream = new FileOutputStream(scratchFile)) {
+            heapBuffer.writeTo(scratchStream);
+            fileSize = numBuffered + ByteStreams.copy(contentStream, scratchStream);
+        }
+        return uploadFileWithRetry(scratchFile, fileSize, fileName, contentType);
+    }
+
+    /**
+     * Returns true if the file handle exists and the caller can use it. File handles that were deleted, or that belong
+     * to another user, return false.
+     */
+    public boolean fileHandleExists(String fileHandleId) throws SynapseException {
+        try {
+            getRawFileHandleWithRetry(fileHandleId);
+            return true;
+        } catch (SynapseNotFoundException | SynapseForbiddenException ex) {
+            return false;
+        }
+    }
+
+    /** Deletes the scratch files. */
+    @Override
+    public void close() {
+        for (File scratchFile : scratchFilesByThread.values()) {
+            //noinspection ResultOfMethodCallIgnored
+            scratchFile.delete();
+        }
+        scratchFilesByThread.clear();
+        //noinspection ResultOfMethodCallIgnored
+        scratchDir.delete();
+    }
+
+    // Uploads from a byte array. Each attempt gets a new stream over the same bytes. This uses jcabi-retry to retry the
+    // call on failure.
+    @RetryOnFailure(attempts = 5, delay = 100, unit = TimeUnit.MILLISECONDS, types = SynapseException.class,
+            randomize = false)
+    private FileHandle uploadBytesWithRetry(byte[] content, long fileSize, String fileName, String contentType)
+            throws SynapseException {
+        return synapseClient.multipartUpload(new ByteArrayInputStream(content), fileSize, fileName, contentType,
+                null, false, false);
+    }
+
+    // Uploads from the scratch file. Each attempt re-opens the file. This uses jcabi-retry to retry the call on
+    // failure.
+    @RetryOnFailure(attempts = 5, delay = 100, unit = TimeUnit.MILLISECONDS, types = SynapseException.class,
+            randomize = false)
+    private FileHandle uploadFileWithRetry(File file, long fileSize, String fileName, String contentType)
+            throws IOException, SynapseException {
+        try (InputStream fileStream = new FileInputStream(file)) {
+            return synapseClient.multipartUpload(fileStream, fileSize, fileName, contentType, null, false, false);
+        }
+    }
+
+    // Looks up a file handle. Not found and forbidden aren't retried, since they won't change. This uses jcabi-retry to
+    // retry the call on failure.
+    @RetryOnFailure(attempts = 5, delay = 100, unit = TimeUnit.MILLISECONDS, types = SynapseException.class,
+            ignore = { SynapseNotFoundException.class, SynapseForbiddenException.class }, randomize = false)
+    private FileHandle getRawFileHandleWithRetry(String fileHandleId) throws SynapseException {
+        return synapseClient.getRawFileHandle(fileHandleId);
+    }
+}
@@ -0,0 +1,117 @@
+package org.sagebionetworks.bridge.synapse;
+
+import static org.sagebionetworks.bridge.helper.LogHelper.logInfo;
+
+import java.util.concurrent.TimeUnit;
+
+import org.sagebionetworks.client.exceptions.SynapseClientException;
+import org.sagebionetworks.client.exceptions.SynapseException;
+import org.sagebionetworks.client.exceptions.SynapseResultNotReadyException;
+import org.sagebionetworks.repo.model.asynch.AsynchronousJobStatus;
+
+/**
+ * <p>
+ * Polls Synapse async jobs (CSV downloads, queries, appends, schema changes) until they finish or a deadline passes.
+ * </p>
+ * <p>
+ * Polling starts at a short delay and backs off geometrically up to a max delay. Small jobs come back in a fraction of
+ * a second, and big jobs aren't polled more often than they need to be. While waiting, the job's progress is logged
+ * periodically.
+ * </p>
+ * <p>
+ * This is stateless and thread-safe, so one poller can be shared.
+ * </p>
+ */
+public class SynapseAsyncJobPoller {
+    private static final long DEFAULT_INITIAL_DELAY_MILLIS = 250;
+    private static final long DEFAULT_MAX_DELAY_MILLIS = 10000;
+    private static final double DEFAULT_BACKOFF_MULTIPLIER = 2.0;
+    private static final long PROGRESS_INTERVAL_MILLIS = 30000;
+
+    /** Fetches the job result once. Returns null or throws SynapseResultNotReadyException if it's not ready. */
+    @FunctionalInterface
+    public interface ResultGetter<T> {
+        T get() throws SynapseException;
+    }
+
+    private final long deadlineMillis;
+    private final long initialDelayMillis;
+    private final long maxDelayMillis;
+    private final double backoffMultiplier;
+
+    /** Creates a poller that gives up after the deadline, with the default backoff. */
+    public SynapseAsyncJobPoller(long deadline, TimeUnit deadlineUnit) {
+        this(deadlineUnit.toMillis(deadline), DEFAULT_INITIAL_DELAY_MILLIS, DEFAULT_MAX_DELAY_MILLIS,
+                DEFAULT_BACKOFF_MULTIPLIER);
+    }
+
+    /**
+     * Creates a poller that gives up after deadlineMillis. The first poll is after initialDelayMillis, and each delay
+     * after that is multiplied by backoffMultiplier, up to maxDelayMillis.
+     */
+    public SynapseAsyncJobPoller(long deadlineMillis, long initialDelayMillis, long maxDelayMillis,
+            double backoffMultiplier) {
+        this.deadlineMillis = deadlineMillis;
+        this.initialDelayMillis = initialDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+        this.backoffMultiplier = backoffMultiplier;
+    }
+
+    /**
+     * Polls until the job result is ready and returns it. The job description is used in progress logs and errors.
+     * Throws a SynapseClientException if the deadline passes first.
+     */
+    public <T> T waitForResult(String jobDescription, ResultGetter<T> resultGetter) throws SynapseException {
+        long startMillis = System.currentTimeMillis();
+        long lastProgressMillis = startMillis;
+        long delayMillis = initialDelayMillis;
+        while (true) {
+            // Sleep, but not past the deadline.
+            long elapsedMillis = System.currentTimeMillis() - startMillis;
+            long remainingMillis = deadlineMillis - elapsedMillis;
+            if (remainingMillis <= 0) {
+                throw new SynapseClientException("Timed out after " + TimeUnit.MILLISECONDS.toSeconds(elapsedMillis) +
+                        " seconds waiting for " + jobDescription);
+            }
+            try {
+                Thread.sleep(Math.min(delayMillis, remainingMillis));
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new SynapseClientException("Interrupted waiting for " + jobDescription, ex);
+            }
+
+            // Poll.
+            AsynchronousJobStatus jobStatus = null;
+            try {
+                T result = resultGetter.get();
+                if (result != null) {
+                    return result;
+                }
+            } catch (SynapseResultNotReadyException ex) {
+                jobStatus = ex.getJobStatus();
+            }
+
+            // Not ready. Report progress if it's been a while, then back off.
+            long nowMillis = System.currentTimeMillis();
+            if (nowMillis - lastProgressMillis >= PROGRESS_INTERVAL_MILLIS) {
+                logInfo("Still waiting for " + jobDescription + " after " +
+                        TimeUnit.MILLISECONDS.toSeconds(nowMillis - startMillis) + " seconds" +
+                        formatProgress(jobStatus));
+                lastProgressMillis = nowMillis;
+            }
+            delayMillis = Math.min((long) (delayMillis * backoffMultiplier), maxDelayMillis);
+        }
+    }
+
+    // Helper method to format job progress, if Synapse reported any.
+    private static String formatProgress(AsynchronousJobStatus jobStatus) {
+        if (jobStatus == null || jobStatus.getProgressTotal() == null || jobStatus.getProgressTotal() <= 0) {
+            return "";
+        }
+        String progress = ", progress " + jobStatus.getProgressCurrent() + "/" + jobStatus.getProgressTotal();
+        if (jobStatus.getProgressMessage() != null) {
+            progress += " (" + jobStatus.getProgressMessage() + ")";
+        }
+        return progress;
+    }
+}
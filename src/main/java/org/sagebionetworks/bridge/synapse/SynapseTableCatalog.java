@@ -0,0 +1,212 @@
+package org.sagebionetworks.bridge.synapse;
+
+import static org.sagebionetworks.bridge.helper.LogHelper.logError;
+import static org.sagebionetworks.bridge.helper.LogHelper.logInfo;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import com.amazonaws.services.dynamodbv2.document.DynamoDB;
+import com.amazonaws.services.dynamodbv2.document.Item;
+import com.amazonaws.services.dynamodbv2.document.Table;
+import com.amazonaws.services.dynamodbv2.document.spec.ScanSpec;
+import com.amazonaws.services.dynamodbv2.document.utils.NameMap;
+import com.fasterxml.jackson.databind.JsonNode;
+
+/**
+ * <p>
+ * Local catalog of Bridge table keys to Synapse table IDs, from the SynapseMetaTables (keyed by tableName) and
+ * SynapseTables (keyed by schemaKey) DDB tables. Keys are sorted, so getTablesForStudy() is a range lookup instead of a
+ * full scan filtered with startsWith().
+ * </p>
+ * <p>
+ * The catalog is cached in a local TSV file. If the cache is younger than the max age, the DDB tables aren't touched at
+ * all. Otherwise, the catalog is refreshed with scans projected to just the key and table ID, merged into the cached
+ * entries, and the cache is rewritten. The refresh logs what was added, removed, and changed.
+ * </p>
+ * <p>
+ * Rows without a table ID are skipped. If the same key is in both DDB tables, the SynapseMetaTables entry is kept and
+ * the collision is logged as an error.
+ * </p>
+ */
+public class SynapseTableCatalog {
+    private static final long DEFAULT_MAX_AGE_MINUTES = 60;
+    private static final String REFRESHED_HEADER_PREFIX = "# refreshed ";
+
+    private final DynamoDB ddbClient;
+    private final String ddbPrefix;
+    private final File cacheFile;
+    private final SortedMap<String, String> tableIdsByKey = new TreeMap<>();
+
+    /**
+     * Creates a catalog for the given DDB prefix, cached in the given file. Call load() before looking anything up.
+     */
+    public SynapseTableCatalog(DynamoDB ddbClient, String ddbPrefix, File cacheFile) {
+        this.ddbClient = ddbClient;
+        this.ddbPrefix = ddbPrefix;
+        this.cacheFile = cacheFile;
+    }
+
+    /**
+     * Creates and loads a catalog from the script config. Uses "ddbPrefix", and the optional
+     * "synapseTableCatalogPath" (defaults to SynapseTableCatalog-[ddbPrefix].tsv in the working directory) and
+     * "synapseTableCatalogMaxAgeMinutes" (defaults to 60).
+     */
+    public static SynapseTableCatalog fromConfig(DynamoDB ddbClient, JsonNode configNode) throws IOException {
+        String ddbPrefix = configNode.get("ddbPrefix").textValue();
+
+        String cachePath = "SynapseTableCatalog-" + ddbPrefix + ".tsv";
+        if (configNode.hasNonNull("synapseTableCatalogPath")) {
+            cachePath = configNode.get("synapseTableCatalogPath").textValue();
+        }
+
+        long maxAgeMinutes = DEFAULT_MAX_AGE_MINUTES;
+        if (configNode.hasNonNull("synapseTableCatalogMaxAgeMinutes")) {
+            maxAgeMinutes = configNode.get("synapseTableCatalogMaxAgeMinutes").longValue();
+        }
+
+        SynapseTableCatalog catalog = new SynapseTableCatalog(ddbClient, ddbPrefix, new File(cachePath));
+        catalog.load(TimeUnit.MINUTES.toMillis(maxAgeMinutes));
+        return catalog;
+    }
+
+    /**
+     * Loads the cache file, if it exists. If the cache is missing or older than maxAgeMillis, refreshes from DDB and
+     * rewrites the cache. A max age of 0 always refreshes.
+     */
+    public synchronized void load(long maxAgeMillis) throws IOException {
+        long refreshedAt = readCache();
+        long ageMillis = System.currentTimeMillis() - refreshedAt;
+        if (refreshedAt > 0 && ageMillis < maxAgeMillis) {
+            logInfo("Using cached Synapse table catalog " + cacheFile.getAbsolutePath() + " with " +
+                    tableIdsByKey.size() + " tables, " + TimeUnit.MILLISECONDS.toMinutes(ageMillis) +
+                    " minutes old");
+            return;
+        }
+        refresh();
+    }
+
+    /** Re-scans the DDB tables, merges the results into the catalog, and rewrites the cache. */
+    public synchronized void refresh() throws IOException {
+        long refreshedAt = System.currentTimeMillis();
+        Map<String, String> scannedTableIdsByKey = new HashMap<>();
+        int numCollisions = scanInto(ddbClient.getTable(ddbPrefix + "SynapseMetaTables"), "tableName",
+                scannedTableIdsByKey);
+        numCollisions += scanInto(ddbClient.getTable(ddbPrefix + "SynapseTables"), "schemaKey",
+                scannedTableIdsByKey);
+
+        // Merge, so we can log exactly what changed since the last refresh.
+        int numAdded = 0;
+        int numChanged = 0;
+        for (Map.Entry<String, String> scannedEntry : scannedTableIdsByKey.entrySet()) {
+            String oldTableId = tableIdsByKey.put(scannedEntry.getKey(), scannedEntry.getValue());
+            if (oldTableId == null) {
+                numAdded++;
+            } else if (!Objects.equals(oldTableId, scannedEntry.getValue())) {
+                logInfo("Synapse table for " + scannedEntry.getKey() + " changed from " + oldTableId + " to " +
+                        scannedEntry.getValue());
+                numChanged++;
+            }
+        }
+        int numRemoved = tableIdsByKey.size() - scannedTableIdsByKey.size();
+        tableIdsByKey.keySet().retainAll(scannedTableIdsByKey.keySet());
+
+        writeCache(refreshedAt);
+        logInfo("Refreshed Synapse table catalog with " + tableIdsByKey.size() + " tables: " + numAdded + " added, " +
+                numChanged + " changed, " + numRemoved + " removed, " + numCollisions + " key collisions");
+    }
+
+    /**
+     * Returns all tables for the given study, sorted by key. Keys are [studyId]-[rest], so this matches on studyId
+     * plus the separator, and study "foo" doesn't pick up study "foobar"'s tables.
+     */
+    public synchronized SortedMap<String, String> getTablesForStudy(String studyId) {
+        // Every key that starts with the prefix sorts between the prefix and the prefix + the max char.
+        String keyPrefix = studyId + "-";
+        return Collections.unmodifiableSortedMap(new TreeMap<>(tableIdsByKey.subMap(keyPrefix, keyPrefix +
+                Character.MAX_VALUE)));
+    }
+
+    /** Returns all tables in the catalog, sorted by key. */
+    public synchronized SortedMap<String, String> getAllTables() {
+        return Collections.unmodifiableSortedMap(new TreeMap<>(tableIdsByKey));
+    }
+
+    // Helper method to scan one of the DDB tables, projected to the key and table ID. Rows without a table ID are
+    // skipped. Keys that are already in the map are kept, not overwritten. Returns the number of those collisions.
+    private static int scanInto(Table ddbTable, String keyAttrName, Map<String, String> tableIdsByKey) {
+        // Use a name map, so we don't have to worry about reserved words.
+        ScanSpec scanSpec = new ScanSpec().withProjectionExpression("#k, #t").withNameMap(new NameMap()
+                .with("#k", keyAttrName).with("#t", "tableId"));
+        int numCollisions = 0;
+        for (Item oneItem : ddbTable.scan(scanSpec)) {
+            String key = oneItem.getString(keyAttrName);
+            String tableId = oneItem.getString("tableId");
+            if (tableId == null) {
+                logInfo("Skipping " + ddbTable.getTableName() + " row " + key + ", which has no tableId");
+                continue;
+            }
+
+            String existingTableId = tableIdsByKey.putIfAbsent(key, tableId);
+            if (existingTableId != null) {
+                logError("Key " + key + " in " + ddbTable.getTableName() + " with tableId " + tableId +
+                        " is already in the catalog with tableId " + existingTableId + ", keeping " +
+                        existingTableId);
+                numCollisions++;
+            }
+        }
+        return numCollisions;
+    }
+
+    // Helper method to read the cache file into the catalog. Returns when the cache was refreshed, or 0 if there's no
+    // cache.
+    private long readCache() throws IOException {
+        if (!cacheFile.exists()) {
+            return 0;
+        }
+
+        long refreshedAt = 0;
+        try (BufferedReader reader = Files.newBufferedReader(cacheFile.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith(REFRESHED_HEADER_PREFIX)) {
+                    refreshedAt = Long.parseLong(line.substring(REFRESHED_HEADER_PREFIX.length()));
+                    continue;
+                }
+
+                int tabIdx = line.indexOf('\t');
+                if (tabIdx > 0) {
+                    tableIdsByKey.put(line.substring(0, tabIdx), line.substring(tabIdx + 1));
+                }
+            }
+        }
+        return refreshedAt;
+    }
+
+    // Helper method to write the catalog to the cache file. Writes to a temp file first, so a crash never leaves a
+    // partial cache.
+    private void writeCache(long refreshedAt) throws IOException {
+        File tempFile = new File(cacheFile.getAbsolutePath() + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(tempFile.toPath(), StandardCharsets.UTF_8)) {
+            writer.write(REFRESHED_HEADER_PREFIX + refreshedAt);
+            writer.newLine();
+            for (Map.Entry<String, String> oneEntry : tableIdsByKey.entrySet()) {
+                writer.write(oneEntry.getKey() + "\t" + oneEntry.getValue());
+                writer.newLine();
+            }
+        }
+        Files.move(tempFile.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+}
@@ -4,10 +4,10 @@ import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.concurrent.TimeUnit;
 
+import com.google.common.util.concurrent.RateLimiter;
 import com.jcabi.aspects.RetryOnFailure;
 import org.apache.commons.lang3.StringUtils;
 import org.sagebionetworks.client.SynapseClient;
-import org.sagebionetworks.client.exceptions.SynapseClientException;
 import org.sagebionetworks.client.exceptions.SynapseException;
 import org.sagebionetworks.client.exceptions.SynapseResultNotReadyException;
 import org.sagebionetworks.repo.model.table.QueryNextPageToken;
@@ -16,7 +16,10 @@ import org.sagebionetworks.repo.model.table.QueryResultBundle;
 import org.sagebionetworks.repo.model.table.Row;
 import org.sagebionetworks.repo.model.table.SelectColumn;
 
-/** Helper class to query Synapse tables and iterate over the results, abstracting away pagination. */
+/**
+ * Helper class to query Synapse tables and iterate over the results, abstracting away pagination. If a rate limiter is
+ * given, every Synapse call (query start, each poll, each next page start, and each retry) takes one permit.
+ */
 // This doesn't implement Iterator, since Iterator's methods can't throw checked exceptions.
 public class SynapseTableIterator {
     private static final int ASYNC_QUERY_TIMEOUT_SECONDS = 300;
@@ -24,6 +27,8 @@ public class SynapseTableIterator {
     // Constructor args.
     private final SynapseClient synapseClient;
     private final String synapseTableId;
+    private final SynapseAsyncJobPoller poller;
+    private final RateLimiter rateLimiter;
 
     // Internal state tracking.
     private String asyncJobToken;
@@ -48,12 +53,77 @@ public class SynapseTableIterator {
      */
     public SynapseTableIterator(SynapseClient synapseClient, String sql, String synapseTableId)
             throws SynapseException {
+        this(synapseClient, sql, synapseTableId, new SynapseAsyncJobPoller(ASYNC_QUERY_TIMEOUT_SECONDS,
+                TimeUnit.SECONDS));
+    }
+
+    /**
+     * Creates the Synapse table iterator with the specified args, polling for each page with the given poller.
+     *
+     * @param synapseClient
+     *         synapse client
+     * @param sql
+     *         SQL query to run, defaults to "SELECT * FROM [synapseTableId]"
+     * @param synapseTableId
+     *         synapse table ID to run the query against
+     * @param poller
+     *         poller used to wait for each page, which determines the deadline
+     * @throws SynapseException
+     *         if the synapse call fails
+     */
+    public SynapseTableIterator(SynapseClient synapseClient, String sql, String synapseTableId,
+            SynapseAsyncJobPoller poller) throws SynapseException {
+        this(synapseClient, sql, synapseTableId, poller, null);
+    }
+
+    /**
+     * Creates the Synapse table iterator with the specified args, charging every Synapse call to the given rate
+     * limiter.
+     *
+     * @param synapseClient
+     *         synapse client
+     * @param sql
+     *         SQL query to run, defaults to "SELECT * FROM [synapseTableId]"
+     * @param synapseTableId
+     *         synapse table ID to run the query against
+     * @param rateLimiter
+     *         rate limiter for Synapse calls, one permit per call
+     * @throws SynapseException
+     *         if the synapse call fails
+     */
+    public SynapseTableIterator(SynapseClient synapseClient, String sql, String synapseTableId,
+            RateLimiter rateLimiter) throws SynapseException {
+        this(synapseClient, sql, synapseTableId, new SynapseAsyncJobPoller(ASYNC_QUERY_TIMEOUT_SECONDS,
+                TimeUnit.SECONDS), rateLimiter);
+    }
+
+    /**
+     * Creates the Synapse table iterator with the specified args, polling for each page with the given poller and
+     * charging every Synapse call to the given rate limiter.
+     *
+     * @param synapseClient
+     *         synapse client
+     * @param sql
+     *         SQL query to run, defaults to "SELECT * FROM [synapseTableId]"
+     * @param synapseTableId
+     *         synapse table ID to run the query against
+     * @param poller
+     *         poller used to wait for each page, which determines the deadline
+     * @param rateLimiter
+     *         rate limiter for Synapse calls, one permit per call, or null for no limit
+     * @throws SynapseException
+     *         if the synapse call fails
+     */
+    public SynapseTableIterator(SynapseClient synapseClient, String sql, String synapseTableId,
+            SynapseAsyncJobPoller poller, RateLimiter rateLimiter) throws SynapseException {
         if (StringUtils.isBlank(sql)) {
             sql = "SELECT * FROM " + synapseTableId;
         }
 
         this.synapseClient = synapseClient;
         this.synapseTableId = synapseTableId;
+        this.poller = poller;
+        this.rateLimiter = rateLimiter;
         this.asyncJobToken = queryTableAsyncStartWithRetry(sql);
     }
 
@@ -169,48 +239,22 @@ public class SynapseTableIterator {
     }
 
     private void fetchNextPage() throws SynapseException {
-        // poll asyncGet until success or timeout
-        boolean success = false;
-        for (int sec = 0; sec < ASYNC_QUERY_TIMEOUT_SECONDS; sec++) {
-            // sleep for 1 sec
-            try {
-                Thread.sleep(1000);
-            } catch (InterruptedException ex) {
-                // noop
-            }
+        if (firstPage) {
+            // This is the first page, so we call bundle get instead of next page get.
+            QueryResultBundle resultBundle = poller.waitForResult("query of table " + synapseTableId,
+                    () -> queryTableAsyncGetWithRetry(asyncJobToken));
+            curResult = resultBundle.getQueryResult();
 
-            // poll
-            if (firstPage) {
-                // This is the first page, so we call bundle get instead of next page get.
-                QueryResultBundle resultBundle = queryTableAsyncGetWithRetry(asyncJobToken);
-                if (resultBundle == null) {
-                    // not ready, loop around again
-                    continue;
-                }
-                curResult = resultBundle.getQueryResult();
-
-                // fetch etag
-                etag = curResult.getQueryResults().getEtag();
-                headers = curResult.getQueryResults().getHeaders();
-
-                // This is no longer the first page.
-                firstPage = false;
-            } else {
-                // We're getting a next page.
-                curResult = queryTableNextPageAsyncGetWithRetry(asyncJobToken);
-                if (curResult == null) {
-                    // not ready, loop around again
-                    continue;
-                }
-            }
-
-            // If we made it this far, we've successfully fetched the page.
-            success = true;
-            break;
-        }
+            // fetch etag
+            etag = curResult.getQueryResults().getEtag();
+            headers = curResult.getQueryResults().getHeaders();
 
-        if (!success) {
-            throw new SynapseClientException("Timed out querying table " + synapseTableId);
+            // This is no longer the first page.
+            firstPage = false;
+        } else {
+            // We're getting a next page.
+            curResult = poller.waitForResult("next page of query of table " + synapseTableId,
+                    () -> queryTableNextPageAsyncGetWithRetry(asyncJobToken));
         }
     }
 
@@ -226,29 +270,28 @@ public class SynapseTableIterator {
     @RetryOnFailure(attempts = 5, delay = 100, unit = TimeUnit.MILLISECONDS, types = SynapseException.class,
             randomize = false)
     private String queryTableAsyncStartWithRetry(String sql) throws SynapseException {
+        acquirePermit();
         return synapseClient.queryTableEntityBundleAsyncStart(sql, null, null, SynapseClient.QUERY_PARTMASK,
                 synapseTableId);
     }
 
     /**
-     * Fetches the result of an async query, or returns null if the result is not ready. This uses jcabi-retry to
-     * retry the call on failure.
+     * Fetches the result of an async query. This uses jcabi-retry to retry the call on failure, but not on "not
+     * ready", which goes straight to the poller so it can report the job's progress.
      *
      * @param asyncJobToken
      *         async job token of the result to be fetched
-     * @return the result of the async query, or null if the result is not ready
+     * @return the result of the async query
+     * @throws SynapseResultNotReadyException
+     *         if the result is not ready
      * @throws SynapseException
      *         if the Synapse call fails
      */
     @RetryOnFailure(attempts = 5, delay = 100, unit = TimeUnit.MILLISECONDS, types = SynapseException.class,
-            randomize = false)
+            ignore = SynapseResultNotReadyException.class, randomize = false)
     private QueryResultBundle queryTableAsyncGetWithRetry(String asyncJobToken) throws SynapseException {
-        try {
-            return synapseClient.queryTableEntityBundleAsyncGet(asyncJobToken, synapseTableId);
-        } catch (SynapseResultNotReadyException ex) {
-            // catch this and return null so we don't retry on "not ready"
-            return null;
-        }
+        acquirePermit();
+        return synapseClient.queryTableEntityBundleAsyncGet(asyncJobToken, synapseTableId);
     }
 
     /**
@@ -264,27 +307,34 @@ public class SynapseTableIterator {
     @RetryOnFailure(attempts = 5, delay = 100, unit = TimeUnit.MILLISECONDS, types = SynapseException.class,
             randomize = false)
     private String queryTableNextPageAsyncStartWithRetry(String nextPageToken) throws SynapseException {
+        acquirePermit();
         return synapseClient.queryTableEntityNextPageAsyncStart(nextPageToken, synapseTableId);
     }
 
     /**
-     * Fetches the result of an async query next page, or returns null if the result is not ready. This uses
-     * jcabi-retry to retry the call on failure.
+     * Fetches the result of an async query next page. This uses jcabi-retry to retry the call on failure, but not on
+     * "not ready", which goes straight to the poller so it can report the job's progress.
      *
      * @param asyncJobToken
      *         async job token of the result to be fetched
-     * @return the result of the async query, or null if the result is not ready
+     * @return the result of the async query
+     * @throws SynapseResultNotReadyException
+     *         if the result is not ready
      * @throws SynapseException
      *         if the Synapse call fails
      */
     @RetryOnFailure(attempts = 5, delay = 100, unit = TimeUnit.MILLISECONDS, types = SynapseException.class,
-            randomize = false)
+            ignore = SynapseResultNotReadyException.class, randomize = false)
     private QueryResult queryTableNextPageAsyncGetWithRetry(String asyncJobToken) throws SynapseException {
-        try {
-            return synapseClient.queryTableEntityNextPageAsyncGet(asyncJobToken, synapseTableId);
-        } catch (SynapseResultNotReadyException ex) {
-            // catch this and return null so we don't retry on "not ready"
-            return null;
+        acquirePermit();
+        return synapseClient.queryTableEntityNextPageAsyncGet(asyncJobToken, synapseTableId);
+    }
+
+    // Helper method to charge one Synapse call to the rate limiter, if there is one. This is inside the retried
+    // methods, so each retry is charged too.
+    private void acquirePermit() {
+        if (rateLimiter != null) {
+            rateLimiter.acquire();
         }
     }
 }
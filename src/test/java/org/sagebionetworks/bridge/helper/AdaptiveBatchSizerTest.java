@@ -0,0 +1,37 @@
+package org.sagebionetworks.bridge.helper;
+
+import static org.testng.Assert.assertEquals;
+
+import org.testng.annotations.Test;
+
+public class AdaptiveBatchSizerTest {
+    @Test
+    public void growsWhileUnderTarget() {
+        AdaptiveBatchSizer sizer = new AdaptiveBatchSizer(100, 10, 150, 20, 1000);
+        sizer.recordLatency(500);
+        assertEquals(sizer.getBatchSize(), 120);
+        sizer.recordLatency(1000);
+        assertEquals(sizer.getBatchSize(), 140);
+
+        // Capped at the max.
+        sizer.recordLatency(500);
+        assertEquals(sizer.getBatchSize(), 150);
+    }
+
+    @Test
+    public void halvesWhenOverTarget() {
+        AdaptiveBatchSizer sizer = new AdaptiveBatchSizer(100, 30, 200, 20, 1000);
+        sizer.recordLatency(1001);
+        assertEquals(sizer.getBatchSize(), 50);
+
+        // Floored at the min.
+        sizer.recordLatency(5000);
+        assertEquals(sizer.getBatchSize(), 30);
+    }
+
+    @Test
+    public void initialBatchSizeIsClamped() {
+        assertEquals(new AdaptiveBatchSizer(1000, 10, 200, 20, 1000).getBatchSize(), 200);
+        assertEquals(new AdaptiveBatchSizer(1, 10, 200, 20, 1000).getBatchSize(), 10);
+    }
+}
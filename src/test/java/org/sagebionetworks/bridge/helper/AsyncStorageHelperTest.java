@@ -0,0 +1,159 @@
+package org.sagebionetworks.bridge.helper;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Stopwatch;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.QueryRequest;
+import software.amazon.awssdk.services.dynamodb.model.ScanRequest;
+
+public class AsyncStorageHelperTest {
+    private static final String BUCKET = "dummy-bucket";
+    private static final String HASH_KEY = "id";
+    private static final String STUDY_ID = "studyId";
+    private static final String TABLE_NAME = "dummy-table";
+
+    private InMemoryAsyncStorageClient client;
+    private AsyncStorageHelper helper;
+
+    @BeforeMethod
+    public void setup() {
+        // Small pages, so every test goes through pagination.
+        client = new InMemoryAsyncStorageClient(2);
+        client.createTable(TABLE_NAME, HASH_KEY);
+        helper = new AsyncStorageHelper(client);
+    }
+
+    @AfterMethod
+    public void cleanup() {
+        helper.close();
+        client.close();
+    }
+
+    @Test
+    public void scanAllSegmentsFollowsPages() throws Exception {
+        for (int i = 0; i < 9; i++) {
+            client.putItem(TABLE_NAME, makeItem("key-" + i, "study-" + (i % 2)));
+        }
+
+        List<String> idList = Collections.synchronizedList(new ArrayList<>());
+        long numItems = helper.scanAllSegments(ScanRequest.builder().tableName(TABLE_NAME).build(), 3,
+                page -> page.forEach(item -> idList.add(item.get(HASH_KEY).s()))).get();
+
+        assertEquals(numItems, 9);
+        assertEquals(idList.size(), 9);
+        for (int i = 0; i < 9; i++) {
+            assertTrue(idList.contains("key-" + i));
+        }
+
+        // 9 items in 3 segments with 2 items per page means at least one segment needed more than one page.
+        assertTrue(client.getNumCalls("scan") > 3);
+    }
+
+    @Test
+    public void throttledScanSpacesPageRequests() throws Exception {
+        for (int i = 0; i < 9; i++) {
+            client.putItem(TABLE_NAME, makeItem("key-" + i, "study-" + (i % 2)));
+        }
+
+        // 20 pages per second means page requests are at least 50ms apart, across all segments.
+        Stopwatch stopwatch = Stopwatch.createStarted();
+        long numItems = helper.scanAllSegments(ScanRequest.builder().tableName(TABLE_NAME).build(), 3, 20.0,
+                page -> {}).get();
+        long elapsedMillis = stopwatch.elapsed(TimeUnit.MILLISECONDS);
+
+        assertEquals(numItems, 9);
+        int numScans = client.getNumCalls("scan");
+        assertTrue(elapsedMillis >= (numScans - 1) * 50L, "Scanned " + numScans + " pages in " +
+                elapsedMillis + "ms");
+    }
+
+    @Test
+    public void queryAllFollowsPages() throws Exception {
+        for (int i = 0; i < 9; i++) {
+            client.putItem(TABLE_NAME, makeItem("key-" + i, "study-" + (i % 2)));
+        }
+
+        List<String> idList = new ArrayList<>();
+        QueryRequest request = QueryRequest.builder().tableName(TABLE_NAME).indexName("studyId-index")
+                .keyConditionExpression(STUDY_ID + " = :studyId").expressionAttributeValues(ImmutableMap.of(
+                        ":studyId", AttributeValue.builder().s("study-0").build())).build();
+        long numItems = helper.queryAll(request, page -> page.forEach(item -> idList.add(item.get(HASH_KEY).s())))
+                .get();
+
+        assertEquals(numItems, 5);
+        assertEquals(idList, ImmutableList.of("key-0", "key-2", "key-4", "key-6", "key-8"));
+        assertEquals(client.getNumCalls("query"), 3);
+    }
+
+    @Test
+    public void batchGetAllSkipsMissingKeys() throws Exception {
+        client.putItem(TABLE_NAME, makeItem("key-0", "study-0"));
+        client.putItem(TABLE_NAME, makeItem("key-1", "study-1"));
+
+        Map<String, Map<String, AttributeValue>> itemsByKey = helper.batchGetAll(TABLE_NAME, HASH_KEY,
+                ImmutableList.of("key-0", "key-1", "missing-key")).get();
+        assertEquals(itemsByKey.keySet(), ImmutableSet.of("key-0", "key-1"));
+        assertEquals(itemsByKey.get("key-1").get(STUDY_ID).s(), "study-1");
+    }
+
+    @Test
+    public void batchDeleteAllRetriesUnprocessed() throws Exception {
+        List<String> keyList = new ArrayList<>();
+        for (int i = 0; i < 30; i++) {
+            keyList.add("key-" + i);
+            client.putItem(TABLE_NAME, makeItem("key-" + i, "study-0"));
+        }
+        client.putItem(TABLE_NAME, makeItem("other-key", "study-0"));
+
+        // The first batch of 25 leaves its last item unprocessed. The second batch of 5 fits. That's 2 batches, plus
+        // 1 retry.
+        client.setMaxItemsPerBatch(24);
+        helper.batchDeleteAll(TABLE_NAME, HASH_KEY, keyList).get();
+
+        assertEquals(client.getNumCalls("batchWriteItem"), 3);
+        List<Map<String, AttributeValue>> remainingItemList = client.getItems(TABLE_NAME);
+        assertEquals(remainingItemList.size(), 1);
+        assertEquals(remainingItemList.get(0).get(HASH_KEY).s(), "other-key");
+    }
+
+    @Test
+    public void deleteS3ObjectsDeletesAllBatches() throws Exception {
+        List<String> keyList = new ArrayList<>();
+        for (int i = 0; i < 1500; i++) {
+            keyList.add("key-" + i);
+            client.putObject(BUCKET, "key-" + i);
+        }
+        client.putObject(BUCKET, "other-key");
+
+        helper.deleteS3Objects(BUCKET, keyList).get();
+
+        assertEquals(client.getNumCalls("deleteObjects"), 2);
+        assertEquals(client.getObjectKeys(BUCKET), ImmutableSet.of("other-key"));
+    }
+
+    @Test(expectedExceptions = ExecutionException.class)
+    public void batchGetAllPropagatesFailure() throws Exception {
+        client.failNextCall(new IllegalStateException("test exception"));
+        helper.batchGetAll(TABLE_NAME, HASH_KEY, ImmutableList.of("key-0")).get();
+    }
+
+    private static Map<String, AttributeValue> makeItem(String id, String studyId) {
+        return ImmutableMap.of(HASH_KEY, AttributeValue.builder().s(id).build(), STUDY_ID,
+                AttributeValue.builder().s(studyId).build());
+    }
+}
@@ -0,0 +1,338 @@
+package org.sagebionetworks.bridge.helper;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+import com.google.common.collect.ImmutableMap;
+import software.amazon.awssdk.services.dynamodb.model.AttributeValue;
+import software.amazon.awssdk.services.dynamodb.model.BatchGetItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.BatchGetItemResponse;
+import software.amazon.awssdk.services.dynamodb.model.BatchWriteItemRequest;
+import software.amazon.awssdk.services.dynamodb.model.BatchWriteItemResponse;
+import software.amazon.awssdk.services.dynamodb.model.KeysAndAttributes;
+import software.amazon.awssdk.services.dynamodb.model.QueryRequest;
+import software.amazon.awssdk.services.dynamodb.model.QueryResponse;
+import software.amazon.awssdk.services.dynamodb.model.ScanRequest;
+import software.amazon.awssdk.services.dynamodb.model.ScanResponse;
+import software.amazon.awssdk.services.dynamodb.model.WriteRequest;
+import software.amazon.awssdk.services.s3.model.DeleteObjectsRequest;
+import software.amazon.awssdk.services.s3.model.DeleteObjectsResponse;
+import software.amazon.awssdk.services.s3.model.ObjectIdentifier;
+
+/**
+ * <p>
+ * In-memory stand-in for AsyncStorageClient, for tests. DDB tables have a hash-only string key, and S3 buckets are
+ * sets of keys. Every call completes immediately.
+ * </p>
+ * <p>
+ * Scans and queries page in key order and honor limit, segment, and exclusiveStartKey. Queries only support a single
+ * equality key condition, for example "studyId = :studyId", on the table or an index. Projections and filter
+ * expressions are ignored.
+ * </p>
+ * <p>
+ * To test retries, setMaxItemsPerBatch() makes batch gets and writes leave everything past the first N keys
+ * unprocessed, and failNextCall() makes the next call of any kind fail.
+ * </p>
+ */
+public class InMemoryAsyncStorageClient implements AsyncStorageClient {
+    private static final int DEFAULT_PAGE_SIZE = 100;
+
+    private final int defaultPageSize;
+    private final Map<String, Table> tablesByName = new ConcurrentHashMap<>();
+    private final Map<String, Set<String>> bucketsByName = new ConcurrentHashMap<>();
+    private final Map<String, AtomicInteger> numCallsByOperation = new ConcurrentHashMap<>();
+    private volatile int maxItemsPerBatch = Integer.MAX_VALUE;
+    private volatile Throwable nextCallFailure;
+    private volatile boolean closed = false;
+
+    /** Creates an in-memory client with the default page size. */
+    public InMemoryAsyncStorageClient() {
+        this(DEFAULT_PAGE_SIZE);
+    }
+
+    /** Creates an in-memory client. Scans and queries without a limit return pages of the given size. */
+    public InMemoryAsyncStorageClient(int defaultPageSize) {
+        this.defaultPageSize = defaultPageSize;
+    }
+
+    /** Creates an empty table with the given hash key. */
+    public void createTable(String tableName, String hashKeyName) {
+        tablesByName.put(tableName, new Table(hashKeyName));
+    }
+
+    /** Puts an item. The table must exist, and the item must have the table's hash key. */
+    public void putItem(String tableName, Map<String, AttributeValue> item) {
+        getTable(tableName).put(item);
+    }
+
+    /** Returns all items in the table, in key order. */
+    public List<Map<String, AttributeValue>> getItems(String tableName) {
+        Table table = getTable(tableName);
+        synchronized (table) {
+            return new ArrayList<>(table.itemsByKey.values());
+        }
+    }
+
+    /** Puts an object key in the given bucket. */
+    public void putObject(String bucket, String key) {
+        getBucket(bucket).add(key);
+    }
+
+    /** Returns the object keys in the given bucket. */
+    public Set<String> getObjectKeys(String bucket) {
+        return getBucket(bucket);
+    }
+
+    /** Batch gets and writes process at most this many keys per call, and return the rest as unprocessed. */
+    public void setMaxItemsPerBatch(int maxItemsPerBatch) {
+        this.maxItemsPerBatch = maxItemsPerBatch;
+    }
+
+    /** Makes the next call, of any kind, complete exceptionally with the given exception. */
+    public void failNextCall(Throwable failure) {
+        this.nextCallFailure = failure;
+    }
+
+    /** Number of calls made for the given operation, for example "scan" or "batchWriteItem". */
+    public int getNumCalls(String operation) {
+        AtomicInteger numCalls = numCallsByOperation.get(operation);
+        return numCalls != null ? numCalls.get() : 0;
+    }
+
+    /** True if close() was called. */
+    public boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public CompletableFuture<ScanResponse> scan(ScanRequest request) {
+        CompletableFuture<ScanResponse> failure = startCall("scan");
+        if (failure != null) {
+            return failure;
+        }
+
+        Table table = getTable(request.tableName());
+        Integer segment = request.segment();
+        Integer totalSegments = request.totalSegments();
+        Page page = table.getPage(request.exclusiveStartKey(), limitOrDefault(request.limit()),
+                item -> segment == null || Math.floorMod(table.keyOf(item).hashCode(), totalSegments) == segment);
+        return CompletableFuture.completedFuture(ScanResponse.builder().items(page.itemList)
+                .lastEvaluatedKey(page.lastEvaluatedKey).count(page.itemList.size()).build());
+    }
+
+    @Override
+    public CompletableFuture<QueryResponse> query(QueryRequest request) {
+        CompletableFuture<QueryResponse> failure = startCall("query");
+        if (failure != null) {
+            return failure;
+        }
+
+        // Parse "name = :value". The name may be an expression attribute name, like "#name".
+        String[] conditionParts = request.keyConditionExpression().split("=");
+        if (conditionParts.length != 2) {
+            throw new UnsupportedOperationException("Only single equality key conditions are supported: " +
+                    request.keyConditionExpression());
+        }
+        String attributeName = conditionParts[0].trim();
+        if (attributeName.startsWith("#")) {
+            attributeName = request.expressionAttributeNames().get(attributeName);
+        }
+        AttributeValue expectedValue = request.expressionAttributeValues().get(conditionParts[1].trim());
+        String keyAttributeName = attributeName;
+
+        Page page = getTable(request.tableName()).getPage(request.exclusiveStartKey(),
+                limitOrDefault(request.limit()), item -> expectedValue.equals(item.get(keyAttributeName)));
+        return CompletableFuture.completedFuture(QueryResponse.builder().items(page.itemList)
+                .lastEvaluatedKey(page.lastEvaluatedKey).count(page.itemList.size()).build());
+    }
+
+    @Override
+    public CompletableFuture<BatchGetItemResponse> batchGetItem(BatchGetItemRequest request) {
+        CompletableFuture<BatchGetItemResponse> failure = startCall("batchGetItem");
+        if (failure != null) {
+            return failure;
+        }
+
+        Map<String, List<Map<String, AttributeValue>>> responses = new HashMap<>();
+        Map<String, KeysAndAttributes> unprocessedKeys = new HashMap<>();
+        int numProcessed = 0;
+        for (Map.Entry<String, KeysAndAttributes> tableEntry : request.requestItems().entrySet()) {
+            Table table = getTable(tableEntry.getKey());
+            List<Map<String, AttributeValue>> itemList = new ArrayList<>();
+            List<Map<String, AttributeValue>> unprocessedKeyList = new ArrayList<>();
+            for (Map<String, AttributeValue> key : tableEntry.getValue().keys()) {
+                if (numProcessed >= maxItemsPerBatch) {
+                    unprocessedKeyList.add(key);
+                    continue;
+                }
+                Map<String, AttributeValue> item = table.get(key);
+                if (item != null) {
+                    itemList.add(item);
+                }
+                numProcessed++;
+            }
+            responses.put(tableEntry.getKey(), itemList);
+            if (!unprocessedKeyList.isEmpty()) {
+                unprocessedKeys.put(tableEntry.getKey(), KeysAndAttributes.builder().keys(unprocessedKeyList)
+                        .build());
+            }
+        }
+        return CompletableFuture.completedFuture(BatchGetItemResponse.builder().responses(responses)
+                .unprocessedKeys(unprocessedKeys).build());
+    }
+
+    @Override
+    public CompletableFuture<BatchWriteItemResponse> batchWriteItem(BatchWriteItemRequest request) {
+        CompletableFuture<BatchWriteItemResponse> failure = startCall("batchWriteItem");
+        if (failure != null) {
+            return failure;
+        }
+
+        Map<String, List<WriteRequest>> unprocessedItems = new HashMap<>();
+        int numProcessed = 0;
+        for (Map.Entry<String, List<WriteRequest>> tableEntry : request.requestItems().entrySet()) {
+            Table table = getTable(tableEntry.getKey());
+            List<WriteRequest> unprocessedWriteList = new ArrayList<>();
+            for (WriteRequest writeRequest : tableEntry.getValue()) {
+                if (numProcessed >= maxItemsPerBatch) {
+                    unprocessedWriteList.add(writeRequest);
+                    continue;
+                }
+                if (writeRequest.putRequest() != null) {
+                    table.put(writeRequest.putRequest().item());
+                } else {
+                    table.delete(writeRequest.deleteRequest().key());
+                }
+                numProcessed++;
+            }
+            if (!unprocessedWriteList.isEmpty()) {
+                unprocessedItems.put(tableEntry.getKey(), unprocessedWriteList);
+            }
+        }
+        return CompletableFuture.completedFuture(BatchWriteItemResponse.builder().unprocessedItems(unprocessedItems)
+                .build());
+    }
+
+    @Override
+    public CompletableFuture<DeleteObjectsResponse> deleteObjects(DeleteObjectsRequest request) {
+        CompletableFuture<DeleteObjectsResponse> failure = startCall("deleteObjects");
+        if (failure != null) {
+            return failure;
+        }
+
+        // Like S3, deleting a key that doesn't exist succeeds.
+        Set<String> bucket = getBucket(request.bucket());
+        for (ObjectIdentifier object : request.delete().objects()) {
+            bucket.remove(object.key());
+        }
+        return CompletableFuture.completedFuture(DeleteObjectsResponse.builder().build());
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+    }
+
+    // Helper method to count the call and consume the injected failure, if any. Returns a failed future if this call
+    // should fail, or null otherwise.
+    private <T> CompletableFuture<T> startCall(String operation) {
+        numCallsByOperation.computeIfAbsent(operation, key -> new AtomicInteger()).incrementAndGet();
+        if (closed) {
+            throw new IllegalStateException("Client is closed");
+        }
+
+        Throwable failure = nextCallFailure;
+        if (failure == null) {
+            return null;
+        }
+        nextCallFailure = null;
+        CompletableFuture<T> future = new CompletableFuture<>();
+        future.completeExceptionally(failure);
+        return future;
+    }
+
+    private int limitOrDefault(Integer limit) {
+        return limit != null ? limit : defaultPageSize;
+    }
+
+    private Table getTable(String tableName) {
+        Table table = tablesByName.get(tableName);
+        if (table == null) {
+            throw new IllegalArgumentException("Table " + tableName + " doesn't exist");
+        }
+        return table;
+    }
+
+    private Set<String> getBucket(String bucket) {
+        return bucketsByName.computeIfAbsent(bucket, key -> ConcurrentHashMap.newKeySet());
+    }
+
+    // One DDB table. Items are sorted by key, so paging is stable.
+    private static class Table {
+        private final String hashKeyName;
+        private final NavigableMap<String, Map<String, AttributeValue>> itemsByKey = new TreeMap<>();
+
+        Table(String hashKeyName) {
+            this.hashKeyName = hashKeyName;
+        }
+
+        String keyOf(Map<String, AttributeValue> itemOrKey) {
+            AttributeValue keyValue = itemOrKey.get(hashKeyName);
+            if (keyValue == null || keyValue.s() == null) {
+                throw new IllegalArgumentException("Missing string hash key " + hashKeyName);
+            }
+            return keyValue.s();
+        }
+
+        synchronized Map<String, AttributeValue> get(Map<String, AttributeValue> key) {
+            return itemsByKey.get(keyOf(key));
+        }
+
+        synchronized void put(Map<String, AttributeValue> item) {
+            itemsByKey.put(keyOf(item), ImmutableMap.copyOf(item));
+        }
+
+        synchronized void delete(Map<String, AttributeValue> key) {
+            itemsByKey.remove(keyOf(key));
+        }
+
+        // Returns up to limit matching items after the exclusive start key. The last evaluated key is only set if
+        // there are more matching items, which is stricter than DDB, but callers must handle both.
+        synchronized Page getPage(Map<String, AttributeValue> exclusiveStartKey, int limit,
+                Predicate<Map<String, AttributeValue>> matcher) {
+            NavigableMap<String, Map<String, AttributeValue>> remainingItems = itemsByKey;
+            if (exclusiveStartKey != null && !exclusiveStartKey.isEmpty()) {
+                remainingItems = itemsByKey.tailMap(keyOf(exclusiveStartKey), false);
+            }
+
+            Page page = new Page();
+            for (Map<String, AttributeValue> item : remainingItems.values()) {
+                if (!matcher.test(item)) {
+                    continue;
+                }
+                if (page.itemList.size() == limit) {
+                    Map<String, AttributeValue> lastItem = page.itemList.get(page.itemList.size() - 1);
+                    page.lastEvaluatedKey = ImmutableMap.of(hashKeyName, lastItem.get(hashKeyName));
+                    break;
+                }
+                page.itemList.add(item);
+            }
+            return page;
+        }
+    }
+
+    // One page of a scan or query.
+    private static class Page {
+        final List<Map<String, AttributeValue>> itemList = new ArrayList<>();
+        Map<String, AttributeValue> lastEvaluatedKey = null;
+    }
+}
@@ -0,0 +1,92 @@
+package org.sagebionetworks.bridge.helper;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.sql.SQLException;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class JdbcMigrationEngineTest {
+    private File checkpointFile;
+    private CheckpointFile checkpoint;
+    private File ledgerFile;
+
+    @BeforeMethod
+    public void setup() throws IOException {
+        checkpointFile = File.createTempFile("JdbcMigrationEngineTest", ".checkpoint");
+        //noinspection ResultOfMethodCallIgnored
+        checkpointFile.delete();
+        checkpoint = new CheckpointFile(checkpointFile);
+
+        ledgerFile = File.createTempFile("JdbcMigrationEngineTest", ".tsv");
+        //noinspection ResultOfMethodCallIgnored
+        ledgerFile.delete();
+    }
+
+    @AfterMethod
+    public void cleanup() {
+        checkpoint.close();
+        //noinspection ResultOfMethodCallIgnored
+        checkpointFile.delete();
+        //noinspection ResultOfMethodCallIgnored
+        ledgerFile.delete();
+    }
+
+    @Test
+    public void pagesCompletingOutOfOrder() throws Exception {
+        JdbcMigrationEngine.PageTracker pageTracker = new JdbcMigrationEngine.PageTracker(checkpoint, null);
+        JdbcMigrationEngine.Page pageA = pageTracker.addPage("a", 2);
+        JdbcMigrationEngine.Page pageB = pageTracker.addPage("b", 1);
+        JdbcMigrationEngine.Page pageC = pageTracker.addPage("c", 2);
+
+        // Later pages finish first. The checkpoint can't move past page A, which still has rows in flight.
+        pageTracker.markRowsDone(pageB, 1, false);
+        pageTracker.markRowsDone(pageC, 2, false);
+        pageTracker.markRowsDone(pageA, 1, false);
+        assertNull(checkpoint.getLastCompletedKey());
+
+        // Page A's last row fails. Failed rows still count as done, so the checkpoint moves past A, B, and C, in
+        // order.
+        pageTracker.markRowsDone(pageA, 1, true);
+        assertEquals(checkpoint.getLastCompletedKey(), "c");
+        assertEquals(pageTracker.numFailedRows.get(), 1);
+        assertEquals(Files.readAllLines(checkpointFile.toPath(), StandardCharsets.UTF_8),
+                ImmutableList.of("a", "b", "c"));
+    }
+
+    @Test
+    public void noCheckpoint() {
+        // Without a checkpoint, the tracker still counts failures.
+        JdbcMigrationEngine.PageTracker pageTracker = new JdbcMigrationEngine.PageTracker(null, null);
+        JdbcMigrationEngine.Page page = pageTracker.addPage("a", 3);
+        pageTracker.markRowsDone(page, 2, true);
+        pageTracker.markRowsDone(page, 1, false);
+        assertEquals(pageTracker.numFailedRows.get(), 2);
+    }
+
+    @Test
+    public void failedRowsAreRecordedInLedger() throws Exception {
+        try (FailureLedger ledger = new FailureLedger(ledgerFile)) {
+            JdbcMigrationEngine.PageTracker pageTracker = new JdbcMigrationEngine.PageTracker(checkpoint, ledger);
+            JdbcMigrationEngine.Page page = pageTracker.addPage("c", 3);
+            pageTracker.markRowFailed(page, "a", "test-write", new SQLException("test exception"));
+            pageTracker.markRowsDone(page, 1, false);
+            pageTracker.markRowFailed(page, "c", "test-transform", new RuntimeException("test exception"));
+
+            // The checkpoint moves past the failed rows, but they're in the ledger, so they can be retried.
+            assertEquals(checkpoint.getLastCompletedKey(), "c");
+            assertEquals(pageTracker.numFailedRows.get(), 2);
+            assertEquals(ledger.getNumFailures(), 2);
+        }
+        assertEquals(FailureLedger.readKeys(ledgerFile), ImmutableSet.of("a", "c"));
+    }
+}
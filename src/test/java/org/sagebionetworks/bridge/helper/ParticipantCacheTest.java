@@ -0,0 +1,145 @@
+package org.sagebionetworks.bridge.helper;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.base.Ticker;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import org.sagebionetworks.bridge.rest.exceptions.EntityNotFoundException;
+import org.sagebionetworks.bridge.rest.model.StudyParticipant;
+
+public class ParticipantCacheTest {
+    private static final String USER_ID = "test-user";
+    private static final String MISSING_USER_ID = "missing-user";
+
+    private final AtomicLong nowNanos = new AtomicLong();
+    private final Ticker ticker = new Ticker() {
+        @Override
+        public long read() {
+            return nowNanos.get();
+        }
+    };
+
+    private AtomicInteger numLoads;
+
+    @BeforeMethod
+    public void before() {
+        nowNanos.set(0);
+        numLoads = new AtomicInteger();
+    }
+
+    @Test
+    public void cachesUntilTtl() throws Exception {
+        ParticipantCache cache = new ParticipantCache(userId -> {
+            numLoads.incrementAndGet();
+            return new StudyParticipant();
+        }, 10, 1000, 100, ticker);
+
+        StudyParticipant participant = cache.get(USER_ID);
+        assertSame(cache.get(USER_ID), participant);
+        assertEquals(numLoads.get(), 1);
+        assertEquals(cache.getStats().hitCount(), 1);
+        assertEquals(cache.getStats().missCount(), 1);
+
+        // After the TTL, the participant is loaded again.
+        advanceMillis(1000);
+        cache.get(USER_ID);
+        assertEquals(numLoads.get(), 2);
+    }
+
+    @Test
+    public void evictsWhenFull() throws Exception {
+        ParticipantCache cache = new ParticipantCache(userId -> {
+            numLoads.incrementAndGet();
+            return new StudyParticipant();
+        }, 2, 1000, 100, ticker);
+
+        cache.get("user1");
+        cache.get("user2");
+        cache.get("user3");
+        assertEquals(cache.size(), 2);
+        assertEquals(cache.getStats().evictionCount(), 1);
+
+        // user1 was the least recently used, so it's loaded again.
+        cache.get("user1");
+        assertEquals(numLoads.get(), 4);
+    }
+
+    @Test
+    public void negativeCaching() throws Exception {
+        EntityNotFoundException notFoundException = new EntityNotFoundException("not found", "/participants");
+        ParticipantCache cache = new ParticipantCache(userId -> {
+            numLoads.incrementAndGet();
+            throw notFoundException;
+        }, 10, 1000, 100, ticker);
+
+        assertNotFound(cache, notFoundException);
+        assertNotFound(cache, notFoundException);
+        assertEquals(numLoads.get(), 1);
+
+        // The negative entry expires before the regular TTL.
+        advanceMillis(100);
+        assertNotFound(cache, notFoundException);
+        assertEquals(numLoads.get(), 2);
+    }
+
+    @Test
+    public void concurrentMissesShareOneLoad() throws Exception {
+        CountDownLatch loadStartedLatch = new CountDownLatch(1);
+        CountDownLatch releaseLatch = new CountDownLatch(1);
+        ParticipantCache cache = new ParticipantCache(userId -> {
+            numLoads.incrementAndGet();
+            loadStartedLatch.countDown();
+            try {
+                releaseLatch.await();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            return new StudyParticipant();
+        }, 10, 1000, 100, ticker);
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            Future<StudyParticipant> firstFuture = executor.submit(() -> cache.get(USER_ID));
+            assertTrue(loadStartedLatch.await(5, TimeUnit.SECONDS));
+            Future<StudyParticipant> secondFuture = executor.submit(() -> cache.get(USER_ID));
+            Future<StudyParticipant> thirdFuture = executor.submit(() -> cache.get(USER_ID));
+
+            // Give the other threads a chance to block on the in-flight load.
+            Thread.sleep(100);
+            releaseLatch.countDown();
+
+            StudyParticipant participant = firstFuture.get(5, TimeUnit.SECONDS);
+            assertSame(secondFuture.get(5, TimeUnit.SECONDS), participant);
+            assertSame(thirdFuture.get(5, TimeUnit.SECONDS), participant);
+            assertEquals(numLoads.get(), 1);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private void advanceMillis(long millis) {
+        nowNanos.addAndGet(TimeUnit.MILLISECONDS.toNanos(millis));
+    }
+
+    private static void assertNotFound(ParticipantCache cache, EntityNotFoundException expected) throws Exception {
+        try {
+            cache.get(MISSING_USER_ID);
+            fail("expected exception");
+        } catch (EntityNotFoundException ex) {
+            assertSame(ex, expected);
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package org.sagebionetworks.bridge.helper;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.annotations.Test;
+
+public class PipelineStageTest {
+    private static final int NUM_ITEMS = 100;
+
+    @Test
+    public void processesAllItemsInBatches() throws Exception {
+        List<Integer> processedList = new CopyOnWriteArrayList<>();
+        List<Integer> batchSizeList = new CopyOnWriteArrayList<>();
+        PipelineStage<Integer> stage = new PipelineStage<>("test", 3, 10, 5, batch -> {
+            batchSizeList.add(batch.size());
+            processedList.addAll(batch);
+        });
+        stage.start();
+
+        for (int i = 0; i < NUM_ITEMS; i++) {
+            stage.submit(i);
+        }
+        stage.awaitCompletion();
+
+        // Verify all items were processed exactly once.
+        List<Integer> sortedList = new ArrayList<>(processedList);
+        Collections.sort(sortedList);
+        assertEquals(sortedList.size(), NUM_ITEMS);
+        for (int i = 0; i < NUM_ITEMS; i++) {
+            assertEquals(sortedList.get(i).intValue(), i);
+        }
+
+        // Batches never exceed the batch size.
+        for (int batchSize : batchSizeList) {
+            assertTrue(batchSize >= 1 && batchSize <= 10);
+        }
+
+        assertEquals(stage.getNumSubmitted(), NUM_ITEMS);
+        assertEquals(stage.getNumProcessed(), NUM_ITEMS);
+        assertEquals(stage.getNumErrors(), 0);
+        assertEquals(stage.getQueueDepth(), 0);
+        assertTrue(stage.getMaxQueueDepth() <= 5);
+    }
+
+    @Test
+    public void chainedStages() throws Exception {
+        List<Integer> outputList = new CopyOnWriteArrayList<>();
+        PipelineStage<Integer> secondStage = new PipelineStage<>("second", 2, 1, 2, outputList::addAll);
+        PipelineStage<Integer> firstStage = new PipelineStage<>("first", 2, 4, 2, batch -> {
+            for (int item : batch) {
+                secondStage.submit(item * 2);
+            }
+        });
+        secondStage.start();
+        firstStage.start();
+
+        for (int i = 0; i < NUM_ITEMS; i++) {
+            firstStage.submit(i);
+        }
+        firstStage.awaitCompletion();
+        secondStage.awaitCompletion();
+
+        assertEquals(outputList.size(), NUM_ITEMS);
+        assertEquals(secondStage.getNumProcessed(), NUM_ITEMS);
+    }
+
+    @Test
+    public void errorsAreCountedAndDoNotStopTheStage() throws Exception {
+        AtomicInteger numHandled = new AtomicInteger();
+        PipelineStage<Integer> stage = new PipelineStage<>("test", 1, 1, 10, batch -> {
+            numHandled.incrementAndGet();
+            if (batch.get(0) % 2 == 0) {
+                throw new RuntimeException("test exception");
+            }
+        });
+        stage.start();
+
+        for (int i = 0; i < 10; i++) {
+            stage.submit(i);
+        }
+        stage.awaitCompletion();
+
+        assertEquals(numHandled.get(), 10);
+        assertEquals(stage.getNumErrors(), 5);
+        assertEquals(stage.getNumProcessed(), 10);
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void submitAfterCloseThrows() throws Exception {
+        PipelineStage<Integer> stage = new PipelineStage<>("test", 1, 1, 10, batch -> {});
+        stage.start();
+        stage.awaitCompletion();
+        stage.submit(1);
+    }
+}
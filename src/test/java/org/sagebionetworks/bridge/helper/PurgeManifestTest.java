@@ -0,0 +1,152 @@
+package org.sagebionetworks.bridge.helper;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import com.google.common.collect.ImmutableList;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class PurgeManifestTest {
+    private File manifestFile;
+
+    @BeforeMethod
+    public void setup() throws IOException {
+        manifestFile = File.createTempFile("PurgeManifestTest", ".manifest");
+    }
+
+    @AfterMethod
+    public void cleanup() {
+        //noinspection ResultOfMethodCallIgnored
+        manifestFile.delete();
+    }
+
+    @Test
+    public void roundTrip() throws Exception {
+        // Row IDs are intentionally out of order, to test negative deltas.
+        long[] rowIds = { 1000L, 1001L, 1005L, 42L, Long.MAX_VALUE, 0L, -1L };
+        try (PurgeManifest.Writer writer = new PurgeManifest.Writer(manifestFile)) {
+            writer.writeUpload("upload-1", "record-1", ImmutableList.of("attachment-1", "attachment-2"));
+            writer.writeUpload("upload-2", null, ImmutableList.of());
+            writer.writeSynapseRows("syn1234", rowIds, 6);
+            writer.writeFileHandle("syn1234", "987654321");
+            assertEquals(writer.getSummary(), "uploads=2, synapseRows=6, fileHandles=1");
+        }
+
+        List<String> uploadIdList = new ArrayList<>();
+        List<String> recordIdList = new ArrayList<>();
+        List<List<String>> attachmentIdListList = new ArrayList<>();
+        List<long[]> rowIdsList = new ArrayList<>();
+        List<String> fileHandleIdList = new ArrayList<>();
+        PurgeManifest.read(manifestFile, new PurgeManifest.Visitor() {
+            @Override
+            public void onUpload(String uploadId, String recordId, List<String> attachmentIdList) {
+                uploadIdList.add(uploadId);
+                recordIdList.add(recordId);
+                attachmentIdListList.add(attachmentIdList);
+            }
+
+            @Override
+            public void onSynapseRows(String tableId, long[] rowIds) {
+                assertEquals(tableId, "syn1234");
+                rowIdsList.add(rowIds);
+            }
+
+            @Override
+            public void onFileHandle(String tableId, String fileHandleId) {
+                assertEquals(tableId, "syn1234");
+                fileHandleIdList.add(fileHandleId);
+            }
+        });
+
+        assertEquals(uploadIdList, ImmutableList.of("upload-1", "upload-2"));
+        assertEquals(recordIdList.get(0), "record-1");
+        assertNull(recordIdList.get(1));
+        assertEquals(attachmentIdListList.get(0), ImmutableList.of("attachment-1", "attachment-2"));
+        assertEquals(attachmentIdListList.get(1), ImmutableList.of());
+
+        assertEquals(rowIdsList.size(), 1);
+        assertTrue(Arrays.equals(rowIdsList.get(0), new long[] { 1000L, 1001L, 1005L, 42L, Long.MAX_VALUE, 0L }));
+
+        assertEquals(fileHandleIdList, ImmutableList.of("987654321"));
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void truncatedManifestThrows() throws Exception {
+        // Simulate a crash by writing the header but no entries and no end entry.
+        try (GZIPOutputStream out = new GZIPOutputStream(new FileOutputStream(manifestFile))) {
+            out.write(new byte[] { 0x50, 0x52, 0x4D, 0x46, 0, 1 });
+        }
+
+        PurgeManifest.read(manifestFile, new PurgeManifest.Visitor() {});
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void notAManifestThrows() throws Exception {
+        try (GZIPOutputStream out = new GZIPOutputStream(new FileOutputStream(manifestFile))) {
+            out.write(new byte[] { 1, 2, 3, 4, 5, 6 });
+        }
+
+        PurgeManifest.read(manifestFile, new PurgeManifest.Visitor() {});
+    }
+
+    @Test
+    public void abortedManifestIsNotVisited() throws Exception {
+        // Simulate a failed debug run. The entries are there, but there's no end entry.
+        PurgeManifest.Writer writer = new PurgeManifest.Writer(manifestFile);
+        writer.writeUpload("upload-1", "record-1", ImmutableList.of());
+        writer.writeUpload("upload-2", null, ImmutableList.of());
+        writer.abort();
+
+        // close() after abort() must not write the end entry.
+        writer.close();
+
+        assertNotVisited();
+    }
+
+    @Test
+    public void wrongCountsAreNotVisited() throws Exception {
+        // One upload entry, but the end entry claims there are two.
+        try (DataOutputStream out = new DataOutputStream(new GZIPOutputStream(new FileOutputStream(manifestFile)))) {
+            out.writeInt(0x50524D46);
+            out.writeShort(1);
+            out.writeByte(1);
+            out.writeUTF("upload-1");
+            out.writeUTF("");
+            out.writeByte(0);
+            out.writeByte(0);
+            out.writeByte(2);
+            out.writeByte(0);
+            out.writeByte(0);
+        }
+
+        assertNotVisited();
+    }
+
+    // Helper method that reads the manifest and checks that it throws before calling the visitor.
+    private void assertNotVisited() throws Exception {
+        try {
+            PurgeManifest.read(manifestFile, new PurgeManifest.Visitor() {
+                @Override
+                public void onUpload(String uploadId, String recordId, List<String> attachmentIdList) {
+                    fail("visitor should not be called for an invalid manifest");
+                }
+            });
+            fail("expected exception");
+        } catch (IOException ex) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package org.sagebionetworks.bridge.synapse;
+
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.RateLimiter;
+import org.sagebionetworks.client.SynapseClient;
+import org.sagebionetworks.client.exceptions.SynapseException;
+import org.sagebionetworks.repo.model.ACCESS_TYPE;
+import org.sagebionetworks.repo.model.AccessControlList;
+import org.sagebionetworks.repo.model.ResourceAccess;
+import org.sagebionetworks.repo.model.table.TableEntity;
+import org.testng.annotations.Test;
+
+@SuppressWarnings("UnstableApiUsage")
+public class AclReconcilerTest {
+    private static final String ENTITY_ID = "syn1234";
+
+    private static final long ADMIN_ID = 1111L;
+    private static final long STAFF_ID = 2222L;
+    private static final long OTHER_ID = 3333L;
+
+    private static final Set<ACCESS_TYPE> READ_ONLY = ImmutableSet.of(ACCESS_TYPE.READ);
+    private static final Set<ACCESS_TYPE> READ_DOWNLOAD = ImmutableSet.of(ACCESS_TYPE.READ, ACCESS_TYPE.DOWNLOAD);
+    private static final Set<ACCESS_TYPE> READ_UPDATE = ImmutableSet.of(ACCESS_TYPE.READ, ACCESS_TYPE.UPDATE);
+
+    private static final Map<Long, Set<ACCESS_TYPE>> DESIRED_ACCESS = ImmutableMap.of(ADMIN_ID, READ_DOWNLOAD,
+            STAFF_ID, READ_ONLY);
+
+    @Test
+    public void exactMatchIsUnchanged() {
+        Set<ResourceAccess> currentSet = ImmutableSet.of(makeResourceAccess(ADMIN_ID, READ_DOWNLOAD),
+                makeResourceAccess(STAFF_ID, READ_ONLY));
+        assertNull(AclReconciler.diffResourceAccess(currentSet, DESIRED_ACCESS));
+    }
+
+    @Test
+    public void extraAccessIsUnchanged() {
+        // Staff was granted UPDATE by hand. That's more than desired, so nothing needs to change.
+        Set<ResourceAccess> currentSet = ImmutableSet.of(makeResourceAccess(ADMIN_ID, ImmutableSet.of(
+                ACCESS_TYPE.READ, ACCESS_TYPE.DOWNLOAD, ACCESS_TYPE.CHANGE_PERMISSIONS)),
+                makeResourceAccess(STAFF_ID, READ_UPDATE));
+        assertNull(AclReconciler.diffResourceAccess(currentSet, DESIRED_ACCESS));
+    }
+
+    @Test
+    public void missingAccessIsAddedWithoutRemovingAny() {
+        // Admin has READ and UPDATE, but is missing DOWNLOAD. Staff is fine. Another principal isn't in the desired
+        // state at all.
+        ResourceAccess staffAccess = makeResourceAccess(STAFF_ID, READ_ONLY);
+        ResourceAccess otherAccess = makeResourceAccess(OTHER_ID, ImmutableSet.of(ACCESS_TYPE.DELETE));
+        Set<ResourceAccess> currentSet = ImmutableSet.of(makeResourceAccess(ADMIN_ID, READ_UPDATE), staffAccess,
+                otherAccess);
+
+        Set<ResourceAccess> newSet = AclReconciler.diffResourceAccess(currentSet, DESIRED_ACCESS);
+        assertEquals(newSet, ImmutableSet.of(makeResourceAccess(ADMIN_ID, ImmutableSet.of(ACCESS_TYPE.READ,
+                ACCESS_TYPE.UPDATE, ACCESS_TYPE.DOWNLOAD)), staffAccess, otherAccess));
+    }
+
+    @Test
+    public void missingPrincipalIsAdded() {
+        ResourceAccess adminAccess = makeResourceAccess(ADMIN_ID, READ_DOWNLOAD);
+        Set<ResourceAccess> newSet = AclReconciler.diffResourceAccess(ImmutableSet.of(adminAccess), DESIRED_ACCESS);
+        assertEquals(newSet, ImmutableSet.of(adminAccess, makeResourceAccess(STAFF_ID, READ_ONLY)));
+    }
+
+    @Test
+    public void multipleEntriesAreCombined() {
+        // Together, admin's two entries have everything desired, so nothing needs to change.
+        Set<ResourceAccess> currentSet = ImmutableSet.of(makeResourceAccess(ADMIN_ID, READ_ONLY),
+                makeResourceAccess(ADMIN_ID, ImmutableSet.of(ACCESS_TYPE.DOWNLOAD)),
+                makeResourceAccess(STAFF_ID, READ_ONLY));
+        assertNull(AclReconciler.diffResourceAccess(currentSet, DESIRED_ACCESS));
+
+        // If something is missing, the entries are merged into one, keeping everything from both.
+        currentSet = ImmutableSet.of(makeResourceAccess(ADMIN_ID, ImmutableSet.of(ACCESS_TYPE.UPDATE)),
+                makeResourceAccess(ADMIN_ID, ImmutableSet.of(ACCESS_TYPE.DELETE)),
+                makeResourceAccess(STAFF_ID, READ_ONLY));
+        Set<ResourceAccess> newSet = AclReconciler.diffResourceAccess(currentSet, DESIRED_ACCESS);
+        assertEquals(newSet, ImmutableSet.of(makeResourceAccess(ADMIN_ID, ImmutableSet.of(ACCESS_TYPE.READ,
+                ACCESS_TYPE.DOWNLOAD, ACCESS_TYPE.UPDATE, ACCESS_TYPE.DELETE)),
+                makeResourceAccess(STAFF_ID, READ_ONLY)));
+    }
+
+    @Test
+    public void failedHeaderBatchFallsBackToGetAcl() throws Exception {
+        SynapseClient mockSynapseClient = mock(SynapseClient.class);
+        when(mockSynapseClient.getEntityHeaderBatch(anyList())).thenThrow(new SynapseException("test exception"));
+
+        AccessControlList acl = new AccessControlList();
+        acl.setId(ENTITY_ID);
+        acl.setResourceAccess(new HashSet<>(ImmutableSet.of(makeResourceAccess(ADMIN_ID, READ_DOWNLOAD))));
+        when(mockSynapseClient.getACL(ENTITY_ID)).thenReturn(acl);
+
+        RateLimiter rateLimiter = RateLimiter.create(1000.0);
+        AclReconciler reconciler = new AclReconciler(mockSynapseClient, rateLimiter, 1,
+                new EntityHeaderResolver(mockSynapseClient, rateLimiter));
+        AclReconciler.Target target = new AclReconciler.Target(ENTITY_ID, "test table")
+                .withEntityType(TableEntity.class).withAccess(ADMIN_ID, READ_DOWNLOAD)
+                .withAccess(STAFF_ID, READ_ONLY);
+
+        // The header lookup failed, so the reconciler skips the type check and goes through getACL.
+        Map<AclReconciler.Result, Integer> resultMap = reconciler.reconcile(ImmutableList.of(target));
+        assertEquals(resultMap.get(AclReconciler.Result.UPDATED).intValue(), 1);
+        verify(mockSynapseClient).updateACL(acl);
+        assertEquals(acl.getResourceAccess(), ImmutableSet.of(makeResourceAccess(ADMIN_ID, READ_DOWNLOAD),
+                makeResourceAccess(STAFF_ID, READ_ONLY)));
+    }
+
+    private static ResourceAccess makeResourceAccess(long principalId, Set<ACCESS_TYPE> accessTypeSet) {
+        ResourceAccess resourceAccess = new ResourceAccess();
+        resourceAccess.setPrincipalId(principalId);
+        resourceAccess.setAccessType(new HashSet<>(accessTypeSet));
+        return resourceAccess;
+    }
+}
@@ -0,0 +1,98 @@
+package org.sagebionetworks.bridge.synapse;
+
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.util.Map;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.RateLimiter;
+import org.sagebionetworks.client.SynapseClient;
+import org.sagebionetworks.client.exceptions.SynapseException;
+import org.sagebionetworks.repo.model.EntityHeader;
+import org.sagebionetworks.repo.model.PaginatedResults;
+import org.sagebionetworks.repo.model.Project;
+import org.sagebionetworks.repo.model.table.TableEntity;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+@SuppressWarnings("UnstableApiUsage")
+public class EntityHeaderResolverTest {
+    private static final String PROJECT_ID = "syn1111";
+    private static final String TABLE_ID = "syn2222";
+    private static final String MISSING_ID = "syn3333";
+
+    private SynapseClient mockSynapseClient;
+    private EntityHeaderResolver resolver;
+
+    @BeforeMethod
+    public void setup() {
+        mockSynapseClient = mock(SynapseClient.class);
+        resolver = new EntityHeaderResolver(mockSynapseClient, RateLimiter.create(1000.0));
+    }
+
+    @Test
+    public void notReturnedIsCachedAsAbsent() throws Exception {
+        when(mockSynapseClient.getEntityHeaderBatch(anyList())).thenReturn(makeResults(
+                makeHeader(TABLE_ID, TableEntity.class)));
+
+        Map<String, EntityHeader> headerMap = resolver.resolve(ImmutableList.of(TABLE_ID, MISSING_ID));
+        assertEquals(headerMap.size(), 1);
+        assertEquals(headerMap.get(TABLE_ID).getId(), TABLE_ID);
+        assertTrue(resolver.isResolved(MISSING_ID));
+
+        // Looking up the missing entity again uses the cache.
+        assertNull(resolver.getHeader(MISSING_ID));
+        assertTrue(resolver.resolve(ImmutableList.of(MISSING_ID)).isEmpty());
+        verify(mockSynapseClient, times(1)).getEntityHeaderBatch(anyList());
+    }
+
+    @Test
+    public void existsWithType() throws Exception {
+        when(mockSynapseClient.getEntityHeaderBatch(anyList())).thenReturn(makeResults(
+                makeHeader(PROJECT_ID, Project.class), makeHeader(TABLE_ID, TableEntity.class)));
+        resolver.resolve(ImmutableList.of(PROJECT_ID, TABLE_ID, MISSING_ID));
+
+        assertTrue(resolver.existsWithType(PROJECT_ID, Project.class));
+        assertFalse(resolver.existsWithType(PROJECT_ID, TableEntity.class));
+        assertTrue(resolver.existsWithType(TABLE_ID, TableEntity.class));
+        assertFalse(resolver.existsWithType(TABLE_ID, Project.class));
+        assertFalse(resolver.existsWithType(MISSING_ID, TableEntity.class));
+        verify(mockSynapseClient, times(1)).getEntityHeaderBatch(anyList());
+    }
+
+    @Test
+    public void failedBatchIsLeftUnresolved() throws Exception {
+        when(mockSynapseClient.getEntityHeaderBatch(anyList())).thenThrow(new SynapseException("test exception"))
+                .thenReturn(makeResults(makeHeader(TABLE_ID, TableEntity.class)));
+
+        // The failure doesn't throw, and nothing is cached.
+        assertTrue(resolver.resolve(ImmutableList.of(TABLE_ID)).isEmpty());
+        assertFalse(resolver.isResolved(TABLE_ID));
+
+        // The next lookup tries again.
+        assertTrue(resolver.existsWithType(TABLE_ID, TableEntity.class));
+        assertTrue(resolver.isResolved(TABLE_ID));
+        verify(mockSynapseClient, times(2)).getEntityHeaderBatch(anyList());
+    }
+
+    private static EntityHeader makeHeader(String entityId, Class<?> entityClass) {
+        EntityHeader header = new EntityHeader();
+        header.setId(entityId);
+        header.setType(entityClass.getName());
+        return header;
+    }
+
+    private static PaginatedResults<EntityHeader> makeResults(EntityHeader... headers) {
+        PaginatedResults<EntityHeader> results = new PaginatedResults<>();
+        results.setResults(ImmutableList.copyOf(headers));
+        return results;
+    }
+}
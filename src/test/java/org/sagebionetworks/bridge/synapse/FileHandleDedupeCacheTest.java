@@ -0,0 +1,98 @@
+package org.sagebionetworks.bridge.synapse;
+
+import static org.testng.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.hash.Hashing;
+import org.sagebionetworks.repo.model.file.FileHandle;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class FileHandleDedupeCacheTest {
+    private static final byte[] CONTENT = "test content".getBytes(StandardCharsets.UTF_8);
+    private static final String HASH = Hashing.sha256().hashBytes(CONTENT).toString();
+
+    private File indexFile;
+    private FakeUploader uploader;
+
+    @BeforeMethod
+    public void setup() throws IOException {
+        indexFile = File.createTempFile("FileHandleDedupeCacheTest", ".tsv");
+        uploader = new FakeUploader();
+    }
+
+    @AfterMethod
+    public void cleanup() {
+        uploader.close();
+        //noinspection ResultOfMethodCallIgnored
+        indexFile.delete();
+    }
+
+    @Test
+    public void previousFileHandleIsCheckedOnceBeforeReuse() throws Exception {
+        Files.write(indexFile.toPath(), ImmutableList.of(HASH + "\tfh-previous"), StandardCharsets.UTF_8);
+        uploader.existingFileHandleIdSet.add("fh-previous");
+
+        try (FileHandleDedupeCache cache = new FileHandleDedupeCache(uploader, indexFile)) {
+            assertEquals(cache.getOrCreateFileHandleId(CONTENT, "dataset0", "text/plain"), "fh-previous");
+            assertEquals(cache.getOrCreateFileHandleId(CONTENT, "dataset1", "text/plain"), "fh-previous");
+            assertEquals(cache.getNumHits(), 2);
+            assertEquals(cache.getNumUploads(), 0);
+        }
+        assertEquals(uploader.lookedUpFileHandleIdList, ImmutableList.of("fh-previous"));
+    }
+
+    @Test
+    public void deletedPreviousFileHandleIsUploadedAgain() throws Exception {
+        Files.write(indexFile.toPath(), ImmutableList.of(HASH + "\tfh-deleted"), StandardCharsets.UTF_8);
+
+        String fileHandleId;
+        try (FileHandleDedupeCache cache = new FileHandleDedupeCache(uploader, indexFile)) {
+            fileHandleId = cache.getOrCreateFileHandleId(CONTENT, "dataset0", "text/plain");
+            assertEquals(fileHandleId, "fh-new-0");
+            assertEquals(cache.getOrCreateFileHandleId(CONTENT, "dataset1", "text/plain"), fileHandleId);
+            assertEquals(cache.getNumHits(), 1);
+            assertEquals(cache.getNumUploads(), 1);
+        }
+        assertEquals(uploader.lookedUpFileHandleIdList, ImmutableList.of("fh-deleted"));
+
+        // The new file handle is appended to the index, so the next run finds it.
+        List<String> lineList = Files.readAllLines(indexFile.toPath(), StandardCharsets.UTF_8);
+        assertEquals(lineList.get(lineList.size() - 1), HASH + "\t" + fileHandleId);
+    }
+
+    // Uploader that makes up file handle IDs, and only knows about the file handles it was told exist.
+    private static class FakeUploader extends FileHandleUploader {
+        private final Set<String> existingFileHandleIdSet = new HashSet<>();
+        private final List<String> lookedUpFileHandleIdList = new ArrayList<>();
+        private int numUploads = 0;
+
+        FakeUploader() {
+            super(null);
+        }
+
+        @Override
+        public synchronized FileHandle createFileHandle(byte[] content, String fileName, String contentType) {
+            FileHandle fileHandle = new FileHandle();
+            fileHandle.setId("fh-new-" + numUploads++);
+            existingFileHandleIdSet.add(fileHandle.getId());
+            return fileHandle;
+        }
+
+        @Override
+        public synchronized boolean fileHandleExists(String fileHandleId) {
+            lookedUpFileHandleIdList.add(fileHandleId);
+            return existingFileHandleIdSet.contains(fileHandleId);
+        }
+    }
+}
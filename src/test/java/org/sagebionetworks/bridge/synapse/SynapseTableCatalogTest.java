@@ -0,0 +1,46 @@
+package org.sagebionetworks.bridge.synapse;
+
+import static org.testng.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class SynapseTableCatalogTest {
+    private File cacheFile;
+
+    @BeforeMethod
+    public void setup() throws IOException {
+        cacheFile = File.createTempFile("SynapseTableCatalogTest", ".tsv");
+    }
+
+    @AfterMethod
+    public void cleanup() {
+        //noinspection ResultOfMethodCallIgnored
+        cacheFile.delete();
+    }
+
+    @Test
+    public void getTablesForStudyDoesNotMatchLongerStudyIds() throws Exception {
+        Files.write(cacheFile.toPath(), ImmutableList.of("# refreshed " + System.currentTimeMillis(),
+                "foo-default\tsyn1", "foo-schema-1\tsyn2", "foobar-default\tsyn3", "foobar-schema-1\tsyn4",
+                "fo-default\tsyn5"), StandardCharsets.UTF_8);
+
+        // The cache is fresh, so DDB is never touched.
+        SynapseTableCatalog catalog = new SynapseTableCatalog(null, "test-", cacheFile);
+        catalog.load(Long.MAX_VALUE);
+
+        assertEquals(catalog.getTablesForStudy("foo"), ImmutableMap.of("foo-default", "syn1", "foo-schema-1",
+                "syn2"));
+        assertEquals(catalog.getTablesForStudy("foobar"), ImmutableMap.of("foobar-default", "syn3",
+                "foobar-schema-1", "syn4"));
+        assertEquals(catalog.getAllTables().size(), 5);
+    }
+}